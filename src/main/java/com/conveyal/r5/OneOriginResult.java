@@ -2,11 +2,10 @@ package com.conveyal.r5;
 
 import com.conveyal.r5.analyst.AccessibilityResult;
 import com.conveyal.r5.analyst.cluster.AnalysisTask;
+import com.conveyal.r5.analyst.cluster.PointSetTimes;
 import com.conveyal.r5.analyst.cluster.RegionalWorkResult;
 import com.conveyal.r5.analyst.cluster.TimeGrid;
 
-import java.util.Map;
-
 /**
  * This provides a single return type for all the kinds of results we can get from a travel time computer and reducer
  * for a single origin point:
@@ -17,16 +16,16 @@ public class OneOriginResult {
 
     // Travel times to destinations where destinations are a list of discrete points rather than
     // a grid.
-    public final Map<Integer, Integer> pointIndexToTravelTime;
+    public final PointSetTimes pointSetTimes;
 
     public final TimeGrid timeGrid;
 
     public final AccessibilityResult accessibility;
 
-    public OneOriginResult(TimeGrid timeGrid, AccessibilityResult accessibility, Map<Integer, Integer> pointIndexToTravelTime) {
+    public OneOriginResult(TimeGrid timeGrid, AccessibilityResult accessibility, PointSetTimes pointSetTimes) {
         this.timeGrid = timeGrid;
         this.accessibility = accessibility;
-        this.pointIndexToTravelTime = pointIndexToTravelTime;
+        this.pointSetTimes = pointSetTimes;
     }
 
     // Convert the accessibility results for this origin into a RegionalWorkResult.
@@ -42,7 +41,13 @@ public class OneOriginResult {
         } else {
             result = new RegionalWorkResult(task.jobId, task.taskId, accessibility.grids.length,
                     accessibility.percentiles.length, accessibility.cutoffs.length);
-            result.setAcccessibilityValue(0, 0, 0, (int) accessibility.getAccessibility(0, 0, 0));
+            for (int g = 0; g < accessibility.grids.length; g++) {
+                for (int p = 0; p < accessibility.percentiles.length; p++) {
+                    for (int c = 0; c < accessibility.cutoffs.length; c++) {
+                        result.setAcccessibilityValue(g, p, c, (int) accessibility.getAccessibility(g, c, p));
+                    }
+                }
+            }
         }
         return result;
     }
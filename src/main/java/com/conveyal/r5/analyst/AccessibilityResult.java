@@ -7,6 +7,11 @@ import com.conveyal.r5.analyst.cluster.RegionalTask;
  * This holds and accumulates multiple accessibility values as they are computed.
  * Created by abyrd on 2018-01-11
  * TODO rename to something less generic
+ *
+ * Rather than adding each destination's opportunities to every cutoff it falls within, the opportunities are added to
+ * a single one-minute bin for the travel time to the destination. Accessibility at any cutoff is then the sum of the
+ * bins below the cutoff. This makes the work per destination independent of the number of cutoffs, so computing
+ * accessibility for several cutoffs costs little more than for one.
  */
 public class AccessibilityResult {
 
@@ -14,26 +19,53 @@ public class AccessibilityResult {
     public final int[] cutoffs;
     public final double[] percentiles;
 
-    private double[][][] values;
+    /** Opportunities reached in each whole minute of travel time, indexed by grid, percentile and minute. */
+    private double[][][] opportunitiesByMinute;
 
     public AccessibilityResult (Grid[] grids, int[] cutoffs, double[] percentiles) {
         this.grids = grids;
         this.cutoffs = cutoffs;
         this.percentiles = percentiles;
-        values = new double[grids.length][cutoffs.length][percentiles.length];
+        int maxCutoff = 0;
+        for (int cutoff : cutoffs) maxCutoff = Math.max(maxCutoff, cutoff);
+        opportunitiesByMinute = new double[grids.length][percentiles.length][maxCutoff];
     }
 
     /**
-     * Increment the accessibility indicator value for the given grid, cutoff, and percentile
-     * by the given number of opportunities. This is called repeatedly to accumulate reachable
-     * destinations into different indicator values.
+     * Record that the given number of opportunities on the given grid is reached in the given number of minutes at the
+     * given percentile of travel time. This is called repeatedly to accumulate reachable destinations into all the
+     * indicator values for that grid and percentile at once.
+     * @param travelTimeMinutes which may be FastRaptorWorker.UNREACHED or longer than every cutoff, in which case the
+     *                          opportunities are not counted.
      */
-    public void incrementAccessibility (int gridIndex, int cutoffIndex, int percentileIndex, double amount) {
-        values[gridIndex][cutoffIndex][percentileIndex] += amount;
+    public void recordOpportunities (int gridIndex, int percentileIndex, int travelTimeMinutes, double amount) {
+        double[] bins = opportunitiesByMinute[gridIndex][percentileIndex];
+        if (travelTimeMinutes >= 0 && travelTimeMinutes < bins.length) bins[travelTimeMinutes] += amount;
     }
 
+    /**
+     * Add all the opportunities recorded in another result, which must be for the same grids, cutoffs and percentiles,
+     * to the opportunities recorded in this one.
+     */
+    public void add (AccessibilityResult other) {
+        for (int g = 0; g < opportunitiesByMinute.length; g++) {
+            for (int p = 0; p < opportunitiesByMinute[g].length; p++) {
+                double[] bins = opportunitiesByMinute[g][p];
+                double[] otherBins = other.opportunitiesByMinute[g][p];
+                for (int minute = 0; minute < bins.length; minute++) bins[minute] += otherBins[minute];
+            }
+        }
+    }
+
+    /**
+     * @return the opportunities on the given grid reachable in strictly less than the given cutoff at the given
+     *         percentile of travel time.
+     */
     public double getAccessibility(int gridIndex, int cutoffIndex, int percentileIndex) {
-        return values[gridIndex][cutoffIndex][percentileIndex];
+        double[] bins = opportunitiesByMinute[gridIndex][percentileIndex];
+        double accessibility = 0;
+        for (int minute = 0; minute < cutoffs[cutoffIndex]; minute++) accessibility += bins[minute];
+        return accessibility;
     }
 
 }
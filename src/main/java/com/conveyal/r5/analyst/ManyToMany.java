@@ -0,0 +1,345 @@
+package com.conveyal.r5.analyst;
+
+import com.conveyal.r5.analyst.cluster.AnalysisTask;
+import com.conveyal.r5.analyst.cluster.PointSetTimes;
+import com.conveyal.r5.analyst.cluster.TravelTimeSurfaceTask;
+import com.conveyal.r5.profile.FastRaptorWorker;
+import com.conveyal.r5.transit.TransportNetwork;
+import com.csvreader.CsvWriter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+
+/**
+ * Calculates travel times from many origins to many destinations, i.e. a complete travel time matrix between two sets
+ * of points such as the centroids of all the dissemination areas in a region. This is the batch counterpart of
+ * OneToMany: the destinations are the point set that was read and linked when the network was built, and the origins
+ * are routed in parallel on a pool of threads. The row of travel times for each origin is written to the output file
+ * as soon as it is complete, so the matrix is never held in memory, and rows appear in the order the origins finish
+ * rather than in the order of the origins. Travel times are found at all the percentiles in the task at once, so a
+ * single run can produce for example the minimum, median and 90th percentile matrices.
+ */
+public class ManyToMany {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ManyToMany.class);
+
+    /** The travel time written for destinations that cannot be reached within the maximum trip duration. */
+    public static final int UNREACHED = -1;
+
+    /** The first bytes of a binary matrix file, followed by the format version. */
+    public static final String BINARY_HEADER = "TTMATRIX";
+
+    public static final int BINARY_VERSION = 1;
+
+    /** Progress is logged at most this often. */
+    private static final long PROGRESS_INTERVAL_MILLIS = 10_000;
+
+    public enum Format {
+        /**
+         * Little-endian ints: the header and version, the number of origins, of destinations and of percentiles, then
+         * one record per origin holding the origin index followed by the travel time in seconds to each destination at
+         * the first percentile, in the order of the destinations, then to each destination at the second percentile,
+         * etc. Each record has the same size, so the file can be sorted or indexed by origin afterward.
+         */
+        BINARY,
+        /**
+         * Lines of origin ID, destination ID and travel time in seconds at each percentile, for destinations that are
+         * reachable at some percentile.
+         */
+        CSV
+    }
+
+    /** The routing parameters shared by all origins. The origin coordinates are replaced for each origin. */
+    private final AnalysisTask task;
+
+    private final TransportNetwork network;
+
+    private final PointSetWithIds origins;
+
+    private final PointSetWithIds destinations;
+
+    /** The number of origins to route at once. Each origin may also use several threads for its Monte Carlo draws. */
+    public int nThreads = Runtime.getRuntime().availableProcessors();
+
+    /** The travel time cutoffs for the accessibility indicators written when an accessibility file is requested. */
+    public int[] accessibilityCutoffsMinutes = new int[] { 30, 45, 60 };
+
+    /**
+     * @param task the routing parameters, which must be a TravelTimeSurfaceTask with no grid extents so that travel
+     *             times are retained for the network's linked point set rather than a grid.
+     * @param network a network that was built with a set of destinations, as for OneToMany.
+     * @param origins the points to route from, often the same points as the destinations.
+     */
+    public ManyToMany (AnalysisTask task, TransportNetwork network, PointSetWithIds origins) {
+        if (!(task instanceof TravelTimeSurfaceTask) || task.width * task.height != 0) {
+            throw new IllegalArgumentException("A travel time matrix needs a travel time surface task with no grid.");
+        }
+        if (!(network.pointSet instanceof PointSetWithIds)) {
+            throw new IllegalArgumentException("A travel time matrix needs a network built with destinations.");
+        }
+        this.task = task;
+        this.network = network;
+        this.origins = origins;
+        this.destinations = (PointSetWithIds) task.getDestinations(network, null).get(0);
+    }
+
+    /** Route from every origin and write the matrix to the given file in the given format. */
+    public void run (File outputFile, Format format) throws IOException {
+        run(outputFile, format, null);
+    }
+
+    /**
+     * Route from every origin and write the matrix to the given file in the given format, with one travel time per
+     * percentile of the task for each pair of points.
+     * @param accessibilityFile if not null, for each origin also write the number of destinations reachable within each
+     *                          of accessibilityCutoffsMinutes at each percentile to this file, as CSV.
+     */
+    public void run (File outputFile, Format format, File accessibilityFile) throws IOException {
+        int nOrigins = origins.featureCount();
+        int nDestinations = destinations.featureCount();
+        LOG.info("Computing travel times from {} origins to {} destinations on {} threads, writing to {}.", nOrigins,
+                nDestinations, nThreads, outputFile);
+
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(outputFile), 1024 * 1024);
+             OutputStream accessOut = accessibilityFile == null ? null
+                     : new BufferedOutputStream(new FileOutputStream(accessibilityFile))) {
+            RowWriter writer = format == Format.BINARY ? new BinaryRowWriter(out) : new CsvRowWriter(out);
+            writer.writeHeader(nOrigins, nDestinations);
+            AccessibilityWriter accessibilityWriter = accessOut == null ? null : new AccessibilityWriter(accessOut);
+
+            Progress progress = new Progress(nOrigins, nDestinations);
+            ForkJoinPool pool = new ForkJoinPool(nThreads);
+            try {
+                pool.submit(() -> IntStream.range(0, nOrigins).parallel().forEach(origin -> {
+                    PointSetTimes travelTimes = computeTravelTimes(origin);
+                    try {
+                        synchronized (writer) {
+                            writer.writeRow(origin, toRow(travelTimes));
+                        }
+                        if (accessibilityWriter != null) {
+                            synchronized (accessibilityWriter) {
+                                accessibilityWriter.writeRow(origin, travelTimes);
+                            }
+                        }
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                    progress.originComplete();
+                })).get();
+            } catch (InterruptedException e) {
+                throw new RuntimeException("Interrupted while computing travel time matrix.", e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof UncheckedIOException) {
+                    throw ((UncheckedIOException) e.getCause()).getCause();
+                }
+                throw new RuntimeException("Error computing travel time matrix.", e.getCause());
+            } finally {
+                pool.shutdown();
+            }
+            writer.finish();
+            if (accessibilityWriter != null) accessibilityWriter.finish();
+            progress.logSummary();
+        }
+    }
+
+    /** @return the travel time in seconds at each percentile from the given origin to each destination. */
+    private PointSetTimes computeTravelTimes (int origin) {
+        AnalysisTask originTask = task.clone();
+        originTask.fromLat = origins.getLat(origin);
+        originTask.fromLon = origins.getLon(origin);
+        try {
+            return new TravelTimeComputer(originTask, network).computeTravelTimes().pointSetTimes;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /** @return one row of the matrix for each percentile, with UNREACHED in place of FastRaptorWorker.UNREACHED. */
+    private int[][] toRow (PointSetTimes travelTimes) {
+        int[][] row = new int[travelTimes.nValuesPerPoint][];
+        for (int p = 0; p < row.length; p++) {
+            row[p] = Arrays.copyOf(travelTimes.getValues(p), destinations.featureCount());
+            for (int destination = 0; destination < row[p].length; destination++) {
+                if (row[p][destination] == FastRaptorWorker.UNREACHED) row[p][destination] = UNREACHED;
+            }
+        }
+        return row;
+    }
+
+    /** @return a short name for a percentile to use in CSV headers, such as p50. */
+    private static String percentileName (double percentile) {
+        return percentile == Math.rint(percentile) ? "p" + (int) percentile : "p" + percentile;
+    }
+
+    /** Writes rows of the matrix in one of the output formats. Calls are synchronized by the caller. */
+    private interface RowWriter {
+        void writeHeader (int nOrigins, int nDestinations) throws IOException;
+        /** @param travelTimes for each percentile, the travel time to each destination. */
+        void writeRow (int origin, int[][] travelTimes) throws IOException;
+        void finish () throws IOException;
+    }
+
+    private class BinaryRowWriter implements RowWriter {
+
+        private final LittleEndianIntOutputStream out;
+
+        BinaryRowWriter (OutputStream out) {
+            this.out = new LittleEndianIntOutputStream(out);
+        }
+
+        @Override
+        public void writeHeader (int nOrigins, int nDestinations) throws IOException {
+            out.writeAscii(BINARY_HEADER);
+            out.writeInt(BINARY_VERSION);
+            out.writeInt(nOrigins);
+            out.writeInt(nDestinations);
+            out.writeInt(task.percentiles.length);
+        }
+
+        @Override
+        public void writeRow (int origin, int[][] travelTimes) throws IOException {
+            out.writeInt(origin);
+            for (int[] percentileTimes : travelTimes) {
+                for (int seconds : percentileTimes) out.writeInt(seconds);
+            }
+        }
+
+        @Override
+        public void finish () throws IOException {
+            out.flush();
+        }
+    }
+
+    private class CsvRowWriter implements RowWriter {
+
+        private final CsvWriter writer;
+
+        private final String[] record = new String[2 + task.percentiles.length];
+
+        CsvRowWriter (OutputStream out) {
+            this.writer = new CsvWriter(out, ',', Charset.forName("UTF-8"));
+        }
+
+        @Override
+        public void writeHeader (int nOrigins, int nDestinations) throws IOException {
+            String[] header = new String[record.length];
+            header[0] = "origin";
+            header[1] = "destination";
+            for (int p = 0; p < task.percentiles.length; p++) header[2 + p] = percentileName(task.percentiles[p]);
+            writer.writeRecord(header);
+        }
+
+        @Override
+        public void writeRow (int origin, int[][] travelTimes) throws IOException {
+            record[0] = origins.getId(origin);
+            for (int destination = 0; destination < destinations.featureCount(); destination++) {
+                boolean reached = false;
+                for (int p = 0; p < travelTimes.length; p++) {
+                    int seconds = travelTimes[p][destination];
+                    record[2 + p] = Integer.toString(seconds);
+                    if (seconds != UNREACHED) reached = true;
+                }
+                if (!reached) continue;
+                record[1] = destinations.getId(destination);
+                writer.writeRecord(record);
+            }
+        }
+
+        @Override
+        public void finish () throws IOException {
+            writer.flush();
+        }
+    }
+
+    /**
+     * Writes the number of destinations reachable from each origin within each cutoff at each percentile, a cumulative
+     * opportunities accessibility indicator where every destination counts as one opportunity.
+     */
+    private class AccessibilityWriter {
+
+        private final CsvWriter writer;
+
+        private final String[] record = new String[1 + task.percentiles.length * accessibilityCutoffsMinutes.length];
+
+        AccessibilityWriter (OutputStream out) throws IOException {
+            this.writer = new CsvWriter(out, ',', Charset.forName("UTF-8"));
+            String[] header = new String[record.length];
+            header[0] = "origin";
+            int column = 1;
+            for (double percentile : task.percentiles) {
+                for (int cutoffMinutes : accessibilityCutoffsMinutes) {
+                    header[column++] = percentileName(percentile) + "_" + cutoffMinutes + "min";
+                }
+            }
+            writer.writeRecord(header);
+        }
+
+        void writeRow (int origin, PointSetTimes travelTimes) throws IOException {
+            record[0] = origins.getId(origin);
+            int column = 1;
+            for (int p = 0; p < task.percentiles.length; p++) {
+                for (int cutoffMinutes : accessibilityCutoffsMinutes) {
+                    record[column++] = Integer.toString(travelTimes.countReachedWithin(p, cutoffMinutes * 60));
+                }
+            }
+            writer.writeRecord(record);
+        }
+
+        void finish () throws IOException {
+            writer.flush();
+        }
+    }
+
+    /** Counts completed origins from many threads, and periodically logs the rate and estimated time remaining. */
+    private static class Progress {
+
+        private final int nOrigins;
+
+        private final int nDestinations;
+
+        private final long startTime = System.currentTimeMillis();
+
+        private final AtomicInteger nComplete = new AtomicInteger();
+
+        private long lastLogTime = startTime;
+
+        Progress (int nOrigins, int nDestinations) {
+            this.nOrigins = nOrigins;
+            this.nDestinations = nDestinations;
+        }
+
+        void originComplete () {
+            int complete = nComplete.incrementAndGet();
+            long now = System.currentTimeMillis();
+            synchronized (this) {
+                if (now - lastLogTime < PROGRESS_INTERVAL_MILLIS || complete == nOrigins) return;
+                lastLogTime = now;
+            }
+            double originsPerSecond = complete * 1000d / (now - startTime);
+            LOG.info("{} / {} origins complete ({} per second), about {} minutes remaining.", complete, nOrigins,
+                    String.format("%.1f", originsPerSecond),
+                    String.format("%.1f", (nOrigins - complete) / originsPerSecond / 60));
+        }
+
+        void logSummary () {
+            double seconds = Math.max(1, System.currentTimeMillis() - startTime) / 1000d;
+            LOG.info("Computed {} origin-destination pairs in {} sec ({} origins, {} pairs per second).",
+                    (long) nOrigins * nDestinations, String.format("%.1f", seconds),
+                    String.format("%.1f", nOrigins / seconds),
+                    String.format("%.0f", (double) nOrigins * nDestinations / seconds));
+        }
+    }
+
+}
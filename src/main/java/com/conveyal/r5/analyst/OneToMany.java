@@ -6,16 +6,17 @@ import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Map;
 import java.util.List;
 import java.util.concurrent.TimeUnit;
 
 import com.conveyal.r5.analyst.cluster.AnalysisTask;
+import com.conveyal.r5.analyst.cluster.PointSetTimes;
 import com.conveyal.r5.transit.TransportNetwork;
 import com.csvreader.CsvReader;
+import com.google.common.io.LittleEndianDataOutputStream;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -37,28 +38,41 @@ public class OneToMany {
      * 35210121,43.7180928872,-79.7073758158
      * etc.
      *
+     * The travel times in seconds at the first percentile of the request are written to the given stream as a JSON
+     * object whose keys are the destination IDs, directly from the array of travel times rather than by way of a map.
+     * The /travelTimeMap endpoint requests the 0th percentile (the minimum travel time) unless the request body names
+     * its own percentiles.
+     *
+     * Alternatively the travel times at all the percentiles of the request are written in the binary format of
+     * PointSetTimes, little-endian like the travel time surfaces, with the points in the order of the CSV file.
+     *
      * @param request the AnalysisTask containing the parameters for the request
      * @param transportNetwork the pre-built network of streets and transit
-     * @param outputDir the directory where the list of destination lives and where output will be
-     * written to.
+     * @param out the stream the travel times will be written to. It is not closed.
+     * @param binary if true write all the percentiles in binary, otherwise write the first percentile as JSON.
      */
-    public static Map<String, Object> makeRequest(AnalysisTask request, TransportNetwork transportNetwork)
-            throws IOException {
+    public static void makeRequest(AnalysisTask request, TransportNetwork transportNetwork, OutputStream out,
+                                   boolean binary) throws IOException {
         // Fetch the prelinked set of one-to-many destinations that was read into the network in the build step.
         PointSetWithIds destinations = (PointSetWithIds) request.getDestinations(transportNetwork, null).get(0);
 
         // Execute the routing task.
         TravelTimeComputer computer = new TravelTimeComputer(request, transportNetwork);
-        HashMap<String, Object> idToTravelTime = new HashMap<>();
         long startTime = System.nanoTime();
-        Map<Integer, Integer> indexToTravelTime = computer.computeTravelTimes().pointIndexToTravelTime;
+        PointSetTimes travelTimes = computer.computeTravelTimes().pointSetTimes;
         long endTime = System.nanoTime();
         long duration = (endTime - startTime);
-        LOG.info("Took {} ms to run the routing task.", TimeUnit.MILLISECONDS.toSeconds(duration));
-        for (int i = 0; i < indexToTravelTime.size(); i++) {
-            idToTravelTime.put(destinations.points.get(i).getId(), Integer.valueOf(indexToTravelTime.get(i)));
+        LOG.info("Took {} ms to run the routing task.", TimeUnit.NANOSECONDS.toMillis(duration));
+        if (!travelTimes.anyPointReached()) {
+            LOG.warn("No destinations were reached. The origin may be outside the street network.");
+        }
+        if (binary) {
+            LittleEndianDataOutputStream dataOutput = new LittleEndianDataOutputStream(out);
+            travelTimes.writeToDataOutput(dataOutput);
+            dataOutput.flush();
+        } else {
+            travelTimes.writeJson(destinations, 0, out);
         }
-        return idToTravelTime;
     }
 
     public static PointSetWithIds readDestinations(File pointSetFile) throws IOException {
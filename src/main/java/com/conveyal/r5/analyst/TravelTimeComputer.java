@@ -10,6 +10,7 @@ import com.conveyal.r5.profile.PerTargetPropagater;
 import com.conveyal.r5.profile.StreetMode;
 import com.conveyal.r5.streets.LinkedPointSet;
 import com.conveyal.r5.streets.StreetRouter;
+import com.conveyal.r5.streets.StreetRouterPool;
 import com.conveyal.r5.transit.TransportNetwork;
 import gnu.trove.iterator.TIntIntIterator;
 import gnu.trove.map.TIntIntMap;
@@ -68,31 +69,36 @@ public class TravelTimeComputer {
         PointSet destinations = destinationList.get(0);
 
         // TODO Create and encapsulate this within the propagator.
-        TravelTimeReducer travelTimeReducer = new TravelTimeReducer(request);
+        TravelTimeReducer travelTimeReducer = new TravelTimeReducer(request, destinations);
 
         // Attempt to set the origin point before progressing any further.
         // This allows us to skip routing calculations if the network is entirely inaccessible.
         // In the CAR_PARK case this StreetRouter will be replaced but this still serves to
         // bypass unnecessary computation.
         // The request must be provided to the StreetRouter before setting the origin point.
-        StreetRouter sr = new StreetRouter(network.streetLayer);
-        sr.profileRequest = request;
-        sr.streetMode = accessMode;
-        boolean foundOriginPoint = sr.setOrigin(request.fromLat, request.fromLon);
-        if (!foundOriginPoint) {
-            // Short circuit around routing and propagation. Calling finish() before streaming in
-            // any travel times to destinations is designed to produce the right result.
-            LOG.info("Origin point was outside the transport network. Skipping routing and " +
-                "propagation, and returning default result.");
-            return travelTimeReducer.finish();
-        }
+        // Regional analyses perform one of these searches per origin, so reuse routers rather than allocating new ones.
+        StreetRouter sr = StreetRouterPool.acquire(network.streetLayer);
+        try {
+            sr.profileRequest = request;
+            sr.streetMode = accessMode;
+            boolean foundOriginPoint = sr.setOrigin(request.fromLat, request.fromLon);
+            if (!foundOriginPoint) {
+                // Short circuit around routing and propagation. Calling finish() before streaming in
+                // any travel times to destinations is designed to produce the right result.
+                LOG.info("Origin point was outside the transport network. Skipping routing and " +
+                    "propagation, and returning default result.");
+                return travelTimeReducer.finish();
+            }
 
-        // First we will find travel times to all destinations reachable without using transit.
-        // Simultaneously we will find stations that allow access to the transit network.
-        if (request.transitModes.isEmpty()) {
-            return nonTransitRoute(accessMode, directMode, travelTimeReducer, sr, destinations);
-        } else {
-            return transitRoute(accessMode, egressMode, travelTimeReducer, sr, destinations);
+            // First we will find travel times to all destinations reachable without using transit.
+            // Simultaneously we will find stations that allow access to the transit network.
+            if (request.transitModes.isEmpty()) {
+                return nonTransitRoute(accessMode, directMode, travelTimeReducer, sr, destinations);
+            } else {
+                return transitRoute(accessMode, egressMode, travelTimeReducer, sr, destinations);
+            }
+        } finally {
+            StreetRouterPool.release(sr);
         }
     }
 
@@ -304,14 +310,17 @@ public class TravelTimeComputer {
             // breakdown?
             worker.retainPaths = true;
         }
+        // Single point requests are latency-sensitive and run one at a time, so spread the Monte Carlo draws across
+        // cores. Regional requests already keep every core busy with separate origins.
+        worker.parallelMonteCarloDraws = request.isHighPriority();
 
         // Run the main RAPTOR algorithm to find paths and travel times to all stops in
         // the network.
-        // Returns the total travel times as a 2D array of
-        // [searchIteration][destinationStopIndex].
+        // Returns the total travel times as a flat stop-major array, indexed by
+        // destinationStopIndex * nIterations + searchIteration.
         // Additional detailed path information is retained in the FastRaptorWorker
         // after routing.
-        int[][] transitTravelTimesToStops = worker.route();
+        int[] transitTravelTimesToStops = worker.route();
 
         PerTargetPropagater perTargetPropagater = new PerTargetPropagater(egressModeLinkedDestinations, request,
                 transitTravelTimesToStops, nonTransitTravelTimesToDestinations);
@@ -320,6 +329,8 @@ public class TravelTimeComputer {
         // PerTargetPropagator
         // because in the non-transit case we call the reducer directly (see above).
         perTargetPropagater.travelTimeReducer = travelTimeReducer;
+        // As with the Monte Carlo draws above, only single point requests spread propagation across cores.
+        perTargetPropagater.parallelPropagation = request.isHighPriority();
 
         if (worker.retainPaths) {
             perTargetPropagater.pathsToStopsForIteration = worker.pathsPerIteration;
@@ -3,6 +3,7 @@ package com.conveyal.r5.analyst;
 import com.beust.jcommander.ParameterException;
 import com.conveyal.r5.OneOriginResult;
 import com.conveyal.r5.analyst.cluster.AnalysisTask;
+import com.conveyal.r5.analyst.cluster.PointSetTimes;
 import com.conveyal.r5.analyst.cluster.RegionalTask;
 import com.conveyal.r5.analyst.cluster.TimeGrid;
 import com.conveyal.r5.analyst.cluster.TravelTimeSurfaceTask;
@@ -10,9 +11,10 @@ import com.conveyal.r5.profile.FastRaptorWorker;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Map;
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.List;
 
 /**
  * Given a bunch of travel times from an origin to a single destination grid cell, this collapses that long list into a
@@ -26,17 +28,26 @@ public class TravelTimeReducer {
     /** The task used to create travel times being reduced herein. */
     private int maxTripDurationMinutes;
 
-    /** Travel time results for a list of discrete destination points. This is a Map and not a List
-     * in order to preserve the future possibility that we might use the point id as the key
-     * instead of an index.
+    /**
+     * Travel time results for a list of discrete destination points, indexed like the points. Unlike the time grid
+     * this holds each percentile in seconds rather than minutes, as these are used to build travel time matrices.
      */
-    private Map<Integer, Integer> pointToTime = null;
+    private PointSetTimes pointSetTimes = null;
 
     /** Travel time results for a whole grid of destinations. May be null if we're only recording accessibility. */
     private TimeGrid timeGrid = null;
 
     private AccessibilityResult accessibilityResult = null;
 
+    /**
+     * Targets may be handled by several threads at once during propagation. So that they don't contend for the same
+     * bins, each thread accumulates opportunities into its own AccessibilityResult, and finish() adds them all into
+     * accessibilityResult. The list holds every thread's result so that they can be found again.
+     */
+    private ThreadLocal<AccessibilityResult> accessibilityForThread = null;
+
+    private final List<AccessibilityResult> accessibilityForThreads = Collections.synchronizedList(new ArrayList<>());
+
     private final boolean retainTravelTimes;
 
     private final boolean calculateAccessibility;
@@ -49,15 +60,36 @@ public class TravelTimeReducer {
 
     private final int timesPerDestination;
 
+    /** The width of the destination grid that targets are numbered within, when calculating accessibility. */
+    private int destinationsWidth;
+
+    /** The position of each opportunity grid within the destination grid, when calculating accessibility. */
+    private int[] gridOffsetX, gridOffsetY;
+
+    /**
+     * The number of one-minute histogram bins used to extract percentiles without sorting. Travel times longer than
+     * this (other than UNREACHED) are handled by falling back on a sort. Propagation is normally cut off at 120 minutes.
+     */
+    private final int nHistogramMinutes;
+
+    /**
+     * Scratch space for extractPercentilesFromHistogram, reused for every target. Targets may be handled by several
+     * threads at once during propagation, so each thread has its own histogram.
+     */
+    private final ThreadLocal<int[]> histogramForThread;
+
     /**
      * Knowing the number of times that will be provided per destination and holding that constant allows us to
      * pre-compute and cache the positions within the sorted array at which percentiles will be found.
+     * @param destinations the destinations whose travel times will be recorded, used to size the results.
      */
-    public TravelTimeReducer (AnalysisTask task) {
+    public TravelTimeReducer (AnalysisTask task, PointSet destinations) {
 
         this.maxTripDurationMinutes = task.maxTripDurationMinutes;
         this.timesPerDestination = task.getMonteCarloDrawsPerMinute() * task.getTimeWindowLengthMinutes();
         this.nPercentiles = task.percentiles.length;
+        this.nHistogramMinutes = Math.max(task.maxTripDurationMinutes, 120) + 1;
+        this.histogramForThread = ThreadLocal.withInitial(() -> new int[nHistogramMinutes]);
 
         // We pre-compute the indexes at which we'll find each percentile in a sorted list of the given length.
         this.percentileIndexes = new int[nPercentiles];
@@ -72,18 +104,42 @@ public class TravelTimeReducer {
             if (isGridTask) {
                 timeGrid = new TimeGrid(task.zoom, task.west, task.north, task.width, task.height, task.percentiles.length);
             } else {
-                pointToTime = new HashMap<Integer, Integer>();
+                pointSetTimes = new PointSetTimes(destinations.featureCount(), nPercentiles);
             }
         }
 
         // Decide whether we want to calculate cumulative opportunities accessibility indicators for this origin.
-        calculateAccessibility = task instanceof RegionalTask && ((RegionalTask)task).gridData != null;
+        calculateAccessibility = task instanceof RegionalTask && ((RegionalTask)task).destinationGrids != null;
         if (calculateAccessibility) {
+            RegionalTask regionalTask = (RegionalTask) task;
+            int[] cutoffsMinutes = regionalTask.getCutoffsMinutesOrDefault();
+            for (int cutoffMinutes : cutoffsMinutes) {
+                if (cutoffMinutes > maxTripDurationMinutes) {
+                    throw new IllegalArgumentException("Accessibility cutoffs cannot exceed the maximum trip duration.");
+                }
+            }
             accessibilityResult = new AccessibilityResult(
-                new Grid[] {((RegionalTask)task).gridData},
-                new int[]{task.maxTripDurationMinutes},
+                regionalTask.destinationGrids,
+                cutoffsMinutes,
                 task.percentiles
             );
+            accessibilityForThread = ThreadLocal.withInitial(() -> {
+                AccessibilityResult result =
+                        new AccessibilityResult(regionalTask.destinationGrids, cutoffsMinutes, task.percentiles);
+                accessibilityForThreads.add(result);
+                return result;
+            });
+            // Targets are numbered within the destination point set, which covers all the grids. Find the position
+            // of each grid within it, so that we can find the cell of each grid at each target.
+            WebMercatorGridPointSet destinationGrid = (WebMercatorGridPointSet) destinations;
+            destinationsWidth = destinationGrid.width;
+            int nGrids = regionalTask.destinationGrids.length;
+            gridOffsetX = new int[nGrids];
+            gridOffsetY = new int[nGrids];
+            for (int g = 0; g < nGrids; g++) {
+                gridOffsetX[g] = regionalTask.destinationGrids[g].west - destinationGrid.west;
+                gridOffsetY[g] = regionalTask.destinationGrids[g].north - destinationGrid.north;
+            }
         }
     }
 
@@ -112,15 +168,18 @@ public class TravelTimeReducer {
     /**
      * Given a list of travel times of the expected length, extract the requested percentiles. Either the extracted
      * percentiles or the resulting accessibility values (or both) are then stored.
-     * WARNING: this method destructively sorts the supplied times in place.
-     * Their positions in the array will no longer correspond to the raptor iterations that produced them.
-     * @param timesSeconds which will be destructively sorted in place to extract percentiles.
+     * WARNING: this method may destructively sort the supplied times in place.
+     * Their positions in the array may no longer correspond to the raptor iterations that produced them.
+     * This may be called from several threads at once, as long as each call is for a different target.
+     * @param timesSeconds which may be destructively sorted in place to extract percentiles.
      * @return the extracted travel times, in minutes. This is a hack to enable scoring paths in the caller.
      */
     public int[] recordTravelTimesForTarget (int target, int[] timesSeconds) {
         // TODO factor out getPercentiles method for clarity
         // Sort the times at each target and read off percentiles at the pre-calculated indexes.
         int[] percentileTravelTimesMinutes = new int[nPercentiles];
+        // Only needed when recording travel times to a point set.
+        int[] percentileTravelTimesSeconds = null;
         if (timesSeconds.length == 1) {
             // Handle results with no variation, e.g. from walking, biking, or driving.
             // TODO instead of conditionals maybe overload this function to have one version that takes a single int time and wraps this array function.
@@ -128,22 +187,25 @@ public class TravelTimeReducer {
             int travelTimeMinutes = (travelTimeSeconds == FastRaptorWorker.UNREACHED) ?
                     FastRaptorWorker.UNREACHED : travelTimeSeconds / 60;
             Arrays.fill(percentileTravelTimesMinutes, travelTimeMinutes);
+            if (pointSetTimes != null) {
+                percentileTravelTimesSeconds = new int[nPercentiles];
+                Arrays.fill(percentileTravelTimesSeconds, travelTimeSeconds);
+            }
         } else if (timesSeconds.length == timesPerDestination) {
-            // Instead of general purpose sort this could be done by performing a counting sort on the times,
-            // converting them to minutes in the process and reusing the small histogram array (120 elements) which
-            // should remain largely in processor cache. That's a lot of division though. Would need to be profiled.
-            Arrays.sort(timesSeconds);
-            for (int p = 0; p < nPercentiles; p++) {
-                int timeSeconds = timesSeconds[percentileIndexes[p]];
-                if (timeSeconds == FastRaptorWorker.UNREACHED) {
-                    percentileTravelTimesMinutes[p] = FastRaptorWorker.UNREACHED;
-                } else {
-                    // Int divide will floor; this is correct because value 0 has travel times of up to one minute, etc.
-                    // This means that anything less than a cutoff of (say) 60 minutes (in seconds) will have value 59,
-                    // which is what we want. But maybe converting to minutes before we actually export a binary format is tying
-                    // the backend and frontend (which makes use of UInt8 typed arrays) too closely.
-                    int timeMinutes = timeSeconds / 60;
-                    percentileTravelTimesMinutes[p] = timeMinutes;
+            if (pointSetTimes != null) {
+                // The histogram only yields whole minutes, so sort to get the percentiles in seconds. The percentiles
+                // in minutes (for any accessibility calculation) are the same as extractPercentilesBySorting finds.
+                percentileTravelTimesSeconds = new int[nPercentiles];
+                extractPercentileSecondsBySorting(timesSeconds, percentileIndexes, percentileTravelTimesSeconds);
+                for (int p = 0; p < nPercentiles; p++) {
+                    int timeSeconds = percentileTravelTimesSeconds[p];
+                    percentileTravelTimesMinutes[p] = timeSeconds == FastRaptorWorker.UNREACHED ?
+                            FastRaptorWorker.UNREACHED : timeSeconds / 60;
+                }
+            } else {
+                int[] histogram = histogramForThread.get();
+                if (!extractPercentilesFromHistogram(timesSeconds, percentileIndexes, histogram, percentileTravelTimesMinutes)) {
+                    extractPercentilesBySorting(timesSeconds, percentileIndexes, percentileTravelTimesMinutes);
                 }
             }
         } else {
@@ -153,32 +215,128 @@ public class TravelTimeReducer {
             if (isGridTask) {
                 timeGrid.setTarget(target, percentileTravelTimesMinutes);
             } else {
-                pointToTime.put(target, timesSeconds[0]);
+                // Each target has its own slot in the point set times, so this needs no synchronization.
+                pointSetTimes.setTarget(target, percentileTravelTimesSeconds);
             }
         }
         if (calculateAccessibility) {
-            // This x/y addressing can only work with one grid at a time,
-            // needs to be made absolute to handle multiple different extents.
-            Grid grid = accessibilityResult.grids[0];
-            int x = target % grid.width;
-            int y = target / grid.width;
-            double amount = grid.grid[x][y];
-            for (int p = 0; p < nPercentiles; p++) {
-                if (percentileTravelTimesMinutes[p] < maxTripDurationMinutes) { // TODO less than or equal?
-                    accessibilityResult.incrementAccessibility(0, 0, p, amount);
+            // Accumulate the opportunities at this target on every grid into every percentile. The cutoffs are applied
+            // when the accessibility values are read, so adding cutoffs does not add work here.
+            int x = target % destinationsWidth;
+            int y = target / destinationsWidth;
+            AccessibilityResult accessibility = accessibilityForThread.get();
+            for (int g = 0; g < accessibility.grids.length; g++) {
+                Grid grid = accessibility.grids[g];
+                int gridX = x - gridOffsetX[g];
+                int gridY = y - gridOffsetY[g];
+                if (gridX < 0 || gridX >= grid.width || gridY < 0 || gridY >= grid.height) continue;
+                double amount = grid.grid[gridX][gridY];
+                if (amount == 0) continue;
+                for (int p = 0; p < nPercentiles; p++) {
+                    accessibility.recordOpportunities(g, p, percentileTravelTimesMinutes[p], amount);
                 }
             }
         }
         return percentileTravelTimesMinutes;
     }
 
+    /**
+     * Sort the times and read off the percentiles at the given indexes, in seconds.
+     * @param timesSeconds which will be destructively sorted in place.
+     */
+    static void extractPercentileSecondsBySorting (int[] timesSeconds, int[] percentileIndexes,
+                                                   int[] percentilesSeconds) {
+        Arrays.sort(timesSeconds);
+        for (int p = 0; p < percentileIndexes.length; p++) {
+            percentilesSeconds[p] = timesSeconds[percentileIndexes[p]];
+        }
+    }
+
+    /**
+     * Sort the times and read off the percentiles at the given indexes, converting them to minutes.
+     * @param timesSeconds which will be destructively sorted in place.
+     */
+    static void extractPercentilesBySorting (int[] timesSeconds, int[] percentileIndexes, int[] percentilesMinutes) {
+        Arrays.sort(timesSeconds);
+        for (int p = 0; p < percentileIndexes.length; p++) {
+            int timeSeconds = timesSeconds[percentileIndexes[p]];
+            if (timeSeconds == FastRaptorWorker.UNREACHED) {
+                percentilesMinutes[p] = FastRaptorWorker.UNREACHED;
+            } else {
+                // Int divide will floor; this is correct because value 0 has travel times of up to one minute, etc.
+                // This means that anything less than a cutoff of (say) 60 minutes (in seconds) will have value 59,
+                // which is what we want. But maybe converting to minutes before we actually export a binary format is tying
+                // the backend and frontend (which makes use of UInt8 typed arrays) too closely.
+                int timeMinutes = timeSeconds / 60;
+                percentilesMinutes[p] = timeMinutes;
+            }
+        }
+    }
+
+    /**
+     * Find the same percentiles as extractPercentilesBySorting with a counting sort on whole minutes, which is linear
+     * in the number of times rather than N log N. Converting to minutes preserves the order of the times, so the
+     * minute bin containing the Nth smallest time is exactly the Nth smallest time converted to minutes. UNREACHED
+     * times are counted separately as they sort after all others. The times are not modified.
+     *
+     * @param histogram an array of zeros, one per minute, which will be used as scratch space. It is cleared again
+     *                  before returning, so the same array can be reused for the next target.
+     * @return false if any reachable time does not fall within the histogram, in which case the caller must fall back
+     *         on sorting and percentilesMinutes is left in an undefined state.
+     */
+    static boolean extractPercentilesFromHistogram (int[] timesSeconds, int[] percentileIndexes, int[] histogram,
+                                                    int[] percentilesMinutes) {
+        try {
+            return extractPercentilesFromFilledHistogram(timesSeconds, percentileIndexes, histogram, percentilesMinutes);
+        } finally {
+            Arrays.fill(histogram, 0);
+        }
+    }
+
+    private static boolean extractPercentilesFromFilledHistogram (int[] timesSeconds, int[] percentileIndexes,
+                                                                  int[] histogram, int[] percentilesMinutes) {
+        int nUnreached = 0;
+        for (int timeSeconds : timesSeconds) {
+            if (timeSeconds == FastRaptorWorker.UNREACHED) {
+                nUnreached++;
+                continue;
+            }
+            int timeMinutes = timeSeconds / 60;
+            if (timeMinutes < 0 || timeMinutes >= histogram.length) return false;
+            histogram[timeMinutes]++;
+        }
+        if (nUnreached == timesSeconds.length) {
+            // Very common for destinations far from the origin, no need to scan the histogram.
+            Arrays.fill(percentilesMinutes, FastRaptorWorker.UNREACHED);
+            return true;
+        }
+        for (int p = 0; p < percentileIndexes.length; p++) {
+            int index = percentileIndexes[p];
+            if (index >= timesSeconds.length - nUnreached) {
+                percentilesMinutes[p] = FastRaptorWorker.UNREACHED;
+                continue;
+            }
+            // Find the first minute at which the cumulative count exceeds the index.
+            int cumulativeCount = 0;
+            int minute = 0;
+            while ((cumulativeCount += histogram[minute]) <= index) minute++;
+            percentilesMinutes[p] = minute;
+        }
+        return true;
+    }
+
     /**
      * If no travel times to destinations have been streamed in by calling recordTravelTimesForTarget, the
      * TimeGrid will have a buffer full of UNREACHED. This allows shortcutting around
      * routing and propagation when the origin point is not connected to the street network.
+     * This must only be called once all the targets have been recorded.
      */
     public OneOriginResult finish () {
-        return new OneOriginResult(timeGrid, accessibilityResult, pointToTime);
+        synchronized (accessibilityForThreads) {
+            for (AccessibilityResult accessibility : accessibilityForThreads) accessibilityResult.add(accessibility);
+            accessibilityForThreads.clear();
+        }
+        return new OneOriginResult(timeGrid, accessibilityResult, pointSetTimes);
     }
 
 }
@@ -212,7 +212,10 @@ public class AnalystWorker implements Runnable {
         boolean workOffline = Boolean.parseBoolean(config.getProperty("work-offline", "false"));
         String graphsBucket = workOffline ? null : config.getProperty("graphs-bucket");
         String graphDirectory = config.getProperty("cache-dir", "cache/graphs");
-        TransportNetworkCache cache = new TransportNetworkCache(graphsBucket, new File(graphDirectory));
+        String cacheMegabytes = config.getProperty("network-cache-megabytes");
+        TransportNetworkCache cache = cacheMegabytes == null ?
+                new TransportNetworkCache(graphsBucket, new File(graphDirectory)) :
+                new TransportNetworkCache(graphsBucket, new File(graphDirectory), Integer.parseInt(cacheMegabytes));
         return new AnalystWorker(config, cache);
     }
 
@@ -410,6 +413,12 @@ public class AnalystWorker implements Runnable {
             }
             if (random.nextInt(100) >= dryRunFailureRate) {
                 RegionalWorkResult workResult = new RegionalWorkResult(request.jobId, request.taskId, 1, 1, 1);
+                if (request instanceof RegionalTask && !request.makeStaticSite) {
+                    // Match the dimensions the assembler expects for this job.
+                    RegionalTask regionalTask = (RegionalTask) request;
+                    workResult = new RegionalWorkResult(request.jobId, request.taskId, regionalTask.getGridCount(),
+                            request.percentiles.length, regionalTask.getCutoffsMinutesOrDefault().length);
+                }
                 synchronized (workResults) {
                     workResults.add(workResult);
                 }
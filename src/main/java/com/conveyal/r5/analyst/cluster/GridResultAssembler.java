@@ -2,23 +2,24 @@ package com.conveyal.r5.analyst.cluster;
 
 import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.AmazonS3Client;
-import com.conveyal.r5.analyst.LittleEndianIntOutputStream;
-import com.google.common.io.ByteStreams;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
-import java.util.BitSet;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.zip.GZIPOutputStream;
 
 import static com.conveyal.r5.common.Util.human;
@@ -42,6 +43,15 @@ import static com.conveyal.r5.common.Util.human;
  * (4 byte int) height of the grid in pixels
  * (4 byte int) number of values per pixel
  * (repeated 4-byte int) values of each pixel in row major order. Values within a given pixel are delta coded.
+ *
+ * A regional analysis may compute accessibility to several destination grids, at several percentiles of travel time
+ * and several travel time cutoffs. Each combination of these is assembled into a separate access grid, or channel.
+ *
+ * Many threads may handle results at once. Each channel is a memory-mapped file, and each origin has its own place in
+ * every channel, so results are written without any lock. Which origins have been received is tracked with atomic
+ * bit sets. Origins are usually completed roughly in order, so whenever a block of origins at the start of the grid is
+ * complete it is compressed right away, leaving only the last part of each access grid to compress once the last
+ * result arrives.
  */
 public class GridResultAssembler {
 
@@ -53,28 +63,33 @@ public class GridResultAssembler {
     /** The offset to get to the data section of the access grid file. */
     public static final long HEADER_LENGTH_BYTES = 9 * Integer.BYTES;
 
+    /** Compress completed origins once there are at least this many that have not yet been compressed. */
+    private static final int COMPRESSION_BLOCK_ORIGINS = 16 * 1024;
+
     private static final AmazonS3 s3 = new AmazonS3Client();
 
     public final AnalysisTask request;
 
-    private File bufferFile;
+    /** The number of destination grids, percentiles and cutoffs in each result. */
+    private final int nGrids, nPercentiles, nCutoffs;
 
-    private RandomAccessFile randomAccessFile;
+    /** An access grid for each combination of destination grid, percentile and cutoff, in channelIndex order. */
+    private final Channel[] channels;
 
-    /** TODO use Java NewIO file channel for native byte order output to our output file. */
-//    private FileChannel outputFileChannel;
-
-    private boolean error = false;
+    private volatile boolean error = false;
 
     /**
      * The number of results received for unique origin points (i.e. two results for the same origin should only
-     * increment this once). It does not need to be an atomic int as it's incremented in a synchronized block.
+     * increment this once).
      */
-    public int nComplete = 0;
+    public final AtomicInteger nComplete = new AtomicInteger();
 
-    // We need to keep track of which specific origins are completed, to avoid double counting if we receive more than
-    // one result for the same origin.
-    private BitSet originsReceived;
+    /**
+     * Bit sets of origins for which a result has been accepted, and of those for which all the values have also been
+     * written. The first avoids double counting if we receive more than one result for the same origin, and the second
+     * tells the compressor which values are ready.
+     */
+    private final AtomicLongArray originsClaimed, originsWritten;
 
     /** Total number of results expected. */
     public int nTotal;
@@ -82,49 +97,56 @@ public class GridResultAssembler {
     /** The bucket on S3 to which the final result will be written. */
     public final String outputBucket;
 
+    /** Held while compressing, which is done by one thread at a time. */
+    private final ReentrantLock compressionLock = new ReentrantLock();
+
+    /** The number of origins at the start of the grid that are all written. Guarded by compressionLock. */
+    private int nContiguousOrigins = 0;
+
+    /** The number of origins at the start of the grid that have been compressed. Guarded by compressionLock. */
+    private int nCompressedOrigins = 0;
+
+    private final AtomicBoolean finished = new AtomicBoolean(false);
+
+    /**
+     * Set by terminate() before the channels are deleted. Once set, no more results are written and nothing is
+     * compressed or uploaded. Checked again under compressionLock, which terminate() holds while deleting.
+     */
+    private volatile boolean terminated = false;
+
     /**
      * Construct an assembler for a single regional analysis result grid.
-     * This also creates the on-disk scratch buffer into which the results from the workers will be accumulated.
+     * This also creates the on-disk scratch buffers into which the results from the workers will be accumulated.
      */
     public GridResultAssembler (AnalysisTask request, String outputBucket) {
         this.request = request;
         this.outputBucket = outputBucket;
         nTotal = request.width * request.height;
-        originsReceived = new BitSet(nTotal);
-        LOG.info("Expecting results for regional analysis with width {}, height {}, 1 value per origin.",
-                request.width, request.height);
+        originsClaimed = new AtomicLongArray((nTotal + 63) / 64);
+        originsWritten = new AtomicLongArray((nTotal + 63) / 64);
+        if (request instanceof RegionalTask && !request.makeStaticSite) {
+            RegionalTask regionalTask = (RegionalTask) request;
+            nGrids = regionalTask.getGridCount();
+            nPercentiles = request.percentiles.length;
+            nCutoffs = regionalTask.getCutoffsMinutesOrDefault().length;
+        } else {
+            // Static sites report an empty 1x1x1 result for each origin just to signal progress.
+            nGrids = nPercentiles = nCutoffs = 1;
+        }
+        int nChannels = nGrids * nPercentiles * nCutoffs;
+        LOG.info("Expecting results for regional analysis with width {}, height {}, {} grids, {} percentiles and " +
+                "{} cutoffs.", request.width, request.height, nGrids, nPercentiles, nCutoffs);
 
-        long outputFileSizeBytes = request.width * request.height * Integer.BYTES;
-        LOG.info("Creating temporary file to store regional analysis results, size is {}.",
+        long outputFileSizeBytes = HEADER_LENGTH_BYTES + (long) nTotal * Integer.BYTES;
+        LOG.info("Creating {} temporary files to store regional analysis results, size is {} each.", nChannels,
                 human(outputFileSizeBytes, "B"));
+        channels = new Channel[nChannels];
         try {
-            bufferFile = File.createTempFile(request.jobId, ".access_grid");
-            // On unexpected server shutdown, these files should be deleted.
-            // We could attempt to recover from shutdowns but that will take a lot of changes and persisted data.
-            bufferFile.deleteOnExit();
-
-            // Write the access grid file header
-            FileOutputStream fos = new FileOutputStream(bufferFile);
-            LittleEndianIntOutputStream data = new LittleEndianIntOutputStream(fos);
-            data.writeAscii("ACCESSGR");
-            data.writeInt(ACCESS_GRID_VERSION);
-            data.writeInt(request.zoom);
-            data.writeInt(request.west);
-            data.writeInt(request.north);
-            data.writeInt(request.width);
-            data.writeInt(request.height);
-            data.writeInt(1); // Hard-wired to one bootstrap replication
-            data.close();
-
-            // We used to fill the file with zeros here, to "overwrite anything that might be in the file already"
-            // according to a code comment. However that creates a burst of up to 1GB of disk activity, which exhausts
-            // our IOPS budget on cloud servers with network storage. That then causes the server to fall behind in
-            // processing incoming results.
-            // This is a newly created temp file, so setting it to a larger size should just create a sparse file
-            // full of blocks of zeros (at least on Linux, I don't know what it does on Windows).
-            this.randomAccessFile = new RandomAccessFile(bufferFile, "rw");
-            randomAccessFile.setLength(outputFileSizeBytes);
-            LOG.info("Created temporary file of {} to accumulate results from workers.", human(randomAccessFile.length(), "B"));
+            if (outputFileSizeBytes > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("Access grid size in bytes exceeds 31-bit addressable space.");
+            }
+            for (int c = 0; c < nChannels; c++) channels[c] = new Channel((int) outputFileSizeBytes);
+            LOG.info("Created temporary files to accumulate results from workers.");
         } catch (Exception e) {
             error = true;
             LOG.error("Exception while creating regional access grid: " + e.toString());
@@ -132,34 +154,177 @@ public class GridResultAssembler {
     }
 
     /**
-     * Gzip the access grid and upload it to S3.
+     * One access grid, held in a memory-mapped temporary file while results arrive, and compressed into a second
+     * temporary file from which it will be uploaded.
      */
-    protected synchronized void finish () {
-        LOG.info("Finished receiving data for regional analysis {}, uploading to S3", request.jobId);
-        try {
-            File gzippedGridFile = File.createTempFile(request.jobId, ".access_grid.gz");
-            randomAccessFile.close();
+    private class Channel {
 
-            // There's probably a more elegant way to do this with NIO and without closing the buffer
-            InputStream is = new BufferedInputStream(new FileInputStream(bufferFile));
-            OutputStream os = new GZIPOutputStream(new BufferedOutputStream(new FileOutputStream(gzippedGridFile)));
-            ByteStreams.copy(is, os);
-            is.close();
-            os.close();
+        final File bufferFile;
 
+        final FileChannel fileChannel;
+
+        final MappedByteBuffer buffer;
+
+        final File gzippedFile;
+
+        final OutputStream gzippedOut;
+
+        /** The number of bytes at the start of the buffer that have been compressed. */
+        int nCompressedBytes = 0;
+
+        Channel (int sizeBytes) throws IOException {
+            bufferFile = File.createTempFile(request.jobId, ".access_grid");
+            // On unexpected server shutdown, these files should be deleted.
+            // We could attempt to recover from shutdowns but that will take a lot of changes and persisted data.
+            bufferFile.deleteOnExit();
+            gzippedFile = File.createTempFile(request.jobId, ".access_grid.gz");
+            gzippedFile.deleteOnExit();
+            // Mapping a newly created temp file beyond its end extends it, which should just create a sparse file full
+            // of blocks of zeros (at least on Linux). We used to fill the file with zeros, but that creates a burst
+            // of up to 1GB of disk activity, which exhausts our IOPS budget on cloud servers with network storage.
+            fileChannel = FileChannel.open(bufferFile.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+            buffer = fileChannel.map(FileChannel.MapMode.READ_WRITE, 0, sizeBytes);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            gzippedOut = new GZIPOutputStream(new BufferedOutputStream(new FileOutputStream(gzippedFile)));
+
+            // Write the access grid file header
+            ByteBuffer header = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+            header.put("ACCESSGR".getBytes(StandardCharsets.US_ASCII));
+            header.putInt(ACCESS_GRID_VERSION);
+            header.putInt(request.zoom);
+            header.putInt(request.west);
+            header.putInt(request.north);
+            header.putInt(request.width);
+            header.putInt(request.height);
+            header.putInt(1); // Hard-wired to one bootstrap replication
+        }
+
+        /** Absolute puts don't change the state of the buffer, so threads can write different origins at once. */
+        void write (int originIndex, int value) {
+            buffer.putInt((int) HEADER_LENGTH_BYTES + originIndex * Integer.BYTES, value);
+        }
+
+        /** Compress the buffer from the end of the last compressed part up to the given offset. */
+        void compress (int endBytes, byte[] chunk) throws IOException {
+            ByteBuffer source = buffer.duplicate();
+            source.position(nCompressedBytes);
+            source.limit(endBytes);
+            while (source.hasRemaining()) {
+                int length = Math.min(chunk.length, source.remaining());
+                source.get(chunk, 0, length);
+                gzippedOut.write(chunk, 0, length);
+            }
+            nCompressedBytes = endBytes;
+        }
+
+        void upload (String key) throws IOException {
+            gzippedOut.close();
             LOG.info("GZIP compression reduced regional analysis {} from {} to {} ({}x compression)",
-                    request.jobId,
-                    human(bufferFile.length(), "B"),
-                    human(gzippedGridFile.length(), "B"),
-                    (double) bufferFile.length() / gzippedGridFile.length()
+                    key,
+                    human(buffer.capacity(), "B"),
+                    human(gzippedFile.length(), "B"),
+                    (double) buffer.capacity() / gzippedFile.length()
             );
-            // TODO use generic filePersistence instead of specific S3 client
-            s3.putObject(outputBucket, String.format("%s.access", request.jobId), gzippedGridFile);
-            // Clear temporary files off of the disk because the gzipped version is now on S3.
+            GridResultAssembler.this.upload(key, gzippedFile);
+        }
+
+        /**
+         * Close and delete the files. The mapping itself is released when the buffer is garbage collected.
+         * This may be called more than once.
+         */
+        void delete () throws IOException {
+            gzippedOut.close();
+            fileChannel.close();
             bufferFile.delete();
-            gzippedGridFile.delete();
+            gzippedFile.delete();
+        }
+    }
+
+    /** @return the position of the access grid for the given grid, percentile and cutoff in channels. */
+    private int channelIndex (int gridIndex, int percentileIndex, int cutoffIndex) {
+        return (gridIndex * nPercentiles + percentileIndex) * nCutoffs + cutoffIndex;
+    }
+
+    /**
+     * @return the name on S3 of the access grid for the given grid, percentile and cutoff. An analysis with only one
+     *         of each has a single access grid named after the job as it always has been.
+     */
+    private String outputKey (int gridIndex, int percentileIndex, int cutoffIndex) {
+        if (channels.length == 1) return String.format("%s.access", request.jobId);
+        return String.format("%s_G%d_P%d_C%d.access", request.jobId, gridIndex, percentileIndex, cutoffIndex);
+    }
+
+    /** Upload one compressed access grid to the output bucket. Overridden in tests to capture the output. */
+    protected void upload (String key, File file) throws IOException {
+        // TODO use generic filePersistence instead of specific S3 client
+        s3.putObject(outputBucket, key, file);
+    }
+
+    /**
+     * Compress the remainder of the access grids and upload them to S3. Whether or not the uploads succeed, the
+     * temporary files of all the channels are deleted afterward.
+     */
+    protected void finish () {
+        if (terminated || !finished.compareAndSet(false, true)) return;
+        LOG.info("Finished receiving data for regional analysis {}, uploading to S3", request.jobId);
+        // Hold the lock through the upload so that terminate() can't delete the channels partway through.
+        compressionLock.lock();
+        try {
+            if (terminated) return;
+            compressCompletedOrigins(true);
+            for (int g = 0; g < nGrids; g++) {
+                for (int p = 0; p < nPercentiles; p++) {
+                    for (int c = 0; c < nCutoffs; c++) {
+                        channels[channelIndex(g, p, c)].upload(outputKey(g, p, c));
+                    }
+                }
+            }
         } catch (Exception e) {
+            error = true;
             LOG.error("Error uploading results of regional analysis {}", request.jobId, e);
+        } finally {
+            try {
+                deleteChannels();
+            } finally {
+                compressionLock.unlock();
+            }
+        }
+    }
+
+    /** Delete the temporary files of every channel, continuing past any that fail. Call with compressionLock held. */
+    private void deleteChannels () {
+        for (Channel channel : channels) {
+            if (channel == null) continue;
+            try {
+                channel.delete();
+            } catch (IOException e) {
+                LOG.error("Error deleting temporary files of regional analysis {}", request.jobId, e);
+            }
+        }
+    }
+
+    /**
+     * Compress all the channels up to the end of the run of completed origins at the start of the grid.
+     * @param wait if true, wait for any other thread that is compressing and then compress all completed origins.
+     *             Otherwise return immediately if another thread is compressing or if fewer than a block of origins
+     *             are ready, so that threads handling results don't wait on one another.
+     */
+    private void compressCompletedOrigins (boolean wait) throws IOException {
+        if (wait) {
+            compressionLock.lock();
+        } else if (!compressionLock.tryLock()) {
+            return;
+        }
+        try {
+            if (terminated) return;
+            while (nContiguousOrigins < nTotal && getBit(originsWritten, nContiguousOrigins)) nContiguousOrigins++;
+            if (!wait && nContiguousOrigins - nCompressedOrigins < COMPRESSION_BLOCK_ORIGINS) return;
+            int endBytes = (int) HEADER_LENGTH_BYTES + nContiguousOrigins * Integer.BYTES;
+            byte[] chunk = new byte[64 * 1024];
+            for (Channel channel : channels) channel.compress(endBytes, chunk);
+            nCompressedOrigins = nContiguousOrigins;
+        } finally {
+            compressionLock.unlock();
         }
     }
 
@@ -171,76 +336,89 @@ public class GridResultAssembler {
         }
     }
 
-
-    public static byte[] intToLittleEndianByteArray (int i) {
-        final ByteBuffer byteBuffer = ByteBuffer.allocate(Integer.BYTES);
-        byteBuffer.order(ByteOrder.LITTLE_ENDIAN);
-        byteBuffer.putInt(i);
-        return byteBuffer.array();
+    /** Atomically set a bit. @return true if the bit was not already set. */
+    private static boolean setBit (AtomicLongArray bits, int index) {
+        int word = index / 64;
+        long mask = 1L << (index % 64);
+        while (true) {
+            long current = bits.get(word);
+            if ((current & mask) != 0) return false;
+            if (bits.compareAndSet(word, current, current | mask)) return true;
+        }
     }
 
-    // Write to the proper subregion of the buffer for this origin.
-    // The randomAccessFile is not threadsafe and multiple threads may call this, so synchronize.
-    // The origins we receive have 2d coordinates.
-    // Flatten them to compute file offsets and for the origin checklist.
-    private void writeOneValue (int x, int y, int value) throws IOException {
-        int index1d = y * request.width + x;
-        long offset = HEADER_LENGTH_BYTES + index1d * Integer.BYTES;
-        synchronized (this) {
-            randomAccessFile.seek(offset);
-            randomAccessFile.write(intToLittleEndianByteArray(value));
-            // Don't double-count origins if we receive them more than once.
-            if (!originsReceived.get(index1d)) {
-                originsReceived.set(index1d);
-                nComplete += 1;
-            }
-        }
+    private static boolean getBit (AtomicLongArray bits, int index) {
+        return (bits.get(index / 64) & (1L << (index % 64))) != 0;
     }
 
     /**
      * Process a single result.
      * We have bootstrap replications turned off, so there should be only one accessibility result per origin
      * and no delta coding is necessary anymore within each origin.
-     * We are also iterating over three dimensions (grids, percentiles, cutoffs) but those should produce completely
-     * separate access grid files, and are all size 1 for now anyway.
+     * We are also iterating over three dimensions (grids, percentiles, cutoffs), each combination of which is written
+     * to a separate access grid file.
+     * This may be called by many threads at once.
      */
     public void handleMessage (RegionalWorkResult workResult) {
+        if (error || terminated) return;
         try {
-            // Infer x and y cell indexes based on the template task
-            int taskNumber = workResult.taskId;
-            int x = taskNumber % request.width;
-            int y = taskNumber / request.width;
-
-            // Check the dimensions of the result by comparing with fields of this.request
-            int nGrids = 1;
-            int nPercentiles = 1;
-            int nCutoffs = 1;
-
-            // Drop work results for this particular origin into a little-endian output files.
-            // We only have one file for now because only one grid, percentile, and cutoff value.
+            // The origins we receive are numbered in row major order, which is also their order in the file.
+            int originIndex = workResult.taskId;
+            if (originIndex < 0 || originIndex >= nTotal) {
+                LOG.error("Result for task {} of job {} is outside the grid.", workResult.taskId, workResult.jobId);
+                error = true;
+                return;
+            }
+
+            // Check the dimensions of the result against those expected from the request, so that a malformed result
+            // can't write past the end of the channels.
             checkDimension(workResult, "destination grids", workResult.accessibilityValues.length, nGrids);
+            if (error) return;
             for (int[][] gridResult : workResult.accessibilityValues) {
                 checkDimension(workResult, "percentiles", gridResult.length, nPercentiles);
                 for (int[] percentileResult : gridResult) {
                     checkDimension(workResult, "cutoffs", percentileResult.length, nCutoffs);
-                    for (int accessibilityForCutoff : percentileResult) {
-                        writeOneValue(x, y, accessibilityForCutoff);
+                }
+            }
+            if (error) return;
+
+            // Don't double-count origins if we receive them more than once. The first result for an origin is kept,
+            // as it may already have been compressed.
+            if (!setBit(originsClaimed, originIndex)) return;
+            if (terminated) return;
+
+            // Drop work results for this particular origin into the little-endian output file for each channel.
+            for (int g = 0; g < nGrids; g++) {
+                for (int p = 0; p < nPercentiles; p++) {
+                    for (int c = 0; c < nCutoffs; c++) {
+                        channels[channelIndex(g, p, c)].write(originIndex, workResult.accessibilityValues[g][p][c]);
                     }
                 }
             }
-            // TODO It might be more reliable to double-check the bitset of received results inside finish() instead of just counting.
+            setBit(originsWritten, originIndex);
             // FIXME isn't this leaving the files around and the assemblers in memory if the job errors out?
-            if (nComplete == nTotal && !error) finish();
+            if (nComplete.incrementAndGet() == nTotal) {
+                if (!error && !terminated) finish();
+            } else {
+                compressCompletedOrigins(false);
+            }
         } catch (Exception e) {
             error = true; // the file is garbage TODO better resilience, tell the UI, transmit all errors.
             LOG.error("Error assembling results for query {}", request.jobId, e);
-            return;
         }
     }
 
-    /** Clean up and cancel a consumer. */
-    public synchronized void terminate () throws IOException {
-        this.randomAccessFile.close();
-        bufferFile.delete();
+    /**
+     * Clean up and cancel a consumer. The terminated flag is set before taking the lock, so results that arrive from
+     * now on are dropped, and compression or an upload already under way finishes before the channels are deleted.
+     */
+    public void terminate () throws IOException {
+        terminated = true;
+        compressionLock.lock();
+        try {
+            deleteChannels();
+        } finally {
+            compressionLock.unlock();
+        }
     }
 }
@@ -0,0 +1,124 @@
+package com.conveyal.r5.analyst.cluster;
+
+import com.conveyal.r5.analyst.PointSetWithIds;
+import com.conveyal.r5.common.JsonUtilities;
+import com.conveyal.r5.profile.FastRaptorWorker;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Travel times from one origin to a list of discrete destination points, such as a PointSetWithIds. This is the
+ * counterpart of TimeGrid for destinations that are not a grid: it holds one dense array per value recorded at each
+ * point (for example one per percentile), indexed by the position of the point in the point set. Compared to a map
+ * from point index to time this avoids boxing every value, and one value can be read for all the points with a simple
+ * loop over an array.
+ *
+ * Point set times are written out like this:
+ * Header (ASCII text "POINTTIM")
+ * Version, 4-byte integer
+ * (4 byte int) number of points
+ * (4 byte int) number of values per point
+ * (repeated 4-byte int) all the points' first values in point order, then all their second values, etc.
+ */
+public class PointSetTimes {
+
+    /** 8 bytes long to maintain integer alignment. */
+    private static final String fileType = "POINTTIM";
+
+    private static final int version = 0;
+
+    public final int nPoints;
+
+    public final int nValuesPerPoint;
+
+    /** For each value recorded at each point, an array of that value for all the points. */
+    private final int[][] values;
+
+    /** Create travel times in which every point is initially unreached. */
+    public PointSetTimes (int nPoints, int nValuesPerPoint) {
+        this.nPoints = nPoints;
+        this.nValuesPerPoint = nValuesPerPoint;
+        this.values = new int[nValuesPerPoint][nPoints];
+        for (int[] array : values) Arrays.fill(array, FastRaptorWorker.UNREACHED);
+    }
+
+    /**
+     * Record all the values for one point. As with TimeGrid, several threads may call this at once for different
+     * points.
+     */
+    public void setTarget (int targetIndex, int[] targetValues) {
+        if (targetValues.length != nValuesPerPoint) {
+            throw new IllegalArgumentException("Incorrect number of values per point.");
+        }
+        for (int v = 0; v < nValuesPerPoint; v++) values[v][targetIndex] = targetValues[v];
+    }
+
+    public int getValue (int valueIndex, int targetIndex) {
+        return values[valueIndex][targetIndex];
+    }
+
+    /**
+     * @return the given value for every point, in the order of the points. This is the array backing this object, not
+     *         a copy, so it must not be modified.
+     */
+    public int[] getValues (int valueIndex) {
+        return values[valueIndex];
+    }
+
+    /**
+     * A cumulative opportunities accessibility indicator for the point set, where each point counts as one opportunity.
+     * @return the number of points whose given value is less than the cutoff, as for accessibility to grids.
+     */
+    public int countReachedWithin (int valueIndex, int cutoffSeconds) {
+        int count = 0;
+        for (int value : values[valueIndex]) {
+            if (value < cutoffSeconds) count++;
+        }
+        return count;
+    }
+
+    /** @return true if any point was reached. No points are reached when the origin is outside the network. */
+    public boolean anyPointReached () {
+        for (int[] array : values) {
+            for (int value : array) {
+                if (value != FastRaptorWorker.UNREACHED) return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Write one of the values as a JSON object whose keys are the point IDs, straight from the array rather than by way
+     * of an intermediate map. The stream is flushed but not closed.
+     */
+    public void writeJson (PointSetWithIds points, int valueIndex, OutputStream out) throws IOException {
+        if (points.featureCount() != nPoints) {
+            throw new IllegalArgumentException("Point set does not match travel times.");
+        }
+        JsonGenerator generator = JsonUtilities.objectMapper.getFactory().createGenerator(out);
+        generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+        generator.writeStartObject();
+        int[] array = values[valueIndex];
+        for (int p = 0; p < nPoints; p++) {
+            generator.writeNumberField(points.getId(p), array[p]);
+        }
+        generator.writeEndObject();
+        generator.close();
+    }
+
+    /** Write all the values to an object implementing the DataOutput interface, in the format described above. */
+    public void writeToDataOutput (DataOutput dataOutput) throws IOException {
+        dataOutput.write(fileType.getBytes());
+        dataOutput.writeInt(version);
+        dataOutput.writeInt(nPoints);
+        dataOutput.writeInt(nValuesPerPoint);
+        for (int[] array : values) {
+            for (int value : array) dataOutput.writeInt(value);
+        }
+    }
+
+}
@@ -5,8 +5,10 @@ import com.conveyal.r5.analyst.GridCache;
 import com.conveyal.r5.analyst.PointSet;
 import com.conveyal.r5.analyst.WebMercatorGridPointSet;
 import com.conveyal.r5.transit.TransportNetwork;
+import com.fasterxml.jackson.annotation.JsonIgnore;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 /**
@@ -33,20 +35,33 @@ public class RegionalTask extends AnalysisTask implements Cloneable {
      * An array of grid keys on S3 to compute access to. If this is not blank, the default TravelTimeSurfaceTask will be
      * overridden; returnInVehicleTimes, returnWaitTimes, and returnPaths will be set to false; and the returned results
      * will be an accessibility value per origin for each destination grid, rather than a grid of travel times from
-     * that origin.
-     * NOT YET IMPLEMENTED AND TESTED
+     * that origin. Travel times are found once per origin and shared by all the grids.
      */
     public List <String> grids;
 
+    /**
+     * The travel time cutoffs in minutes at which to compute accessibility. Every combination of grid, percentile and
+     * cutoff is computed from the same travel times. If this is null, the only cutoff is maxTripDurationMinutes. None
+     * of the cutoffs may exceed maxTripDurationMinutes, beyond which travel times are not computed.
+     */
+    public int[] cutoffsMinutes;
+
     /** Where should output of this job be saved */
     public String outputQueue;
 
     /**
      * The grid we are calculating accessibility to. This is not serialized int the request, it's looked up by the worker.
+     * When there are several grids, this is the first of them.
      * TODO use distinct terms for grid extents and gridded opportunity density data.
      */
     public transient Grid gridData;
 
+    /**
+     * All the grids we are calculating accessibility to, in the same order as their keys in grids, or just gridData
+     * if a single grid was given. Like gridData this is looked up by the worker.
+     */
+    public transient Grid[] destinationGrids;
+
     @Override
     public Type getType() {
         return Type.REGIONAL_ANALYSIS;
@@ -65,7 +80,6 @@ public class RegionalTask extends AnalysisTask implements Cloneable {
      */
     @Override
     public List<PointSet> getDestinations(TransportNetwork network, GridCache gridCache) {
-        List<Grid> gridList = new ArrayList<>();
         List<PointSet> pointSets = new ArrayList<>();
 
         if (makeStaticSite) {
@@ -81,41 +95,48 @@ public class RegionalTask extends AnalysisTask implements Cloneable {
             return pointSets;
         }
 
-        if (grid != null){
-            // A single grid is specified.
-            // NOTE: Only TravelTimeSurfaceTasks support one-to-many routing to an arbitrary
-            // list of destinations instead of a grid. If network.gridPointSet is not a
-            // WebMercatorGridPointSet, this will fail.
-            WebMercatorGridPointSet set = (WebMercatorGridPointSet) network.pointSet;
-            // Use the network point set as the base point set, so that the cached linkages are used
-            pointSets.add(pointSetCache.get(gridData.zoom, gridData.west, gridData.north, gridData.width, gridData.height, set));
-
-        } else {
-            // Multiple grids should be specified. Add only the first one, and any with different extents, to pointSets.
-            // TODO more explanation, complete implementation. This block is currently unused.
-            // FIXME we really shouldn't have two different implementations present, one for a list and one for a single grid.
-            gridData = gridCache.get(grids.get(0));
-            gridList.add(gridData);
-            WebMercatorGridPointSet set = (WebMercatorGridPointSet) network.pointSet;
-            pointSets.add(pointSetCache.get(gridData.zoom, gridData.west, gridData.north, gridData.width, gridData.height, set));
-
-            for (int i = 1; i < grids.size(); i++) { // the first grid is already in the list
-                gridData = gridCache.get(grids.get(i));
-
-                for (int j = 0; j < i; j++) { // loop over previously added grids
-                    if (gridData.hasEqualExtents(gridList.get(j))) break;
-
-                    if (j == i - 1) { // all previously added grids checked, none matches extents, so add it
-                        gridList.add(gridData);
-                        WebMercatorGridPointSet setX = (WebMercatorGridPointSet) network.pointSet;
-                        pointSets.add(pointSetCache.get(gridData.zoom, gridData.west, gridData.north, gridData.width, gridData.height, setX));
-                    }
-                }
+        // Look up all the grids. A single grid may already have been looked up.
+        List<String> gridKeys = grid != null ? Collections.singletonList(grid) : grids;
+        destinationGrids = new Grid[gridKeys.size()];
+        for (int i = 0; i < destinationGrids.length; i++) {
+            destinationGrids[i] = grid != null && gridData != null ? gridData : gridCache.get(gridKeys.get(i));
+        }
+        gridData = destinationGrids[0];
+
+        // Propagate travel times once, to a single set of points covering all the grids, rather than once per grid
+        // extents. The reducer finds the cell of each grid corresponding to each point.
+        // NOTE: Only TravelTimeSurfaceTasks support one-to-many routing to an arbitrary
+        // list of destinations instead of a grid. If network.gridPointSet is not a
+        // WebMercatorGridPointSet, this will fail.
+        int west = gridData.west, north = gridData.north;
+        int east = west + gridData.width, south = north + gridData.height;
+        for (Grid destinationGrid : destinationGrids) {
+            if (destinationGrid.zoom != gridData.zoom) {
+                throw new IllegalArgumentException("All destination grids must have the same zoom level.");
             }
+            west = Math.min(west, destinationGrid.west);
+            north = Math.min(north, destinationGrid.north);
+            east = Math.max(east, destinationGrid.west + destinationGrid.width);
+            south = Math.max(south, destinationGrid.north + destinationGrid.height);
         }
+        WebMercatorGridPointSet set = (WebMercatorGridPointSet) network.pointSet;
+        // Use the network point set as the base point set, so that the cached linkages are used
+        pointSets.add(pointSetCache.get(gridData.zoom, west, north, east - west, south - north, set));
         return pointSets;
     }
 
+    /** @return the cutoffs at which to compute accessibility, in minutes. */
+    @JsonIgnore
+    public int[] getCutoffsMinutesOrDefault () {
+        return cutoffsMinutes != null ? cutoffsMinutes : new int[] { maxTripDurationMinutes };
+    }
+
+    /** @return the number of grids to compute accessibility to. */
+    @JsonIgnore
+    public int getGridCount () {
+        return grids != null && grid == null ? grids.size() : 1;
+    }
+
     public RegionalTask clone () {
         return (RegionalTask) super.clone();
     }
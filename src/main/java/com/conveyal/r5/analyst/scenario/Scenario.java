@@ -138,6 +138,7 @@ public class Scenario implements Serializable {
         copiedNetwork.transitLayer.buildDistanceTables(treeRebuildZone);
         
         // Find the transfers originating at or terminating at new stops.
+        // These are derived from the distance tables just built, without searching the streets again.
         // TODO also rebuild transfers which are near street network changes but which do not connect to new stops.
         new TransferFinder(copiedNetwork).findTransfers();
 
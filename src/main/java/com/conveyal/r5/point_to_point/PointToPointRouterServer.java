@@ -1,6 +1,8 @@
 package com.conveyal.r5.point_to_point;
 
+import com.conveyal.r5.analyst.ManyToMany;
 import com.conveyal.r5.analyst.OneToMany;
+import com.conveyal.r5.analyst.PointSetWithIds;
 import com.conveyal.r5.analyst.cluster.AnalysisTask;
 import com.conveyal.r5.api.GraphQlRequest;
 import com.conveyal.r5.api.ProfileResponse;
@@ -20,6 +22,7 @@ import com.conveyal.r5.profile.StreetPath;
 import com.conveyal.r5.streets.*;
 import com.conveyal.r5.transit.TransportNetwork;
 import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.ObjectReader;
 import com.vividsolutions.jts.geom.Coordinate;
@@ -63,6 +66,7 @@ import static spark.Spark.*;
  * --<function> <input file directory> <additional flags>
  * e.g.
  * --build|graphs|isochrones ./transit_data/toronto one-to-many toronto-das.locations.txt
+ * --matrix ./transit_data/toronto request.json matrix.bin [origins.txt]
  *
  */
 public class PointToPointRouterServer {
@@ -74,7 +78,7 @@ public class PointToPointRouterServer {
 
     public static final String BUILDER_CONFIG_FILENAME = "build-config.json";
 
-    private static final String USAGE = "It expects --build [path to directory with GTFS and PBF files] to build the graphs\nor --graphs [path to directory with graph] to start the server with provided graph";
+    private static final String USAGE = "It expects --build [path to directory with GTFS and PBF files] to build the graphs\nor --graphs [path to directory with graph] to start the server with provided graph\nor --matrix [path to directory with graph] [request JSON file] [output .bin or .csv file] [optional origins file] to compute a travel time matrix";
 
     public static final int RADIUS_METERS = 200;
 
@@ -153,6 +157,29 @@ public class PointToPointRouterServer {
                 LOG.error("An error occurred during the reading or decoding of transit networks", e);
                 System.exit(-1);
             }
+        } else if ("--matrix".equals(commandArguments[0])) {
+            if (commandArguments.length < 4) {
+                throw new RuntimeException("To use the --matrix flag, specify the directory where the TransportNetwork "
+                        + "can be found, the request JSON file and the output file.");
+            }
+            File dir = new File(commandArguments[1]);
+            try {
+                LOG.info("Loading transit networks from: {}", dir);
+                TransportNetwork transportNetwork = setUpTransportNetwork(dir, true);
+                AnalysisTask request = JsonUtilities.objectMapper.readValue(new File(commandArguments[2]),
+                        AnalysisTask.class);
+                // Without an origins file, compute the matrix between all the destinations the network was built with.
+                PointSetWithIds origins = commandArguments.length > 4
+                        ? OneToMany.readDestinations(new File(commandArguments[4]))
+                        : (PointSetWithIds) transportNetwork.pointSet;
+                File outputFile = new File(commandArguments[3]);
+                ManyToMany.Format format = outputFile.getName().endsWith(".csv")
+                        ? ManyToMany.Format.CSV : ManyToMany.Format.BINARY;
+                new ManyToMany(request, transportNetwork, origins).run(outputFile, format);
+            } catch (Exception e) {
+                LOG.error("An error occurred while computing the travel time matrix", e);
+                System.exit(-1);
+            }
         } else if ("--help".equals(commandArguments[0]) || "-h".equals(commandArguments[0])
                 || "--usage".equals(commandArguments[0]) || "-u".equals(commandArguments[0])) {
             System.out.println(USAGE);
@@ -388,13 +415,21 @@ public class PointToPointRouterServer {
 
         /**
          * One to many routing. Works with all modes (transit, walking, biking, etc.)
+         * With the query parameter format=binary, the travel times at every percentile are returned in the binary
+         * format of PointSetTimes rather than as JSON.
          */
-        post("/travelTimeMap", ((request, response) -> {
-            response.header("Content-Type", "application/json");
-            ObjectReader analysisTaskReader = mapper.reader(AnalysisTask.class);
-            AnalysisTask analysisTask = analysisTaskReader.readValue(request.body());
-            return OneToMany.makeRequest(analysisTask, transportNetwork);
-        }), JsonUtilities.objectMapper::writeValueAsString);
+        post("/travelTimeMap", (request, response) -> {
+            boolean binary = "binary".equals(request.queryParams("format"));
+            response.header("Content-Type", binary ? "application/octet-stream" : "application/json");
+            JsonNode analysisTaskJson = mapper.readTree(request.body());
+            AnalysisTask analysisTask = mapper.treeToValue(analysisTaskJson, AnalysisTask.class);
+            // This endpoint has always returned the minimum travel time, so only use another percentile when the
+            // request asks for one explicitly rather than falling back on the AnalysisTask default (the median).
+            if (!analysisTaskJson.has("percentiles")) analysisTask.percentiles = new double[] { 0 };
+            // Stream the travel times straight into the response rather than building a map to serialize.
+            OneToMany.makeRequest(analysisTask, transportNetwork, response.raw().getOutputStream(), binary);
+            return "";
+        });
 
         /**
          * One-to-one routing. Works with all modes (transit, walking, biking, etc.)
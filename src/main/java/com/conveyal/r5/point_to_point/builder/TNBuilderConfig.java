@@ -1,11 +1,14 @@
 package com.conveyal.r5.point_to_point.builder;
 
 import com.conveyal.r5.analyst.fare.GreedyFareCalculator;
+import com.conveyal.r5.profile.StreetMode;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.SerializationFeature;
 
 import java.io.File;
+import java.util.EnumSet;
+import java.util.Set;
 
 /**
  * These are parameters that when changed, necessitate a Graph rebuild.
@@ -117,6 +120,19 @@ public class TNBuilderConfig {
      */
     public final boolean staticBikeParkAndRide;
 
+    /**
+     * Street modes for which to precompute landmark tables, which speed up street searches toward a single destination
+     * (e.g. point-to-point car routing). Each mode takes several searches of the whole street network per landmark to
+     * build and 8 bytes per vertex per landmark to store (16 for CAR), so none are built by default.
+     */
+    public final Set<StreetMode> landmarkModes;
+
+    /**
+     * The number of landmarks to choose for each of the landmarkModes. More landmarks give tighter bounds at the
+     * expense of build time and memory.
+     */
+    public final int nLandmarks;
+
     /**
      * Path to zip file object containing GBFS bikeshare files.
      */
@@ -146,6 +162,8 @@ public class TNBuilderConfig {
         staticBikeRental = false;
         staticParkAndRide = true;
         staticBikeParkAndRide = false;
+        landmarkModes = EnumSet.noneOf(StreetMode.class);
+        nLandmarks = 8;
         bikeRentalFile = null;
         speeds = SpeedConfig.defaultConfig();
         analysisFareCalculator = null;
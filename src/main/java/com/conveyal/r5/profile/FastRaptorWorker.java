@@ -3,6 +3,7 @@ package com.conveyal.r5.profile;
 import com.conveyal.r5.api.util.TransitModes;
 import com.conveyal.r5.transit.PickDropType;
 import com.conveyal.r5.transit.RouteInfo;
+import com.conveyal.r5.transit.TransferTable;
 import com.conveyal.r5.transit.TransitLayer;
 import com.conveyal.r5.transit.TripPattern;
 import com.conveyal.r5.transit.TripSchedule;
@@ -16,6 +17,9 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.BitSet;
 import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.stream.IntStream;
 import java.util.stream.Stream;
 
@@ -96,6 +100,9 @@ public class FastRaptorWorker {
     /** Schedule-based trip patterns running on a given day */
     private TripPattern[] runningScheduledPatterns;
 
+    /** The running scheduled trips on each schedule-based pattern, parallel to runningScheduledPatterns */
+    private ScheduledTripIndex[] scheduledTripIndexes;
+
     /** Map from internal, filtered frequency pattern indices back to original pattern indices for frequency patterns */
     private int[] originalPatternIndexForFrequencyIndex;
 
@@ -108,7 +115,21 @@ public class FastRaptorWorker {
     /** Array mapping from original pattern indices to the filtered scheduled indices */
     private int[] scheduledIndexForOriginalPatternIndex;
 
-    private FrequencyRandomOffsets offsets;
+    /**
+     * Mixed into the seed of every Monte Carlo draw. It is chosen at random for each search, so that different origins
+     * see independent randomized schedules, as they did when each search drew from its own unseeded generator.
+     */
+    private final long searchSeed = ThreadLocalRandom.current().nextLong();
+
+    /**
+     * Randomized offsets not currently in use by any draw. Parallel draws must not share offsets, but each thread only
+     * performs one draw at a time, so no more instances are created than there are threads working on this search.
+     * They are kept here rather than in the thread's RaptorStateArena because they refer to the transit layer.
+     */
+    private final Queue<FrequencyRandomOffsets> idleOffsets = new ConcurrentLinkedQueue<>();
+
+    /** Reused to mark patterns touched in each round of the scheduled search, which always runs on one thread */
+    private final BitSet scheduledSearchPatternsTouched = new BitSet();
 
     /** Services active on the date of the search */
     private final BitSet servicesActive;
@@ -117,12 +138,35 @@ public class FastRaptorWorker {
      * The state resulting from the scheduled search at a particular departure minute.
      * This state is reused at each departure minute without re-initializng it (this is the range-raptor optimization).
      * The randomized schedules at each departure minute are applied on top of this scheduled state.
+     * These states are created when the search begins, so that they only include path information if retainPaths is set.
      */
-    private final RaptorState[] scheduleState;
+    private RaptorState[] scheduleState;
 
-    /** Set to true to save path details for all optimal paths. */
+    /** Identifies the current contents of scheduleState, so reused frequency search states know when to fully recopy it. */
+    private long scheduleStateGeneration;
+
+    /**
+     * Set to true to save path details for all optimal paths. This must be set before calling route(), as it
+     * determines what information the search states keep.
+     */
     public boolean retainPaths = false;
 
+    /**
+     * Set to true to run the Monte Carlo draws for each departure minute in parallel. This reduces latency for a single
+     * origin on networks with many frequency routes, but should be left off when origins are already being processed
+     * in parallel (as in regional analyses) where it would only add contention.
+     */
+    public boolean parallelMonteCarloDraws = false;
+
+    /**
+     * Travel times to every stop for every iteration, written directly by the search into a single stop-major array.
+     * See route() for the layout.
+     */
+    private int[] travelTimesToStops;
+
+    /** The total number of iterations (departure minutes times Monte Carlo draws per minute). */
+    private int nIterations;
+
     /** If we're going to store paths to every destination (e.g. for static sites) then they'll be retained here. */
     public List<Path[]> pathsPerIteration;
 
@@ -131,14 +175,6 @@ public class FastRaptorWorker {
         this.request = request;
         this.accessStops = accessStops;
         this.servicesActive  = transit.getActiveServicesForDate(request.date);
-        // we add one to request.maxRides, first state is result of initial walk
-        this.scheduleState = IntStream.range(0, request.maxRides + 1)
-                .mapToObj((i) -> new RaptorState(transit.getStopCount(), request.maxTripDurationMinutes * 60))
-                .toArray(RaptorState[]::new);
-
-        for (int i = 1; i < this.scheduleState.length; i++) this.scheduleState[i].previous = this.scheduleState[i - 1];
-
-        offsets = new FrequencyRandomOffsets(transitLayer);
 
         // compute number of minutes for scheduled search
         nMinutes = request.getTimeWindowLengthMinutes();
@@ -149,18 +185,27 @@ public class FastRaptorWorker {
 
     /**
      * For each iteration (minute + MC draw combination), return the minimum travel time to each transit stop in seconds.
-     * Return value dimension order is [searchIteration][transitStopIndex]
+     * The times are in a single flat array in stop-major order: the time to stop s in iteration i is found at index
+     * s * nIterations + i. Propagation reads all iterations for one stop at a time, so this keeps them contiguous in
+     * memory. The search writes each iteration's times straight into this array, so no per-iteration copies or
+     * transposed duplicates of the whole matrix are ever made.
      */
-    public int[][] route () {
+    public int[] route () {
 
         startClockTime = System.nanoTime();
         prefilterPatterns();
+        // we add one to request.maxRides, first state is result of initial walk
+        scheduleState = IntStream.range(0, request.maxRides + 1)
+                .mapToObj((i) -> new RaptorState(transit.getStopCount(), request.maxTripDurationMinutes * 60, retainPaths))
+                .toArray(RaptorState[]::new);
+        for (int i = 1; i < scheduleState.length; i++) scheduleState[i].previous = scheduleState[i - 1];
         LOG.info("Performing {} scheduled iterations each with {} Monte Carlo draws for a total of {} iterations",
                 nMinutes, monteCarloDrawsPerMinute, nMinutes * monteCarloDrawsPerMinute);
 
         // Initialize result storage.
-        // Results are one arrival time at each stop, for every raptor iteration.
-        int[][] arrivalTimesAtStopsPerIteration = new int[nMinutes * monteCarloDrawsPerMinute][];
+        // Results are one travel time at each stop, for every raptor iteration.
+        nIterations = nMinutes * monteCarloDrawsPerMinute;
+        travelTimesToStops = new int[transit.getStopCount() * nIterations];
         if (retainPaths) pathsPerIteration = new ArrayList<>();
         int currentIteration = 0;
 
@@ -171,20 +216,10 @@ public class FastRaptorWorker {
 
             if (minute % 15 == 0) LOG.debug("  minute {}", minute);
 
-            // Run the raptor search. For this particular departure time, we receive N arrays of arrival times at all
-            // stops, one for each randomized schedule: resultsForMinute[randScheduleNumber][transitStop]
-            int[][] resultsForMinute = runRaptorForMinute(departureTime, monteCarloDrawsPerMinute);
-
-            // Bypass Java's "effectively final" nonsense.
-            // FIXME we could avoid this "final" weirdness by just using non-stream explicit loop syntax over the stops.
-            // TODO clarify identifiers and explain how results are being unrolled from minutes into 'iterations'.
-            final int finalDepartureTime = departureTime;
-            for (int[] arrivalTimesAtStops : resultsForMinute) {
-                // NB this copies the array, so we don't have issues with it being updated later
-                arrivalTimesAtStopsPerIteration[currentIteration++] = IntStream.of(arrivalTimesAtStops)
-                        .map(r -> r != UNREACHED ? r - finalDepartureTime : r)
-                        .toArray();
-            }
+            // Run the raptor search. For this particular departure time, this records travel times to all stops for
+            // N consecutive iterations, one for each randomized schedule, starting at currentIteration.
+            runRaptorForMinute(departureTime, monteCarloDrawsPerMinute, currentIteration);
+            currentIteration += monteCarloDrawsPerMinute;
         }
 
         LOG.info("Search completed in {}s", (System.nanoTime() - startClockTime) / 1e9d);
@@ -197,7 +232,19 @@ public class FastRaptorWorker {
         LOG.info("  - Resulting updates to scheduled component: {}s", timeInFrequencySearchScheduled / 1e9d);
         LOG.info("  - Transfers: {}s", timeInFrequencySearchTransfers / 1e9d);
 
-        return arrivalTimesAtStopsPerIteration;
+        return travelTimesToStops;
+    }
+
+    /**
+     * Convert the given clock times at all stops into travel times from the given departure time, and store them as
+     * the results of the given iteration. Different iterations occupy different elements of the result array, so this
+     * may be called concurrently for different iterations.
+     */
+    private void recordTravelTimes (int[] arrivalTimesAtStops, int departureTime, int iteration) {
+        for (int stop = 0, index = iteration; stop < arrivalTimesAtStops.length; stop++, index += nIterations) {
+            int arrivalTime = arrivalTimesAtStops[stop];
+            travelTimesToStops[index] = arrivalTime != UNREACHED ? arrivalTime - departureTime : UNREACHED;
+        }
     }
 
     /** Prefilter the patterns to only ones that are running */
@@ -236,6 +283,9 @@ public class FastRaptorWorker {
                 .mapToObj(transit.tripPatterns::get).toArray(TripPattern[]::new);
         runningScheduledPatterns = IntStream.of(originalPatternIndexForScheduledIndex)
                 .mapToObj(transit.tripPatterns::get).toArray(TripPattern[]::new);
+        scheduledTripIndexes = Stream.of(runningScheduledPatterns)
+                .map(pattern -> new ScheduledTripIndex(pattern, servicesActive))
+                .toArray(ScheduledTripIndex[]::new);
 
         LOG.info("Prefiltering patterns based on date active reduced {} patterns to {} frequency and {} scheduled patterns",
                 transit.tripPatterns.size(), frequencyPatterns.size(), scheduledPatterns.size());
@@ -246,6 +296,7 @@ public class FastRaptorWorker {
      * and prepare for the scheduled search at the next-earlier minute
      */
     private void advanceScheduledSearchToPreviousMinute (int nextMinuteDepartureTime) {
+        scheduleStateGeneration = RaptorStateArena.nextGeneration();
         for (RaptorState state : this.scheduleState) {
             state.setDepartureTime(nextMinuteDepartureTime);
 
@@ -271,9 +322,10 @@ public class FastRaptorWorker {
      * @param iterationsPerMinute When frequencies are present, we perform multiple searches per departure minute using
      *                            different randomly-generated schedules (Monte Carlo search); this parameter controls
      *                            how many.
-     * @return an array of length iterationsPerMinute, containing the arrival (clock) times at each stop for each iteration.
+     * @param firstIteration The iteration number under which to record the travel times from the first of these
+     *                       searches. The others are recorded under the iterations immediately following it.
      */
-    private int[][] runRaptorForMinute (int departureTime, int iterationsPerMinute) {
+    private void runRaptorForMinute (int departureTime, int iterationsPerMinute, int firstIteration) {
         advanceScheduledSearchToPreviousMinute(departureTime);
 
         // Run the scheduled search
@@ -293,14 +345,15 @@ public class FastRaptorWorker {
                 scheduleState[round].min(scheduleState[round - 1]);
 
                 long scheduledStartTime = System.nanoTime();
-                doScheduledSearchForRound(scheduleState[round - 1], scheduleState[round]);
+                doScheduledSearchForRound(scheduleState[round - 1], scheduleState[round], scheduledSearchPatternsTouched);
                 timeInScheduledSearchTransit += System.nanoTime() - scheduledStartTime;
 
                 // perform a frequency search using worst-case boarding time to provide a tighter upper bound,
                 // but only if there are frequency lines.
                 if (transit.hasFrequencies) {
                     long frequencyStartTime = System.nanoTime();
-                    doFrequencySearchForRound(scheduleState[round - 1], scheduleState[round], true);
+                    doFrequencySearchForRound(scheduleState[round - 1], scheduleState[round], null, true,
+                            scheduledSearchPatternsTouched);
                     timeInScheduledSearchFrequencyBounds += System.nanoTime() - frequencyStartTime;
                 }
 
@@ -317,72 +370,113 @@ public class FastRaptorWorker {
         // Conway, Byrd and van der Linden 2017.
         if (transit.hasFrequencies) {
             long startTime = System.nanoTime();
-            int[][] result = new int[iterationsPerMinute][];
-            for (int iteration = 0; iteration < iterationsPerMinute; iteration++) {
-                // copy the state, with advancingRound = false
-                RaptorState[] frequencyState = Stream.of(scheduleState).map((s) -> s.copy()).toArray(RaptorState[]::new);
-                for (int i = 1; i < frequencyState.length; i++) frequencyState[i].previous = frequencyState[i - 1];
-
-                // take a new Monte Carlo draw
-                // Einstein was probably wrong; God does in fact play dice with the universe, and so do we
-                offsets.randomize();
-
-                for (int round = 1; round <= request.maxRides; round++) {
-                    frequencyState[round].min(frequencyState[round - 1]);
-
-                    // scheduled search: use only stops touched within this loop
-                    // we need to repeat the scheduled search when we do frequency searches to handle combinations of schedules
-                    // and frequencies
-                    long scheduledStart = System.nanoTime();
-                    doScheduledSearchForRound(frequencyState[round - 1], frequencyState[round]);
-                    timeInFrequencySearchScheduled += System.nanoTime() - scheduledStart;
-
-                    // frequency search: additionally use stops touched by scheduled search
-                    // okay to destructively modify last round frequency state, it will not be used after this
-                    long frequencyStart = System.nanoTime();
-                    frequencyState[round - 1].bestStopsTouched.or(scheduleState[round - 1].bestStopsTouched);
-                    frequencyState[round - 1].nonTransferStopsTouched.or(scheduleState[round - 1].nonTransferStopsTouched);
-                    doFrequencySearchForRound(frequencyState[round - 1], frequencyState[round], false);
-                    timeInFrequencySearchFrequency += System.nanoTime() - frequencyStart;
-
-                    long transferStart = System.nanoTime();
-                    doTransfers(frequencyState[round]);
-                    timeInFrequencySearchTransfers += System.nanoTime() - transferStart;
-                }
-                // We are processing frequency routes, states are already a copy of the retained scheduled search state,
-                // no need to make an additional protective copy.
-                RaptorState finalRoundState = frequencyState[request.maxRides];
-                result[iteration] = finalRoundState.bestNonTransferTimes;
+            Path[][] pathsForMinute = retainPaths ? new Path[iterationsPerMinute][] : null;
+            IntStream iterations = IntStream.range(0, iterationsPerMinute);
+            // Each draw only reads the scheduled search state, so draws are independent of one another and can be
+            // spread across the common fork-join pool.
+            if (parallelMonteCarloDraws) iterations = iterations.parallel();
+            iterations.forEach(iteration -> {
+                // The states for this draw are reused by the next draw on this thread, so we must record the travel
+                // times before then. Paths copy what they need out of the state.
+                RaptorState finalRoundState = runFrequencySearchForDraw(seedForDraw(departureTime, iteration));
+                recordTravelTimes(finalRoundState.bestNonTransferTimes, departureTime, firstIteration + iteration);
                 if (retainPaths) {
-                    pathsPerIteration.add(pathToEachStop(finalRoundState));
+                    pathsForMinute[iteration] = pathToEachStop(finalRoundState);
                 }
+            });
+            // Paths are collected per draw and appended afterward to keep them in iteration order.
+            if (retainPaths) {
+                pathsPerIteration.addAll(Arrays.asList(pathsForMinute));
             }
             timeInFrequencySearch += System.nanoTime() - startTime;
-            return result;
         } else {
             // If there are no frequency trips, return the result of the scheduled search, but repeated as many times
             // as there are requested MC draws, so that the scheduled search accessibility avoids potential bugs
             // where assumptions are made about how many results will be returned from a search, e.g., in
             // https://github.com/conveyal/r5/issues/306
             // FIXME on large networks with no frequency routes this seems extremely inefficient.
-            // It may be somewhat less inefficient than it seems if we make arrays of references all to the same object.
             // TODO check whether we're actually hitting this code with iterationsPerMinute > 1 on scheduled networks.
-            int[][] result = new int[iterationsPerMinute][];
             RaptorState finalRoundState = scheduleState[request.maxRides];
             // This scheduleState is repeatedly modified as the outer loop progresses over departure minutes.
             // We have to be careful here that creating these paths does not modify the state, and makes
             // protective copies of any information we want to retain.
             Path[] paths = retainPaths ? pathToEachStop(finalRoundState) : null;
-            for (int iteration = 0; iteration < monteCarloDrawsPerMinute; iteration++) {
-                result[iteration] = finalRoundState.bestNonTransferTimes;
+            for (int iteration = 0; iteration < iterationsPerMinute; iteration++) {
+                recordTravelTimes(finalRoundState.bestNonTransferTimes, departureTime, firstIteration + iteration);
                 if (retainPaths) {
                     pathsPerIteration.add(paths);
                 }
             }
-            return result;
         }
     }
 
+    /**
+     * Perform the frequency search for a single Monte Carlo draw on top of the current scheduled search state, using
+     * offsets randomized from the given seed. This only reads from the scheduled search state and from fields that are
+     * fixed for the whole search, so it may be called concurrently for different draws.
+     *
+     * @return the state for the final round of the search. This state is reused by the next draw on the same thread,
+     *         so any information to be retained must be copied out of it before then.
+     */
+    private RaptorState runFrequencySearchForDraw (long seed) {
+        long scheduledTime = 0, frequencyTime = 0, transferTime = 0;
+
+        // copy the state, with advancingRound = false, reusing this thread's states rather than allocating new ones
+        RaptorStateArena arena = RaptorStateArena.forCurrentThread(transit.getStopCount(), scheduleState.length,
+                request.maxTripDurationMinutes * 60, retainPaths);
+        RaptorState[] frequencyState = arena.copyOf(scheduleState, scheduleStateGeneration);
+
+        // take a new Monte Carlo draw
+        // Einstein was probably wrong; God does in fact play dice with the universe, and so do we
+        FrequencyRandomOffsets drawOffsets = idleOffsets.poll();
+        if (drawOffsets == null) drawOffsets = new FrequencyRandomOffsets(transit);
+        drawOffsets.randomize(seed);
+
+        for (int round = 1; round <= request.maxRides; round++) {
+            frequencyState[round].min(frequencyState[round - 1]);
+
+            // scheduled search: use only stops touched within this loop
+            // we need to repeat the scheduled search when we do frequency searches to handle combinations of schedules
+            // and frequencies
+            long scheduledStart = System.nanoTime();
+            doScheduledSearchForRound(frequencyState[round - 1], frequencyState[round], arena.patternsTouched);
+            scheduledTime += System.nanoTime() - scheduledStart;
+
+            // frequency search: additionally use stops touched by scheduled search
+            // okay to destructively modify last round frequency state, it will not be used after this
+            long frequencyStart = System.nanoTime();
+            frequencyState[round - 1].bestStopsTouched.or(scheduleState[round - 1].bestStopsTouched);
+            frequencyState[round - 1].nonTransferStopsTouched.or(scheduleState[round - 1].nonTransferStopsTouched);
+            doFrequencySearchForRound(frequencyState[round - 1], frequencyState[round], drawOffsets, false,
+                    arena.patternsTouched);
+            frequencyTime += System.nanoTime() - frequencyStart;
+
+            long transferStart = System.nanoTime();
+            doTransfers(frequencyState[round]);
+            transferTime += System.nanoTime() - transferStart;
+
+            arena.recordTouchedStops(frequencyState[round]);
+        }
+        idleOffsets.add(drawOffsets);
+
+        synchronized (this) {
+            timeInFrequencySearchScheduled += scheduledTime;
+            timeInFrequencySearchFrequency += frequencyTime;
+            timeInFrequencySearchTransfers += transferTime;
+        }
+
+        return frequencyState[request.maxRides];
+    }
+
+    /**
+     * Derive a random seed for one Monte Carlo draw from the seed of this search, the departure time and the index of
+     * the draw within that minute. Within a search a given draw always sees the same randomized schedule no matter
+     * which thread performs it or in what order, while different searches remain independent of one another.
+     */
+    private long seedForDraw (int departureTime, int iteration) {
+        return searchSeed + 0x9E3779B97F4A7C15L * (((long) departureTime << 32) | iteration);
+    }
+
     /**
      * Create the optimal path to each stop in the transit network, based on the given RaptorState.
      */
@@ -399,13 +493,15 @@ public class FastRaptorWorker {
         return paths;
     }
 
-    /** Perform a scheduled search */
-    private void doScheduledSearchForRound(RaptorState inputState, RaptorState outputState) {
-        BitSet patternsTouched = getPatternsTouchedForStops(inputState, scheduledIndexForOriginalPatternIndex);
+    /** Perform a scheduled search, using the given scratch set to mark patterns (see getPatternsTouchedForStops). */
+    private void doScheduledSearchForRound(RaptorState inputState, RaptorState outputState, BitSet patternsTouched) {
+        getPatternsTouchedForStops(inputState, scheduledIndexForOriginalPatternIndex, patternsTouched);
 
         for (int patternIndex = patternsTouched.nextSetBit(0); patternIndex >= 0; patternIndex = patternsTouched.nextSetBit(patternIndex + 1)) {
             int originalPatternIndex = originalPatternIndexForScheduledIndex[patternIndex];
             TripPattern pattern = runningScheduledPatterns[patternIndex];
+            ScheduledTripIndex tripIndex = scheduledTripIndexes[patternIndex];
+            // index of the trip we are on within tripIndex, or -1 if we have not yet boarded
             int onTrip = -1;
             int waitTime = 0;
             int boardTime = 0;
@@ -424,13 +520,19 @@ public class FastRaptorWorker {
                 // that we don't check for alighting when boarding
                 if (onTrip > -1 && pattern.dropoffs[stopPositionInPattern] != PickDropType.NONE) {
                     int alightTime = schedule.arrivals[stopPositionInPattern];
-                    int onVehicleTime = alightTime - boardTime;
 
-                    if (waitTime + onVehicleTime + inputState.bestTimes[boardStop] > alightTime) {
-                        LOG.error("Components of travel time are larger than travel time!");
-                    }
+                    if (retainPaths) {
+                        int onVehicleTime = alightTime - boardTime;
+
+                        if (waitTime + onVehicleTime + inputState.bestTimes[boardStop] > alightTime) {
+                            LOG.error("Components of travel time are larger than travel time!");
+                        }
 
-                    outputState.setTimeAtStop(stop, alightTime, originalPatternIndex, boardStop, waitTime, onVehicleTime, false);
+                        outputState.setTimeAtStop(stop, alightTime, originalPatternIndex, boardStop, waitTime, onVehicleTime, false);
+                    } else {
+                        // Without paths, the board time and wait time are not tracked and the components are ignored.
+                        outputState.setTimeAtStop(stop, alightTime, originalPatternIndex, boardStop, 0, 0, false);
+                    }
                 }
 
                 int sourcePatternIndex = inputState.previousStop[stop] == -1 ?
@@ -445,42 +547,34 @@ public class FastRaptorWorker {
                     // only attempt to board if the stop was touched
                     if (onTrip == -1) {
                         if (inputState.bestStopsTouched.get(stop)) {
-                            int candidateTripIndex = -1;
-                            EARLIEST_TRIP:
-                            for (TripSchedule candidateSchedule : pattern.tripSchedules) {
-                                candidateTripIndex++;
-
-                                if (!servicesActive.get(candidateSchedule.serviceCode) || candidateSchedule.headwaySeconds != null) {
-                                    // frequency trip or not running
-                                    continue;
-                                }
-
-                                if (earliestBoardTime < candidateSchedule.departures[stopPositionInPattern]) {
-                                    // board this vehicle
-                                    onTrip = candidateTripIndex;
-                                    schedule = candidateSchedule;
-                                    boardTime = candidateSchedule.departures[stopPositionInPattern];
+                            int candidateTripIndex = tripIndex.findFirstTripDepartingAfter(stopPositionInPattern, earliestBoardTime);
+                            if (candidateTripIndex != -1) {
+                                // board this vehicle
+                                onTrip = candidateTripIndex;
+                                schedule = tripIndex.schedules[candidateTripIndex];
+                                boardStop = stop;
+                                // The board and wait times are only used to record the components of paths
+                                if (retainPaths) {
+                                    boardTime = tripIndex.departure(candidateTripIndex, stopPositionInPattern);
                                     waitTime = boardTime - inputState.bestTimes[stop];
-                                    boardStop = stop;
-                                    break EARLIEST_TRIP;
                                 }
                             }
                         }
                     } else {
                         // check if we can back up to an earlier trip due to this stop being reached earlier
+                        // The index only contains scheduled trips running on the day of the search, so every earlier
+                        // trip is a candidate.
                         int bestTripIdx = onTrip;
                         while (--bestTripIdx >= 0) {
-                            TripSchedule trip = pattern.tripSchedules.get(bestTripIdx);
-                            if (trip.headwaySeconds != null || !servicesActive.get(trip.serviceCode)) {
-                                // This is a frequency trip or it is not running on the day of the search.
-                                continue;
-                            }
-                            if (trip.departures[stopPositionInPattern] > earliestBoardTime) {
+                            int departure = tripIndex.departure(bestTripIdx, stopPositionInPattern);
+                            if (departure > earliestBoardTime) {
                                 onTrip = bestTripIdx;
-                                schedule = trip;
-                                boardTime = trip.departures[stopPositionInPattern];
-                                waitTime = boardTime - inputState.bestTimes[stop];
+                                schedule = tripIndex.schedules[bestTripIdx];
                                 boardStop = stop;
+                                if (retainPaths) {
+                                    boardTime = departure;
+                                    waitTime = boardTime - inputState.bestTimes[stop];
+                                }
                             } else {
                                 // this trip arrives too early, break loop since they are sorted by departure time
                                 break;
@@ -496,12 +590,16 @@ public class FastRaptorWorker {
      * so that the output of this function can be used in a range-RAPTOR search. Otherwise Monte Carlo schedules will be
      * used to improve upon the output of the range-RAPTOR bounds search.
      *
+     * @param offsets the randomized offsets for the current Monte Carlo draw, unused when computing the upper bound.
+     * @param patternsTouched scratch space for marking patterns, see getPatternsTouchedForStops.
      * @param computeDeterministicUpperBound specifies whether to compute a deterministic upper bound, which helps speed up
      *                                       subsequent frequency searches. If false, a bona fide frequency search is conducted
      *                                       using randomized offsets.
      */
-    private void doFrequencySearchForRound(RaptorState inputState, RaptorState outputState, boolean computeDeterministicUpperBound) {
-        BitSet patternsTouched = getPatternsTouchedForStops(inputState, frequencyIndexForOriginalPatternIndex);
+    private void doFrequencySearchForRound(RaptorState inputState, RaptorState outputState,
+                                           FrequencyRandomOffsets offsets, boolean computeDeterministicUpperBound,
+                                           BitSet patternsTouched) {
+        getPatternsTouchedForStops(inputState, frequencyIndexForOriginalPatternIndex, patternsTouched);
 
         for (int patternIndex = patternsTouched.nextSetBit(0); patternIndex >= 0; patternIndex = patternsTouched.nextSetBit(patternIndex + 1)) {
             TripPattern pattern = runningFrequencyPatterns[patternIndex];
@@ -566,7 +664,8 @@ public class FastRaptorWorker {
                             if (newBoardingDepartureTimeAtStop > -1 && newBoardingDepartureTimeAtStop < remainOnBoardDepartureTimeAtStop) {
                                 // board this trip
                                 boardTime = newBoardingDepartureTimeAtStop;
-                                waitTime = boardTime - inputState.bestTimes[stop];
+                                // The wait time is only used to record the components of paths
+                                if (retainPaths) waitTime = boardTime - inputState.bestTimes[stop];
                                 boardStopPositionInPattern = stopPositionInPattern;
                             }
                         }
@@ -635,64 +734,54 @@ public class FastRaptorWorker {
         int walkSpeedMillimetersPerSecond = (int) (request.walkSpeed * 1000);
         int maxWalkMillimeters = (int) (request.walkSpeed * request.maxWalkTime * 60 * 1000);
 
+        TransferTable transfers = transit.transferTable;
+        int[] transferTimesSeconds = transfers.getTransferTimesSeconds(walkSpeedMillimetersPerSecond);
+
         for (int stop = state.nonTransferStopsTouched.nextSetBit(0); stop > -1; stop = state.nonTransferStopsTouched.nextSetBit(stop + 1)) {
             // no need to consider loop transfers, since we don't mark patterns here any more
             // loop transfers are already included by virtue of those stops having been reached
-            TIntList transfersFromStop = transit.transfersForStop.get(stop);
-            if (transfersFromStop != null) {
-                for (int stopIdx = 0; stopIdx < transfersFromStop.size(); stopIdx += 2) {
-                    int targetStop = transfersFromStop.get(stopIdx);
-                    int distanceToTargetStopMillimeters = transfersFromStop.get(stopIdx + 1);
-
-                    if (distanceToTargetStopMillimeters < maxWalkMillimeters) {
-                        // transfer length to stop is acceptable
-                        int walkTimeToTargetStopSeconds = distanceToTargetStopMillimeters / walkSpeedMillimetersPerSecond;
-                        int timeAtTargetStop = state.bestNonTransferTimes[stop] + walkTimeToTargetStopSeconds;
-
-                        if (walkTimeToTargetStopSeconds < 0) {
-                            LOG.error("Negative transfer time!!");
-                        }
+            int timeAtStop = state.bestNonTransferTimes[stop];
+            for (int i = transfers.offsets[stop]; i < transfers.offsets[stop + 1]; i++) {
+                // Transfers are sorted by distance, so all the remaining ones from this stop are also too long.
+                if (transfers.distancesMillimeters[i] >= maxWalkMillimeters) break;
 
-                        state.setTimeAtStop(targetStop, timeAtTargetStop, -1, stop, 0, 0, true);
-                    }
-                }
+                int targetStop = transfers.targetStops[i];
+                int timeAtTargetStop = timeAtStop + transferTimesSeconds[i];
+
+                state.setTimeAtStop(targetStop, timeAtTargetStop, -1, stop, 0, 0, true);
             }
         }
     }
 
     /**
-     * Get a list of the internal IDs of the patterns "touched" using the given index (frequency or scheduled)
+     * Mark the internal IDs of the patterns "touched" using the given index (frequency or scheduled)
      * "touched" means they were reached in the last round, and the index maps from the original pattern index to the
-     * local index of the filtered patterns.
+     * local index of the filtered patterns. The supplied set is cleared and reused to avoid allocating a new one for
+     * every round, so each thread performing searches must supply its own.
      */
-    private BitSet getPatternsTouchedForStops(RaptorState state, int[] index) {
-        BitSet patternsTouched = new BitSet();
+    private void getPatternsTouchedForStops(RaptorState state, int[] index, BitSet patternsTouched) {
+        patternsTouched.clear();
+        int[] patternsForStopOffsets = transit.patternsForStopOffsets;
+        int[] patternsForStop = transit.patternsForStopFlat;
 
         for (int stop = state.bestStopsTouched.nextSetBit(0); stop >= 0; stop = state.bestStopsTouched.nextSetBit(stop + 1)) {
-            // copy stop to a new final variable to get around Java 8 "effectively final" nonsense
-            final int finalStop = stop;
-            transit.patternsForStop.get(stop).forEach(originalPattern -> {
-                int filteredPattern = index[originalPattern];
-
-                if (filteredPattern < 0) {
-                    return true; // this pattern does not exist in the local subset of patterns, continue iteration
-                }
+            int sourcePatternIndex = state.previousStop[stop] == -1 ?
+                    state.previousPatterns[stop] :
+                    state.previousPatterns[state.previousStop[stop]];
 
-                int sourcePatternIndex = state.previousStop[finalStop] == -1 ?
-                        state.previousPatterns[finalStop] :
-                        state.previousPatterns[state.previousStop[finalStop]];
+            for (int i = patternsForStopOffsets[stop]; i < patternsForStopOffsets[stop + 1]; i++) {
+                int originalPattern = patternsForStop[i];
+                int filteredPattern = index[originalPattern];
 
-                if (sourcePatternIndex != originalPattern) {
-                    // don't re-explore the same pattern we used to reach this stop
-                    // we forbid riding the same pattern twice in a row in the search code above, this will prevent
-                    // us even having to loop over the stops in the pattern if potential board stops were only reached
-                    // using this pattern.
+                // Skip patterns that do not exist in the local subset of patterns.
+                // Also don't re-explore the same pattern we used to reach this stop
+                // we forbid riding the same pattern twice in a row in the search code above, this will prevent
+                // us even having to loop over the stops in the pattern if potential board stops were only reached
+                // using this pattern.
+                if (filteredPattern >= 0 && sourcePatternIndex != originalPattern) {
                     patternsTouched.set(filteredPattern);
                 }
-                return true; // continue iteration
-            });
+            }
         }
-
-        return patternsTouched;
     }
 }
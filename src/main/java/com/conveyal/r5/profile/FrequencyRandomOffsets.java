@@ -44,6 +44,16 @@ public class FrequencyRandomOffsets {
         }
     }
 
+    /**
+     * Take a new Monte Carlo draw starting from a known seed. Reseeding before each draw makes the offsets depend only
+     * on the seed and not on how many draws were previously taken from this instance, so draws can be performed in
+     * any order (or in parallel on separate instances) and still produce the same schedules.
+     */
+    public void randomize (long seed) {
+        mt.setSeed(seed);
+        randomize();
+    }
+
     public void randomize () {
         int remaining = 0;
 
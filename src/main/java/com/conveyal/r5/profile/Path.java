@@ -31,6 +31,9 @@ public class Path {
      * Scan over a raptor state and extract the path leading up to that state.
      */
     public Path(RaptorState state, int stop) {
+        if (!state.retainPaths) {
+            throw new IllegalArgumentException("Cannot reconstruct a path from a RaptorState that does not retain paths.");
+        }
         // trace the path back from this RaptorState
         int previousPattern;
         TIntList patterns = new TIntArrayList();
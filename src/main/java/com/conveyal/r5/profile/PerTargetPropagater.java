@@ -6,13 +6,14 @@ import com.conveyal.r5.analyst.TravelTimeReducer;
 import com.conveyal.r5.analyst.cluster.AnalysisTask;
 import com.conveyal.r5.analyst.cluster.PathWriter;
 import com.conveyal.r5.streets.LinkedPointSet;
-import gnu.trove.map.TIntIntMap;
+import com.conveyal.r5.util.CompressedSparseRows;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.Arrays;
 import java.util.List;
 import java.util.Set;
+import java.util.stream.IntStream;
 
 /**
  * Given minimum travel times from a single origin point to all transit stops, this class finds minimum travel times to
@@ -26,12 +27,22 @@ import java.util.Set;
  * huge. To handle one target at a time rather than one stop at a time, we need to invert the table of distances from
  * stops to their nearby targets: we instead use a table of distances to targets from their nearby stops.
  *
- * Note: this class is not threadsafe. It must process one target at a time sequentially in a single thread.
+ * Targets are independent of one another, so they may optionally be processed in parallel (see parallelPropagation).
+ * Each thread then handles a contiguous block of targets with its own scratch arrays. Because targets are numbered in
+ * grid order, a contiguous block is also a geographically compact area, so each thread keeps reusing the same nearby
+ * stops in its cache. Apart from that option, a propagator instance is not threadsafe and should only be used once.
  */
 public class PerTargetPropagater {
 
     private static final Logger LOG = LoggerFactory.getLogger(PerTargetPropagater.class);
 
+    /**
+     * The number of consecutive targets handled by one thread at a time when propagating in parallel. This is large
+     * enough to amortize the scratch arrays and task overhead, but small enough to balance load between threads when
+     * some parts of the grid are much better served by transit than others.
+     */
+    private static final int TARGET_BLOCK_SIZE = 1024;
+
     /**
      * The maximum travel time we will record and report. To limit calculation time and avoid overflow places this
      * many seconds from the origin are just considered unreachable.
@@ -53,8 +64,21 @@ public class PerTargetPropagater {
     /** Times at targets using the street network */
     public int[] nonTransitTravelTimesToTargets;
 
-    /** Times at transit stops for each iteration. Plus a transposed version of that same matrix as an optimization. */
-    public int[][] travelTimesToStopsForIteration, travelTimesToStop;
+    /**
+     * Times at transit stops for each iteration, in stop-major order as produced by FastRaptorWorker: the time at stop
+     * s in iteration i is at index s * nIterations + i.
+     *
+     * This order provides much better memory locality in the tight loop below than one array per iteration. We
+     * have confirmed that this provides a significant speedup. TODO quantify that speedup and record here in comment.
+     * All travel times to a particular stop for all iterations are contiguous, so we pull in all the travel times for
+     * a particular stop into cache at once, rather than unneeded times for the same iteration at other stops. Since
+     * we are also looping over the targets with geographic locality (adjacent cells in the destination grid are
+     * geographically adjacent), it is likely that the stops pulled into cache by handling one target will be reused
+     * when handling the next target. The routing algorithm writes its results directly in this order, so unlike the
+     * per-iteration arrays previously returned by the router, no transposed copy of the matrix is needed (which for
+     * 1,000 iterations to the Netherlands' 70,000 stops was a duplicate of about 267 megabytes).
+     */
+    public int[] travelTimesToStops;
 
     /** The number of "iterations" (departure minutes & Monte Carlo schedules) and the number of stops. */
     private int nIterations, nStops;
@@ -76,39 +100,30 @@ public class PerTargetPropagater {
      */
     int speedMillimetersPerSecond;
 
-
-    // STATE FIELDS WHICH ARE RESET WHEN PROCESSING EACH DESTINATION.
-    // These track the characteristics of the best paths known to the target currently being processed.
-
-    /**
-     * Retains the best known total travel time to the current destination for each iteration of the RAPTOR algorithm.
-     * TODO instead of a long-lived field this could be returned from the propagate function.
-     */
-    private int[] perIterationTravelTimes;
-
     /**
-     * The transit path that yielded the best known travel time to the current destination for each iteration of the
-     * raptor algorithm. Parallel to perIterationTravelTimes. Reset for each destination that is processed.
+     * If true, spread the targets across all available cores. This is only honored when we are not recording paths,
+     * because the PathWriter must receive targets one at a time in order. The TravelTimeReducer accepts targets from
+     * several threads at once.
      */
-    private Path[] perIterationPaths;
+    public boolean parallelPropagation = false;
 
     /**
      * Constructor.
      */
     public PerTargetPropagater(LinkedPointSet targets, AnalysisTask task,
-                               int[][] travelTimesToStopsForIteration,
+                               int[] travelTimesToStops,
                                int[] nonTransitTravelTimesToTargets) {
         this.targets = targets;
         this.request = task;
-        this.travelTimesToStopsForIteration = travelTimesToStopsForIteration;
+        this.travelTimesToStops = travelTimesToStops;
         this.nonTransitTravelTimesToTargets = nonTransitTravelTimesToTargets;
         // If we're making a static site we'll break travel times down into components and make paths.
         // This expects the pathsToStopsForIteration and pathWriter fields to be set separately by the caller.
         this.calculateComponents = task.makeStaticSite;
         speedMillimetersPerSecond = (int) (request.walkSpeed * 1000);
-        nIterations = travelTimesToStopsForIteration.length;
-        nStops = travelTimesToStopsForIteration[0].length;
-        invertTravelTimes();
+        // The router performs the same number of iterations as the reducer expects.
+        nIterations = task.getMonteCarloDrawsPerMinute() * task.getTimeWindowLengthMinutes();
+        nStops = travelTimesToStops.length / nIterations;
     }
 
     /**
@@ -119,13 +134,39 @@ public class PerTargetPropagater {
         targets.makePointToStopDistanceTablesIfNeeded();
         long startTimeMillis = System.currentTimeMillis();
 
-        // perIterationTravelTimes and perIterationDetails are reused when processing each target.
-        perIterationTravelTimes = new int[nIterations];
+        int nTargets = targets.size();
+        if (parallelPropagation && !calculateComponents) {
+            int nBlocks = (nTargets + TARGET_BLOCK_SIZE - 1) / TARGET_BLOCK_SIZE;
+            IntStream.range(0, nBlocks).parallel().forEach(block -> {
+                int startTarget = block * TARGET_BLOCK_SIZE;
+                propagateTargets(startTarget, Math.min(startTarget + TARGET_BLOCK_SIZE, nTargets));
+            });
+        } else {
+            propagateTargets(0, nTargets);
+        }
+        LOG.info("Propagating {} iterations from {} stops to {} targets took {}s",
+                nIterations, nStops, nTargets, (System.currentTimeMillis() - startTimeMillis) / 1000d
+        );
+        if (pathWriter != null) {
+            pathWriter.finishAndStorePaths();
+        }
+        targets = null; // Prevent later reuse of this propagator instance.
+        return travelTimeReducer.finish();
+    }
+
+    /**
+     * Propagate travel times to the targets from startTarget (inclusive) to endTarget (exclusive), in order, on the
+     * calling thread. The scratch arrays are local to each call so that several calls can proceed in parallel.
+     */
+    private void propagateTargets (int startTarget, int endTarget) {
+        // perIterationTravelTimes and perIterationPaths are reused when processing each target.
+        // They track the characteristics of the best paths known to the target currently being processed.
+        int[] perIterationTravelTimes = new int[nIterations];
 
         // Retain additional information about how the target was reached to report travel time breakdown and paths to targets.
-        perIterationPaths = calculateComponents ? new Path[nIterations] : null;
+        Path[] perIterationPaths = calculateComponents ? new Path[nIterations] : null;
 
-        for (int targetIdx = 0; targetIdx < targets.size(); targetIdx++) {
+        for (int targetIdx = startTarget; targetIdx < endTarget; targetIdx++) {
 
             // Initialize the travel times to that achieved without transit (if any).
             // These travel times do not vary with departure time or MC draw, so they are all the same at a given target.
@@ -139,7 +180,7 @@ public class PerTargetPropagater {
 
             // Improve upon these non-transit travel times based on transit travel times to nearby stops.
             // This fills in perIterationTravelTimes and perIterationPaths for one particular target.
-            propagateTransit(targetIdx);
+            propagateTransit(targetIdx, perIterationTravelTimes, perIterationPaths);
 
             // Construct the PathScorer before extracting percentiles because the scorer needs to make a copy of
             // the unsorted complete travel times.
@@ -162,81 +203,47 @@ public class PerTargetPropagater {
             }
 
         }
-        LOG.info("Propagating {} iterations from {} stops to {} targets took {}s",
-                nIterations, nStops, targets.size(), (System.currentTimeMillis() - startTimeMillis) / 1000d
-        );
-        if (pathWriter != null) {
-            pathWriter.finishAndStorePaths();
-        }
-        targets = null; // Prevent later reuse of this propagator instance.
-        return travelTimeReducer.finish();
-    }
-
-    /**
-     * Transpose the travel times to stops array in order to provide better memory locality in the tight loop below.
-     * We have confirmed that this provides a significant speedup. TODO quantify that speedup and record here in comment.
-     * This speedup is expected because Java represents multidimensional arrays as an array of references to arrays.
-     * This means that each row is stored in a separate chunk of address space, and may not be contiguous with
-     * other rows. The CPU and cache probably can't efficiently predict and prefetch the values we need next.
-     * When we transpose the array, we then have all travel times to a particular stop for all iterations
-     * in a single contiguous array. This means we pull in all the travel times for a particular stop into cache, at
-     * once, rather than unneeded times for the same iteration at other stops. Since we are also looping over the
-     * targets with geographic locality (adjacent cells in the destination grid are geographically adjacent),
-     * it is likely that the stops pulled into cache by handling one target will be reused when handling the next target.
-     * This should not increase memory consumption very much as we're only duplicating the travel times to transit
-     * stops. For example, the Netherlands has about 70,000 stops, if you do 1,000 iterations to 70,000 stops, the
-     * array being transposed and duplicated is 70,000 * 1000 * 4 bytes per int ~= 267 megabytes. It does not seem
-     * worthwhile to change the routing algorithm to output already-transposed data, as that will create memory
-     * locality problems elsewhere (since the pathfinding algorithm solves one iteration for all stops simultaneously).
-     */
-    private void invertTravelTimes() {
-        long startTime = System.currentTimeMillis();
-        travelTimesToStop = new int[nStops][nIterations];
-        for (int iteration = 0; iteration < nIterations; iteration++) {
-            for (int stop = 0; stop < nStops; stop++) {
-                travelTimesToStop[stop][iteration] = travelTimesToStopsForIteration[iteration][stop];
-            }
-        }
-        LOG.info("Travel time matrix transposition took {} msec", System.currentTimeMillis() - startTime);
     }
 
     /**
      * For every "iteration" (departure minute and Monte Carlo schedule), find a complete travel time to the current
-     * target from the given nearby stop, and update the best known time for that iteration and target.
-     * Also record the best paths if we're going to be saving transit path details.
+     * target from each nearby stop, and update the best known time for that iteration and target in
+     * perIterationTravelTimes. Also record the best paths in perIterationPaths if we're going to be saving transit
+     * path details.
      * TODO verify if these are actually travel times (vs. clock times after midnight) and clarify code comments.
      * They appear to be travel times (are compared against cutoffSeconds which is a trip duration).
      */
-    private void propagateTransit (int targetIndex) {
-        // Grab the set of nearby stops for this target, with their distances.
-        TIntIntMap pointToStopDistanceTable = targets.pointToStopDistanceTables.get(targetIndex);
-        // Only try to propagate transit travel times if there are transit stops near this target.
-        // Even if we don't propagate transit travel times, we still need to pass these non-transit times to
-        // the reducer later in the caller, because you can walk even where there is no transit.
-        if (pointToStopDistanceTable != null) {
-            pointToStopDistanceTable.forEachEntry((stop, distanceMillimeters) -> {
-                for (int iteration = 0; iteration < nIterations; iteration++) {
-                    int timeAtStop = travelTimesToStop[stop][iteration];
-                    if (timeAtStop > cutoffSeconds || timeAtStop > perIterationTravelTimes[iteration]) {
-                        // Skip propagation if all resulting times will be greater than the cutoff and
-                        // cannot improve on the best known time at this iteration. Also avoids overflow.
-                        continue;
-                    }
-                    // If recording path details, extract the row of paths to all stops for this iteration.
-                    // Propagate from the current stop out to the target.
-                    int timeAtTarget = timeAtStop + distanceMillimeters / speedMillimetersPerSecond;
-                    if (timeAtTarget < cutoffSeconds &&
-                        timeAtTarget < perIterationTravelTimes[iteration]) {
-                        // To reach this target, alighting at this stop is faster than any previously checked stop.
-                        perIterationTravelTimes[iteration] = timeAtTarget;
-                        if (calculateComponents) {
-                            Path[] pathsToStops = pathsToStopsForIteration.get(iteration);
-                            perIterationPaths[iteration] = pathsToStops[stop];
-                        }
+    private void propagateTransit (int targetIndex, int[] perIterationTravelTimes, Path[] perIterationPaths) {
+        // Loop over the nearby stops for this target, with their distances.
+        // There are none if there are no transit stops near this target. Even if we don't propagate transit travel
+        // times, we still need to pass these non-transit times to the reducer later in the caller, because you can
+        // walk even where there is no transit.
+        CompressedSparseRows pointToStopDistanceTables = targets.pointToStopDistanceTables;
+        int end = pointToStopDistanceTables.rowEnd(targetIndex);
+        for (int i = pointToStopDistanceTables.rowStart(targetIndex); i < end; i++) {
+            int stop = pointToStopDistanceTables.key(i);
+            int distanceMillimeters = pointToStopDistanceTables.value(i);
+            int stopOffset = stop * nIterations;
+            for (int iteration = 0; iteration < nIterations; iteration++) {
+                int timeAtStop = travelTimesToStops[stopOffset + iteration];
+                if (timeAtStop > cutoffSeconds || timeAtStop > perIterationTravelTimes[iteration]) {
+                    // Skip propagation if all resulting times will be greater than the cutoff and
+                    // cannot improve on the best known time at this iteration. Also avoids overflow.
+                    continue;
+                }
+                // If recording path details, extract the row of paths to all stops for this iteration.
+                // Propagate from the current stop out to the target.
+                int timeAtTarget = timeAtStop + distanceMillimeters / speedMillimetersPerSecond;
+                if (timeAtTarget < cutoffSeconds &&
+                    timeAtTarget < perIterationTravelTimes[iteration]) {
+                    // To reach this target, alighting at this stop is faster than any previously checked stop.
+                    perIterationTravelTimes[iteration] = timeAtTarget;
+                    if (calculateComponents) {
+                        Path[] pathsToStops = pathsToStopsForIteration.get(iteration);
+                        perIterationPaths[iteration] = pathsToStops[stop];
                     }
                 }
-                return true; // Trove "continue iteration" signal.
-            });
+            }
         }
 
     }
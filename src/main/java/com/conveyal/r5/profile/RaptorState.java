@@ -21,6 +21,12 @@ import java.util.BitSet;
  * Note that this represents the entire state of the RAPTOR search for a single round, rather than the state at
  * a particular vertex (transit stop), as is the case with State objects in other search algorithms we have.
  *
+ * The arrays that are only needed to reconstruct paths or break down travel time into its components (transferStop,
+ * nonTransferWaitTime and nonTransferInVehicleTravelTime) are only allocated and maintained when retainPaths is true.
+ * Most analysis work only needs travel times, and leaving them out means each round touches a little over half as
+ * much memory. The previousPatterns and previousStop arrays are always kept as the search itself uses them to avoid
+ * reboarding the pattern a stop was reached on.
+ *
  * @author mattwigway
  */
 public class RaptorState {
@@ -38,6 +44,12 @@ public class RaptorState {
     /** The best times for reaching stops via transit rather than via a transfer from another stop */
     public int[] bestNonTransferTimes;
 
+    /**
+     * Whether this state keeps the information needed to reconstruct paths. If false, transferStop,
+     * nonTransferWaitTime and nonTransferInVehicleTravelTime are null.
+     */
+    public final boolean retainPaths;
+
     /** Cumulative transit wait time for the best path to each stop, parallel to bestNonTransferTimes. */
     public int[] nonTransferWaitTime;
 
@@ -73,6 +85,15 @@ public class RaptorState {
 
     /** create a RaptorState for a network with a particular number of stops, and a given maximum duration */
     public RaptorState (int nStops, int maxDurationSeconds) {
+        this(nStops, maxDurationSeconds, true);
+    }
+
+    /**
+     * Create a RaptorState for a network with a particular number of stops, and a given maximum duration, which only
+     * stores path information if retainPaths is true.
+     */
+    public RaptorState (int nStops, int maxDurationSeconds, boolean retainPaths) {
+        this.retainPaths = retainPaths;
         this.bestTimes = new int[nStops];
         this.bestNonTransferTimes = new int[nStops];
 
@@ -81,13 +102,15 @@ public class RaptorState {
 
         this.previousPatterns = new int[nStops];
         this.previousStop = new int[nStops];
-        this.transferStop = new int[nStops];
         Arrays.fill(previousPatterns, -1);
         Arrays.fill(previousStop, -1);
-        Arrays.fill(transferStop, -1);
 
-        this.nonTransferWaitTime = new int[nStops];
-        this.nonTransferInVehicleTravelTime = new int[nStops];
+        if (retainPaths) {
+            this.transferStop = new int[nStops];
+            Arrays.fill(transferStop, -1);
+            this.nonTransferWaitTime = new int[nStops];
+            this.nonTransferInVehicleTravelTime = new int[nStops];
+        }
         this.nonTransferStopsTouched = new BitSet(nStops);
         this.bestStopsTouched = new BitSet(nStops);
         this.maxDurationSeconds = maxDurationSeconds;
@@ -101,9 +124,12 @@ public class RaptorState {
         this.bestNonTransferTimes = Arrays.copyOf(state.bestNonTransferTimes, state.bestNonTransferTimes.length);
         this.previousPatterns = Arrays.copyOf(state.previousPatterns, state.previousPatterns.length);
         this.previousStop = Arrays.copyOf(state.previousStop, state.previousStop.length);
-        this.transferStop = Arrays.copyOf(state.transferStop, state.transferStop.length);
-        this.nonTransferWaitTime = Arrays.copyOf(state.nonTransferWaitTime, state.nonTransferWaitTime.length);
-        this.nonTransferInVehicleTravelTime = Arrays.copyOf(state.nonTransferInVehicleTravelTime, state.nonTransferInVehicleTravelTime.length);
+        this.retainPaths = state.retainPaths;
+        if (retainPaths) {
+            this.transferStop = Arrays.copyOf(state.transferStop, state.transferStop.length);
+            this.nonTransferWaitTime = Arrays.copyOf(state.nonTransferWaitTime, state.nonTransferWaitTime.length);
+            this.nonTransferInVehicleTravelTime = Arrays.copyOf(state.nonTransferInVehicleTravelTime, state.nonTransferInVehicleTravelTime.length);
+        }
         this.departureTime = state.departureTime;
 
         this.previous = state;
@@ -122,6 +148,52 @@ public class RaptorState {
         return new RaptorState(this);
     }
 
+    /**
+     * Overwrite this state in place with the contents of another state for the same number of stops and the same
+     * retainPaths setting, without allocating any new arrays. Like the copy constructor, this leaves the touched stop
+     * sets empty. The previous state is not changed, as when reusing states it is already linked to the reused state for
+     * the previous round.
+     */
+    public void copyFrom (RaptorState other) {
+        int nStops = this.bestTimes.length;
+        System.arraycopy(other.bestTimes, 0, this.bestTimes, 0, nStops);
+        System.arraycopy(other.bestNonTransferTimes, 0, this.bestNonTransferTimes, 0, nStops);
+        System.arraycopy(other.previousPatterns, 0, this.previousPatterns, 0, nStops);
+        System.arraycopy(other.previousStop, 0, this.previousStop, 0, nStops);
+        if (retainPaths) {
+            System.arraycopy(other.transferStop, 0, this.transferStop, 0, nStops);
+            System.arraycopy(other.nonTransferWaitTime, 0, this.nonTransferWaitTime, 0, nStops);
+            System.arraycopy(other.nonTransferInVehicleTravelTime, 0, this.nonTransferInVehicleTravelTime, 0, nStops);
+        }
+        this.departureTime = other.departureTime;
+        this.maxDurationSeconds = other.maxDurationSeconds;
+        this.nonTransferStopsTouched.clear();
+        this.bestStopsTouched.clear();
+    }
+
+    /**
+     * Overwrite only the given stops in this state with the values from another state, leaving the touched stop sets
+     * empty. This is only correct when all stops not in the given set already hold the same values in both states,
+     * i.e. when this state was previously copied from the other one and only the given stops have been modified since.
+     */
+    public void copyFrom (RaptorState other, BitSet stops) {
+        for (int stop = stops.nextSetBit(0); stop >= 0; stop = stops.nextSetBit(stop + 1)) {
+            this.bestTimes[stop] = other.bestTimes[stop];
+            this.bestNonTransferTimes[stop] = other.bestNonTransferTimes[stop];
+            this.previousPatterns[stop] = other.previousPatterns[stop];
+            this.previousStop[stop] = other.previousStop[stop];
+            if (retainPaths) {
+                this.transferStop[stop] = other.transferStop[stop];
+                this.nonTransferWaitTime[stop] = other.nonTransferWaitTime[stop];
+                this.nonTransferInVehicleTravelTime[stop] = other.nonTransferInVehicleTravelTime[stop];
+            }
+        }
+        this.departureTime = other.departureTime;
+        this.maxDurationSeconds = other.maxDurationSeconds;
+        this.nonTransferStopsTouched.clear();
+        this.bestStopsTouched.clear();
+    }
+
     /**
      * Set this state to the min values found in this state or the other passed in (used in Range RAPTOR).
      * Since this is used to progress between rounds, does not copy stopsTouched data.
@@ -132,21 +204,26 @@ public class RaptorState {
             // prefer times from other when breaking tie as other is earlier in RAPTOR search and thus has fewer transfers
             if (other.bestTimes[stop] <= this.bestTimes[stop]) {
                 this.bestTimes[stop] = other.bestTimes[stop];
-                this.transferStop[stop] = other.transferStop[stop];
+                if (retainPaths) this.transferStop[stop] = other.transferStop[stop];
             }
             if (other.bestNonTransferTimes[stop] <= this.bestNonTransferTimes[stop]) {
                 this.bestNonTransferTimes[stop] = other.bestNonTransferTimes[stop];
                 this.previousPatterns[stop] = other.previousPatterns[stop];
                 this.previousStop[stop] = other.previousStop[stop];
-                this.nonTransferInVehicleTravelTime[stop] = other.nonTransferInVehicleTravelTime[stop];
-                // add in any additional wait at the beginning in the range raptor case.
-                this.nonTransferWaitTime[stop] = other.nonTransferWaitTime[stop] + (other.departureTime - this.departureTime);
+                if (retainPaths) {
+                    this.nonTransferInVehicleTravelTime[stop] = other.nonTransferInVehicleTravelTime[stop];
+                    // add in any additional wait at the beginning in the range raptor case.
+                    this.nonTransferWaitTime[stop] = other.nonTransferWaitTime[stop] + (other.departureTime - this.departureTime);
+                }
             }
         }
     }
 
     /**
-     * Set the time at a transit stop iff it is optimal. This sets both the bestTime and the nonTransferTime
+     * Set the time at a transit stop iff it is optimal. This sets both the bestTime and the nonTransferTime.
+     * If this state does not retain paths, only the times, touched stops and the pattern information the search needs
+     * to avoid reboarding are recorded, and the wait and in-vehicle times are ignored. FastRaptorWorker doesn't compute
+     * them at all in that case and passes zeros.
      *
      * @param transfer if true, this was reached via transfer/initial walk
      * @return if the time was optimal
@@ -161,35 +238,37 @@ public class RaptorState {
             previousPatterns[stop] = fromPattern;
             previousStop[stop] = fromStop;
 
-            // wait time is not stored after transfers, so copy from pre-transfer
-            int totalWaitTime, totalInVehicleTime;
-
-            if (previous == null) {
-                // first round, there is no previous wait time or in vehicle time
-                totalWaitTime = waitTime;
-                totalInVehicleTime = inVehicleTime;
-            } else {
-                if (previous.transferStop[fromStop] != -1) {
-                    // previous stop is optimally reached via a transfer, so grab the wait and in vehicle time from
-                    // the stop we transferred from. Otherwise we'll be grabbing the wait time to get to the board stop
-                    // on a vehicle, which may be impossible at this round or may simply take longer.
-                    int preTransferStop = previous.transferStop[fromStop];
-                    totalWaitTime = previous.nonTransferWaitTime[preTransferStop] + waitTime;
-                    totalInVehicleTime = previous.nonTransferInVehicleTravelTime[preTransferStop] + inVehicleTime;
+            if (retainPaths) {
+                // wait time is not stored after transfers, so copy from pre-transfer
+                int totalWaitTime, totalInVehicleTime;
+
+                if (previous == null) {
+                    // first round, there is no previous wait time or in vehicle time
+                    totalWaitTime = waitTime;
+                    totalInVehicleTime = inVehicleTime;
                 } else {
-                    // the stop we boarded at was not the result of a transfer from another stop, grab the cumulative
-                    // wait time from that stop
-                    totalWaitTime = previous.nonTransferWaitTime[fromStop] + waitTime;
-                    totalInVehicleTime = previous.nonTransferInVehicleTravelTime[fromStop] + inVehicleTime;
+                    if (previous.transferStop[fromStop] != -1) {
+                        // previous stop is optimally reached via a transfer, so grab the wait and in vehicle time from
+                        // the stop we transferred from. Otherwise we'll be grabbing the wait time to get to the board stop
+                        // on a vehicle, which may be impossible at this round or may simply take longer.
+                        int preTransferStop = previous.transferStop[fromStop];
+                        totalWaitTime = previous.nonTransferWaitTime[preTransferStop] + waitTime;
+                        totalInVehicleTime = previous.nonTransferInVehicleTravelTime[preTransferStop] + inVehicleTime;
+                    } else {
+                        // the stop we boarded at was not the result of a transfer from another stop, grab the cumulative
+                        // wait time from that stop
+                        totalWaitTime = previous.nonTransferWaitTime[fromStop] + waitTime;
+                        totalInVehicleTime = previous.nonTransferInVehicleTravelTime[fromStop] + inVehicleTime;
+                    }
                 }
-            }
 
-            if (totalInVehicleTime + totalWaitTime > time - departureTime) {
-                LOG.error("Wait and travel time greater than total time.");
-            }
+                if (totalInVehicleTime + totalWaitTime > time - departureTime) {
+                    LOG.error("Wait and travel time greater than total time.");
+                }
 
-            nonTransferWaitTime[stop] = totalWaitTime;
-            nonTransferInVehicleTravelTime[stop] = totalInVehicleTime;
+                nonTransferWaitTime[stop] = totalWaitTime;
+                nonTransferInVehicleTravelTime[stop] = totalInVehicleTime;
+            }
             optimal = true;
         }
 
@@ -198,10 +277,12 @@ public class RaptorState {
         if (time < bestTimes[stop]) {
             bestTimes[stop] = time;
             bestStopsTouched.set(stop);
-            if (transfer) {
-                transferStop[stop] = fromStop;
-            } else {
-                transferStop[stop] = -1;
+            if (retainPaths) {
+                if (transfer) {
+                    transferStop[stop] = fromStop;
+                } else {
+                    transferStop[stop] = -1;
+                }
             }
             optimal = true;
         }
@@ -250,6 +331,7 @@ public class RaptorState {
         }
 
         // handle updating wait
+        if (!retainPaths) return;
         for (int stop = 0; stop < this.bestTimes.length; stop++) {
             if (this.previousPatterns[stop] > -1) {
                 this.nonTransferWaitTime[stop] += previousDepartureTime - departureTime;
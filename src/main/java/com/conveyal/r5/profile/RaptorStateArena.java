@@ -0,0 +1,96 @@
+package com.conveyal.r5.profile;
+
+import java.util.BitSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A set of RaptorStates (one per round) that a single thread reuses for all of its Monte Carlo frequency searches.
+ *
+ * Each Monte Carlo draw starts from a copy of the scheduled search states. Allocating that copy for every draw
+ * produces several arrays of size nStops per round per draw, which on large networks means gigabytes of garbage per
+ * origin. Instead each thread keeps one set of states and overwrites it in place.
+ *
+ * Within a single departure minute, all the draws start from the same scheduled states. A draw can only change the
+ * stops that it touches (or that were touched in earlier rounds, which the next round may pick up through min()), so
+ * when the next draw starts from the same scheduled states we only restore those stops rather than copying every
+ * array in full. Scheduled states are identified by a generation number, which the worker advances every time it
+ * modifies them.
+ *
+ * The arena is held in a ThreadLocal so it survives from one origin to the next in regional analyses. It is only
+ * replaced when the number of stops or rounds changes (e.g. when the worker switches to a different network) or when
+ * switching between searches that do and do not retain paths.
+ */
+class RaptorStateArena {
+
+    private static final ThreadLocal<RaptorStateArena> arenaForThread = new ThreadLocal<>();
+
+    /** Source of unique identifiers for the contents of the scheduled search states. */
+    private static final AtomicLong generations = new AtomicLong();
+
+    /** The reusable states, linked together with the previous pointer as in a freshly copied set of states. */
+    final RaptorState[] states;
+
+    /** Reused to mark the patterns touched in each round of the frequency searches performed on this thread. */
+    final BitSet patternsTouched = new BitSet();
+
+    /** All stops that have been touched in any round since the states were last copied from the source states. */
+    private final BitSet stopsToRestore;
+
+    /** The generation of the source states that this arena was last copied from, or -1 if its contents are unknown. */
+    private long sourceGeneration = -1;
+
+    private RaptorStateArena (int nStops, int nRounds, int maxDurationSeconds, boolean retainPaths) {
+        states = new RaptorState[nRounds];
+        for (int i = 0; i < nRounds; i++) {
+            states[i] = new RaptorState(nStops, maxDurationSeconds, retainPaths);
+            if (i > 0) states[i].previous = states[i - 1];
+        }
+        stopsToRestore = new BitSet(nStops);
+    }
+
+    /** @return a new identifier to associate with scheduled search states that have just been modified. */
+    static long nextGeneration () {
+        return generations.incrementAndGet();
+    }
+
+    /**
+     * @return the arena for the calling thread, creating it if the thread has none or has one with a different size or
+     *         retainPaths setting.
+     */
+    static RaptorStateArena forCurrentThread (int nStops, int nRounds, int maxDurationSeconds, boolean retainPaths) {
+        RaptorStateArena arena = arenaForThread.get();
+        if (arena == null || arena.states.length != nRounds || arena.states[0].bestTimes.length != nStops
+                || arena.states[0].retainPaths != retainPaths) {
+            arena = new RaptorStateArena(nStops, nRounds, maxDurationSeconds, retainPaths);
+            arenaForThread.set(arena);
+        }
+        return arena;
+    }
+
+    /**
+     * Make the states in this arena equal to the given source states, as if they had been copied with
+     * RaptorState.copy(). If the arena was last copied from the same generation of the source states, only the stops
+     * touched since then are restored.
+     *
+     * @return the states of this arena, which are only valid until the next call to this method on the same thread.
+     */
+    RaptorState[] copyOf (RaptorState[] source, long generation) {
+        if (generation == sourceGeneration) {
+            for (int i = 0; i < states.length; i++) states[i].copyFrom(source[i], stopsToRestore);
+        } else {
+            for (int i = 0; i < states.length; i++) states[i].copyFrom(source[i]);
+        }
+        stopsToRestore.clear();
+        sourceGeneration = generation;
+        return states;
+    }
+
+    /**
+     * Record the stops touched in the given state so they will be restored before the next draw. This must be called
+     * for every round once the round is complete, before its touched stop sets are modified or cleared.
+     */
+    void recordTouchedStops (RaptorState state) {
+        stopsToRestore.or(state.bestStopsTouched);
+        stopsToRestore.or(state.nonTransferStopsTouched);
+    }
+}
@@ -0,0 +1,87 @@
+package com.conveyal.r5.profile;
+
+import com.conveyal.r5.transit.TripPattern;
+import com.conveyal.r5.transit.TripSchedule;
+
+import java.util.BitSet;
+
+/**
+ * The scheduled (non-frequency) trips on one pattern that are running on the day of a search, built once per search so
+ * the RAPTOR rounds don't have to repeatedly skip over trips that are not running or are frequency-based.
+ *
+ * Departure times are stored stop-major in a single flat array, so all the departures from one stop are adjacent in
+ * memory. Trips remain in the same order as on the pattern, i.e. sorted by departure time at the first stop. Vehicles
+ * may overtake one another further along the pattern, so the departures at a given stop are not necessarily sorted.
+ * We record which stops have sorted departures and use a binary search to find the earliest trip at those stops,
+ * falling back on a linear scan elsewhere. Both give the same result as scanning the full list of trip schedules.
+ */
+class ScheduledTripIndex {
+
+    /** The running scheduled trips, in the order they appear on the pattern. */
+    final TripSchedule[] schedules;
+
+    /** The number of running scheduled trips. */
+    final int nTrips;
+
+    /** Departure times of each trip at each stop, indexed by stopPositionInPattern * nTrips + trip. */
+    private final int[] departures;
+
+    /** Set for each stop position at which the departure times are non-decreasing in trip order. */
+    private final BitSet sortedAtStop;
+
+    ScheduledTripIndex (TripPattern pattern, BitSet servicesActive) {
+        int nRunning = 0;
+        for (TripSchedule schedule : pattern.tripSchedules) {
+            if (servicesActive.get(schedule.serviceCode) && schedule.headwaySeconds == null) nRunning++;
+        }
+
+        nTrips = nRunning;
+        schedules = new TripSchedule[nTrips];
+        int trip = 0;
+        for (TripSchedule schedule : pattern.tripSchedules) {
+            if (servicesActive.get(schedule.serviceCode) && schedule.headwaySeconds == null) schedules[trip++] = schedule;
+        }
+
+        int nStops = pattern.stops.length;
+        departures = new int[nStops * nTrips];
+        sortedAtStop = new BitSet(nStops);
+        for (int stopPositionInPattern = 0; stopPositionInPattern < nStops; stopPositionInPattern++) {
+            boolean sorted = true;
+            int offset = stopPositionInPattern * nTrips;
+            for (trip = 0; trip < nTrips; trip++) {
+                departures[offset + trip] = schedules[trip].departures[stopPositionInPattern];
+                if (trip > 0 && departures[offset + trip] < departures[offset + trip - 1]) sorted = false;
+            }
+            if (sorted) sortedAtStop.set(stopPositionInPattern);
+        }
+    }
+
+    /** @return the departure time of the given running trip at the given stop position. */
+    int departure (int trip, int stopPositionInPattern) {
+        return departures[stopPositionInPattern * nTrips + trip];
+    }
+
+    /**
+     * Find the first trip (in pattern order) that departs the given stop position strictly after the given time.
+     * @return the index of that trip among the running trips, or -1 if no such trip exists.
+     */
+    int findFirstTripDepartingAfter (int stopPositionInPattern, int time) {
+        int offset = stopPositionInPattern * nTrips;
+        if (sortedAtStop.get(stopPositionInPattern)) {
+            // binary search for the first departure greater than the given time
+            int low = 0;
+            int high = nTrips;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (departures[offset + mid] > time) high = mid;
+                else low = mid + 1;
+            }
+            return low < nTrips ? low : -1;
+        } else {
+            for (int trip = 0; trip < nTrips; trip++) {
+                if (departures[offset + trip] > time) return trip;
+            }
+            return -1;
+        }
+    }
+}
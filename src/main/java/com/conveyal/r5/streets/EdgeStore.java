@@ -8,6 +8,7 @@ import com.conveyal.r5.profile.ProfileRequest;
 import com.conveyal.r5.trove.AugmentedList;
 import com.conveyal.r5.trove.TIntAugmentedList;
 import com.conveyal.r5.trove.TLongAugmentedList;
+import com.conveyal.r5.util.MappedColumnFile;
 import com.conveyal.r5.util.TIntIntHashMultimap;
 import com.conveyal.r5.util.TIntIntMultimap;
 import com.vividsolutions.jts.geom.Coordinate;
@@ -28,6 +29,7 @@ import gnu.trove.map.hash.TIntIntHashMap;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.EnumSet;
@@ -77,7 +79,7 @@ public class EdgeStore implements Serializable {
     public VertexStore vertexStore;
 
     /** Boolean flags for every edge. Separate entries for forward and backward edges. */
-    public TIntList flags;
+    public transient TIntList flags;
 
     /**
      * One speed for each edge. Separate entries for forward and backward edges.
@@ -85,39 +87,39 @@ public class EdgeStore implements Serializable {
      * Saved speed is mostly the same as speed saved as m/s * 1000 it differs in second decimal place and is 0.024% smaller
      * This way of saving speeds is 3.5% smaller then previous (saving 7 decimal places)
      */
-    public TShortList speeds;
+    public transient TShortList speeds;
 
     /** The index of the origin vertex of each edge pair in the forward direction. One entry for each edge pair. */
-    public TIntList fromVertices;
+    public transient TIntList fromVertices;
 
     /** The index of the destination vertex of each edge pair in the forward direction. One entry for each edge pair. */
-    public TIntList toVertices;
+    public transient TIntList toVertices;
 
     /** Length of the edge along its geometry (millimeters). One entry for each edge pair. */
-    public TIntList lengths_mm;
+    public transient TIntList lengths_mm;
 
     /** OSM ids of edges. One entry for each edge pair */
-    public TLongList osmids;
+    public transient TLongList osmids;
 
     /**
      * Geometries. One entry for each edge pair. These are packed lists of lat, lon, lat, lon... as fixed-point
      * integers, and don't include the endpoints (i.e. don't include the intersection vertices, only intermediate points).
      */
-    public List<int[]> geometries;
+    public transient List<int[]> geometries;
 
     /**
      * The compass angle at the start of the edge geometry (binary radians clockwise from North).
      * Internal representation is -180 to +179 integer degrees mapped to -128 to +127 (brads)
      * One entry for each edge pair.
      */
-    public TByteList inAngles;
+    public transient TByteList inAngles;
 
     /**
      * The compass angle at the end of the edge geometry (binary radians clockwise from North).
      * Internal representation is -180 to +179 integer degrees mapped to -128 to +127 (brads)
      * One entry for each edge pair.
      */
-    public TByteList outAngles;
+    public transient TByteList outAngles;
 
     /**
      * When applying scenarios, we don't duplicate the entire set of edges and vertices. We extend them, treating
@@ -1092,6 +1094,39 @@ public class EdgeStore implements Serializable {
         // Private trivial constructor. Leaves all fields blank for use in extend-only copy method.
     }
 
+    /**
+     * Write the lists with one entry per edge or edge pair to the given file as columns. These lists are transient,
+     * and are restored by readColumns rather than being serialized with the rest of this EdgeStore.
+     */
+    public void writeColumns (MappedColumnFile.Writer writer) throws IOException {
+        writer.writeInts("edges.flags", flags);
+        writer.writeShorts("edges.speeds", speeds);
+        writer.writeInts("edges.fromVertices", fromVertices);
+        writer.writeInts("edges.toVertices", toVertices);
+        writer.writeInts("edges.lengths_mm", lengths_mm);
+        writer.writeLongs("edges.osmids", osmids);
+        writer.writeIntArrays("edges.geometries", geometries);
+        writer.writeBytes("edges.inAngles", inAngles);
+        writer.writeBytes("edges.outAngles", outAngles);
+    }
+
+    /**
+     * Replace the lists with one entry per edge or edge pair with read-only views of the columns in the given file,
+     * which are mapped into memory rather than copied onto the heap. Edges can't be added to or modified in this
+     * EdgeStore afterward, only in the extend-only copies made when applying scenarios.
+     */
+    public void readColumns (MappedColumnFile.Reader reader) throws IOException {
+        flags = reader.readInts("edges.flags");
+        speeds = reader.readShorts("edges.speeds");
+        fromVertices = reader.readInts("edges.fromVertices");
+        toVertices = reader.readInts("edges.toVertices");
+        lengths_mm = reader.readInts("edges.lengths_mm");
+        osmids = reader.readLongs("edges.osmids");
+        geometries = reader.readIntArrays("edges.geometries");
+        inAngles = reader.readBytes("edges.inAngles");
+        outAngles = reader.readBytes("edges.outAngles");
+    }
+
     /**
      * Returns a semi-deep copy of this EdgeStore for use when applying Scenarios. Mutable objects and collections
      * will be cloned, but their contents will not. The lists containing the edge characteristics will be copied
@@ -0,0 +1,244 @@
+package com.conveyal.r5.streets;
+
+import com.conveyal.r5.profile.StreetMode;
+import com.conveyal.r5.util.IndexedIntHeap;
+import gnu.trove.list.TIntList;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.function.ToIntFunction;
+
+/**
+ * Precomputed costs between a few "landmark" vertices and every other vertex in the street network, for one street
+ * mode. These provide lower bounds on the cost of travel between any two vertices via the triangle inequality, which
+ * StreetRouter uses as an A* heuristic when searching toward a specific destination. This is the ALT technique
+ * (A*, Landmarks, and Triangle inequality) of Goldberg and Harrelson, "Computing the Shortest Path: A* Search Meets
+ * Graph Theory" (2005). The bounds follow the street network, so they are much tighter than the straight-line
+ * distance in places where streets are not direct, and for cars they account for the speed of every street.
+ *
+ * The costs are computed on a relaxed version of the graph that ignores turn costs and turn restrictions, and that
+ * assigns each edge the least cost a search can ever incur traversing it. Any path a StreetRouter finds costs at
+ * least as much in the relaxed graph, so the bounds never overestimate and searches still respect turn restrictions.
+ *
+ * The tables are only valid for the street layer they were built on. They are not used on scenario copies of the
+ * street layer that have added vertices or edges, since those could create shortcuts that the tables don't know about.
+ */
+public class Landmarks implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final Logger LOG = LoggerFactory.getLogger(Landmarks.class);
+
+    /** Marks vertices that can't reach or be reached from a landmark. */
+    private static final int UNREACHED = Integer.MAX_VALUE;
+
+    /** The street mode whose permissions (and for cars, speeds) these tables reflect. */
+    public final StreetMode streetMode;
+
+    /** The street vertices that were chosen as landmarks. */
+    public final int[] landmarkVertices;
+
+    /** The size of the street layer when these tables were built, used to detect when they no longer apply. */
+    private final int nVertices, nEdges;
+
+    /**
+     * Distances in millimeters from each landmark to each vertex and from each vertex to each landmark. Indexed by
+     * vertex * nLandmarks + landmark, so all the values needed to compute the bound at one vertex are adjacent.
+     */
+    private final int[] distancesFromLandmarks, distancesToLandmarks;
+
+    /** Car travel times in seconds, in the same layout as the distances. Null for modes other than CAR. */
+    private final int[] timesFromLandmarks, timesToLandmarks;
+
+    private Landmarks (StreetLayer streetLayer, StreetMode streetMode, int nLandmarks) {
+        this.streetMode = streetMode;
+        this.nVertices = streetLayer.getVertexCount();
+        this.nEdges = streetLayer.edgeStore.nEdges();
+
+        ToIntFunction<EdgeStore.Edge> distanceCost = edge -> allows(edge, streetMode) ?
+                Math.max(1, edge.getLengthMm()) : -1;
+
+        // Choose landmarks that are far apart: each landmark is the vertex farthest from all the previous ones.
+        // Start from the vertex farthest from an arbitrary vertex, which will be on the periphery of the network.
+        int[][] distancesFrom = new int[nLandmarks][];
+        int[] distanceFromNearestLandmark = shortestPaths(streetLayer, firstVertexAllowing(streetLayer), false, distanceCost);
+        int[] landmarks = new int[nLandmarks];
+        int nFound = 0;
+        while (nFound < nLandmarks) {
+            int landmark = -1;
+            for (int v = 0, best = 0; v < nVertices; v++) {
+                int distance = distanceFromNearestLandmark[v];
+                if (distance != UNREACHED && distance > best) {
+                    best = distance;
+                    landmark = v;
+                }
+            }
+            if (landmark < 0) break; // All remaining reachable vertices are already landmarks.
+            landmarks[nFound] = landmark;
+            distancesFrom[nFound] = shortestPaths(streetLayer, landmark, false, distanceCost);
+            if (nFound == 0) Arrays.fill(distanceFromNearestLandmark, UNREACHED);
+            for (int v = 0; v < nVertices; v++) {
+                distanceFromNearestLandmark[v] = Math.min(distanceFromNearestLandmark[v], distancesFrom[nFound][v]);
+            }
+            nFound++;
+        }
+        landmarkVertices = Arrays.copyOf(landmarks, nFound);
+
+        distancesFromLandmarks = interleave(distancesFrom, nFound);
+        distancesToLandmarks = interleave(computeAll(streetLayer, true, distanceCost), nFound);
+        if (streetMode == StreetMode.CAR) {
+            ToIntFunction<EdgeStore.Edge> timeCost = Landmarks::minimumCarTraversalSeconds;
+            timesFromLandmarks = interleave(computeAll(streetLayer, false, timeCost), nFound);
+            timesToLandmarks = interleave(computeAll(streetLayer, true, timeCost), nFound);
+        } else {
+            timesFromLandmarks = null;
+            timesToLandmarks = null;
+        }
+    }
+
+    /**
+     * Choose landmarks on the given street layer and compute the tables for the given street mode. This performs
+     * several complete searches of the street network per landmark, so should only be done when building a network.
+     */
+    public static Landmarks build (StreetLayer streetLayer, StreetMode streetMode, int nLandmarks) {
+        long startTime = System.currentTimeMillis();
+        Landmarks landmarks = new Landmarks(streetLayer, streetMode, nLandmarks);
+        LOG.info("Built {} landmark tables for {} in {} sec.", landmarks.landmarkVertices.length, streetMode,
+                (System.currentTimeMillis() - startTime) / 1000d);
+        return landmarks;
+    }
+
+    /** @return true if these tables still describe the given street layer, i.e. it has not been extended. */
+    public boolean canBeUsedOn (StreetLayer streetLayer) {
+        return streetLayer.getVertexCount() == nVertices && streetLayer.edgeStore.nEdges() == nEdges;
+    }
+
+    /** @return the approximate heap space used by these tables, in bytes. */
+    public long estimateSizeBytes () {
+        long nValues = distancesFromLandmarks.length + distancesToLandmarks.length;
+        if (timesFromLandmarks != null) nValues += timesFromLandmarks.length + timesToLandmarks.length;
+        return nValues * Integer.BYTES;
+    }
+
+    /** @return true if these tables include car travel times as well as distances. */
+    public boolean hasTravelTimes () {
+        return timesFromLandmarks != null;
+    }
+
+    /**
+     * @return a lower bound on the distance in millimeters from the given vertex to the nearest of the target vertices.
+     */
+    public int distanceLowerBoundMm (int vertex, int[] targets) {
+        return lowerBound(distancesFromLandmarks, distancesToLandmarks, vertex, targets);
+    }
+
+    /**
+     * @return a lower bound on the car travel time in seconds from the given vertex to the nearest of the target
+     *         vertices. Only valid if hasTravelTimes().
+     */
+    public int timeLowerBoundSeconds (int vertex, int[] targets) {
+        return lowerBound(timesFromLandmarks, timesToLandmarks, vertex, targets);
+    }
+
+    private int lowerBound (int[] fromLandmarks, int[] toLandmarks, int vertex, int[] targets) {
+        int nLandmarks = landmarkVertices.length;
+        if (vertex < 0 || vertex >= nVertices) return 0;
+        int minOverTargets = Integer.MAX_VALUE;
+        for (int target : targets) {
+            if (target < 0 || target >= nVertices) return 0;
+            int maxOverLandmarks = 0;
+            for (int l = 0, v = vertex * nLandmarks, t = target * nLandmarks; l < nLandmarks; l++, v++, t++) {
+                // By the triangle inequality, cost(L, t) <= cost(L, v) + cost(v, t),
+                // and cost(v, L) <= cost(v, t) + cost(t, L).
+                if (fromLandmarks[v] != UNREACHED && fromLandmarks[t] != UNREACHED) {
+                    maxOverLandmarks = Math.max(maxOverLandmarks, fromLandmarks[t] - fromLandmarks[v]);
+                }
+                if (toLandmarks[v] != UNREACHED && toLandmarks[t] != UNREACHED) {
+                    maxOverLandmarks = Math.max(maxOverLandmarks, toLandmarks[v] - toLandmarks[t]);
+                }
+            }
+            minOverTargets = Math.min(minOverTargets, maxOverLandmarks);
+        }
+        return minOverTargets == Integer.MAX_VALUE ? 0 : minOverTargets;
+    }
+
+    /**
+     * The least time in seconds that StreetRouter can record for driving along the given edge, or -1 if cars can't use
+     * it. EdgeStore.traverse rounds the time up and the weight down to a whole number of seconds, and always increments
+     * both by at least one.
+     */
+    private static int minimumCarTraversalSeconds (EdgeStore.Edge edge) {
+        if (!edge.allowsStreetMode(StreetMode.CAR)) return -1;
+        float speedMetersPerSecond = edge.getCarSpeedMetersPerSecond();
+        if (!(speedMetersPerSecond > 0)) return 1;
+        return Math.max(1, (int) (float) (edge.getLengthM() / speedMetersPerSecond));
+    }
+
+    /** @return true if a search in the given mode can traverse the given edge, possibly walking a bicycle. */
+    private static boolean allows (EdgeStore.Edge edge, StreetMode streetMode) {
+        if (streetMode == StreetMode.BICYCLE) {
+            return edge.allowsStreetMode(StreetMode.BICYCLE) || edge.allowsStreetMode(StreetMode.WALK);
+        }
+        return edge.allowsStreetMode(streetMode);
+    }
+
+    private static int firstVertexAllowing (StreetLayer streetLayer) {
+        for (int v = 0; v < streetLayer.getVertexCount(); v++) {
+            if (!streetLayer.outgoingEdges.get(v).isEmpty()) return v;
+        }
+        return 0;
+    }
+
+    private int[][] computeAll (StreetLayer streetLayer, boolean toLandmarks, ToIntFunction<EdgeStore.Edge> cost) {
+        return Arrays.stream(landmarkVertices)
+                .parallel()
+                .mapToObj(landmark -> shortestPaths(streetLayer, landmark, toLandmarks, cost))
+                .toArray(int[][]::new);
+    }
+
+    /** Combine per-landmark tables into a single vertex-major table. */
+    private int[] interleave (int[][] tables, int nLandmarks) {
+        int[] result = new int[nVertices * nLandmarks];
+        for (int l = 0; l < nLandmarks; l++) {
+            for (int v = 0; v < nVertices; v++) result[v * nLandmarks + l] = tables[l][v];
+        }
+        return result;
+    }
+
+    /**
+     * Dijkstra's algorithm on street vertices, ignoring turn costs and restrictions.
+     * @param backward if true, find the cost from every vertex to the origin rather than from the origin to every vertex.
+     * @param cost the cost of traversing an edge, or a negative number if it cannot be traversed.
+     * @return the least cost to or from each vertex, or UNREACHED.
+     */
+    private static int[] shortestPaths (StreetLayer streetLayer, int origin, boolean backward,
+                                        ToIntFunction<EdgeStore.Edge> cost) {
+        int nVertices = streetLayer.getVertexCount();
+        int[] result = new int[nVertices];
+        Arrays.fill(result, UNREACHED);
+        IndexedIntHeap queue = new IndexedIntHeap(nVertices);
+        EdgeStore.Edge edge = streetLayer.edgeStore.getCursor();
+        result[origin] = 0;
+        queue.put(origin, 0);
+        while (!queue.isEmpty()) {
+            int vertex = queue.poll();
+            int costAtVertex = result[vertex];
+            TIntList edges = backward ? streetLayer.incomingEdges.get(vertex) : streetLayer.outgoingEdges.get(vertex);
+            for (int i = 0; i < edges.size(); i++) {
+                edge.seek(edges.get(i));
+                int edgeCost = cost.applyAsInt(edge);
+                if (edgeCost < 0) continue;
+                int nextVertex = backward ? edge.getFromVertex() : edge.getToVertex();
+                long nextCost = (long) costAtVertex + edgeCost;
+                if (nextCost < result[nextVertex]) {
+                    result[nextVertex] = (int) nextCost;
+                    queue.put(nextVertex, (int) nextCost);
+                }
+            }
+        }
+        return result;
+    }
+
+}
@@ -5,12 +5,11 @@ import com.conveyal.r5.analyst.WebMercatorGridPointSet;
 import com.conveyal.r5.common.GeometryUtils;
 import com.conveyal.r5.transit.TransitLayer;
 import com.conveyal.r5.profile.StreetMode;
+import com.conveyal.r5.util.CompressedSparseRows;
 import com.conveyal.r5.util.LambdaCounter;
 import com.vividsolutions.jts.geom.*;
 import gnu.trove.list.TIntList;
 import gnu.trove.list.array.TIntArrayList;
-import gnu.trove.map.TIntIntMap;
-import gnu.trove.map.hash.TIntIntHashMap;
 import com.conveyal.r5.streets.EdgeStore.Edge;
 import gnu.trove.set.TIntSet;
 import org.slf4j.Logger;
@@ -66,13 +65,24 @@ public class LinkedPointSet implements Serializable {
     public List<int[]> stopToPointDistanceTables;
 
     /**
-     * For each pointset point, the stops reachable without using transit, as a map from StopID to distance in millimeters.
-     * Inverted version of stopToPointDistanceTables. This is used in PerTargetPropagator to find all the stops near
-     * a particular point (grid cell) so we can perform propagation to that grid cell only. We only retain a few
-     * percentiles of travel time at each target cell, so doing one cell at a time allows us to keep the output size
-     * within reason.
+     * For each pointset point, the stops reachable without using transit and their distances in millimeters, keyed on
+     * stop index. The row is absent for points with no stops nearby. Inverted version of stopToPointDistanceTables.
+     * This is used in PerTargetPropagator to find all the stops near a particular point (grid cell) so we can perform
+     * propagation to that grid cell only. We only retain a few percentiles of travel time at each target cell, so doing
+     * one cell at a time allows us to keep the output size within reason.
+     *
+     * These are made on demand, but the network's grid linkage makes them up front so they are serialized with the
+     * network and propagation can begin as soon as it's loaded.
+     */
+    public CompressedSparseRows pointToStopDistanceTables;
+
+    /**
+     * For a linkage cropped from a larger grid linkage, the linkage it was cropped from and the grid it was cropped to.
+     * The point-to-stop tables are then made by cropping those of the larger grid rather than inverting the
+     * stop-to-point tables. These are cleared once the tables are made so the larger linkage can be garbage collected.
      */
-    public transient List<TIntIntMap> pointToStopDistanceTables;
+    private transient LinkedPointSet superGridLinkage;
+    private transient WebMercatorGridPointSet subGrid;
 
     /**
      * A LinkedPointSet is a PointSet that has been pre-connected to a StreetLayer in a non-destructive, reversible way.
@@ -132,13 +142,18 @@ public class LinkedPointSet implements Serializable {
 
         // If dealing with a scenario, pad out the stop trees list from the base linkage to match the new stop count.
         // If dealing with a base network linkage, fill the stop trees list entirely with nulls.
+        int nBaseStops = stopToPointDistanceTables.size();
         while (stopToPointDistanceTables.size() < nStops) stopToPointDistanceTables.add(null);
 
         /* First, link the points in this PointSet to specific street vertices. If there is no base linkage, link all streets. */
-        this.linkPointsToStreets(baseLinkage == null);
+        int[] relinkedPoints = this.linkPointsToStreets(baseLinkage == null);
 
         /* Second, make a table of distances from each transit stop to the points in this PointSet. */
-        this.makeStopToPointDistanceTables(treeRebuildZone);
+        if (baseLinkage == null) {
+            this.makeStopToPointDistanceTables(treeRebuildZone);
+        } else {
+            this.makeStopToPointDistanceTables(treeRebuildZone, relinkedPoints, nBaseStops);
+        }
 
     }
 
@@ -169,6 +184,9 @@ public class LinkedPointSet implements Serializable {
         streetLayer = sourceLinkage.streetLayer;
         streetMode = sourceLinkage.streetMode;
 
+        superGridLinkage = sourceLinkage;
+        this.subGrid = subGrid;
+
         int nCells = subGrid.width * subGrid.height;
         edges = new int[nCells];
         distances0_mm = new int[nCells];
@@ -229,11 +247,13 @@ public class LinkedPointSet implements Serializable {
      *            been deleted (i.e. split).
      *            We will need to change this behavior when we allow creating new edges rather than simply splitting
      *            existing ones.
+     * @return the indexes of the points that were linked, in increasing order.
      */
-    private void linkPointsToStreets(boolean all) {
+    private int[] linkPointsToStreets(boolean all) {
         LambdaCounter counter = new LambdaCounter(LOG, pointSet.featureCount(), 10000,
                 "Linked {} of {} PointSet points to streets.");
         // Perform linkage calculations in parallel, writing results to the shared parallel arrays.
+        boolean[] linked = new boolean[pointSet.featureCount()];
         IntStream.range(0, pointSet.featureCount()).parallel().forEach(p -> {
             // When working with a scenario, skip all points that are not linked to a deleted street (i.e. one that has
             // been split). At the current time, the only street network modification we support is splitting existing streets,
@@ -253,12 +273,14 @@ public class LinkedPointSet implements Serializable {
                     distances0_mm[p] = split.distance0_mm;
                     distances1_mm[p] = split.distance1_mm;
                 }
+                linked[p] = true;
                 counter.increment();
             }
         });
         long unlinked = Arrays.stream(edges).filter(e -> e == -1).count();
         counter.done();
         LOG.info("{} points are not linked to the street network.", unlinked);
+        return IntStream.range(0, linked.length).filter(p -> linked[p]).toArray();
     }
 
     /** @return the number of linkages, which should be the same as the number of points in the PointSet. */
@@ -320,51 +342,90 @@ public class LinkedPointSet implements Serializable {
         return new PointSetTimes (pointSet, travelTimes);
     }
 
+    /**
+     * Per-thread scratch space in which to accumulate packed (pointIndex, distanceMillimeters) pairs for one stop
+     * before copying them to an array of the right size. This is reused from one stop to the next.
+     */
+    private static final ThreadLocal<TIntArrayList> packedDistancesForThread =
+            ThreadLocal.withInitial(() -> new TIntArrayList(1024));
+
     /**
      * Given a table of distances to street vertices from a particular transit stop, create a table of distances to
      * points in this PointSet from the same transit stop.
      * All points outside the distanceTableZone are skipped as an optimization.
      * See JavaDoc on the caller makeStopToPointDistanceTables - this is one of the slowest parts of building a network.
-     * @return A packed array of (pointIndex, distanceMillimeters)
+     * The spatial index returns each point at most once, so distances are written straight to a packed buffer.
+     * @param stopIndex the row of distanceTablesToVertices giving distances from the stop to street vertices.
+     * @return A packed array of (pointIndex, distanceMillimeters), or null if no points are reached.
      */
-    private int[] extendDistanceTableToPoints(TIntIntMap distanceTableToVertices, Envelope distanceTableZone) {
-        int nPoints = this.size();
-        TIntIntMap distanceToPoint = new TIntIntHashMap(nPoints, 0.5f, Integer.MAX_VALUE, Integer.MAX_VALUE);
+    private int[] extendDistanceTableToPoints(CompressedSparseRows distanceTablesToVertices, int stopIndex,
+                                              Envelope distanceTableZone) {
+        TIntArrayList packed = packedDistancesForThread.get();
+        packed.resetQuick();
         Edge edge = streetLayer.edgeStore.getCursor();
         TIntSet relevantPoints = pointSet.spatialIndex.query(distanceTableZone);
         relevantPoints.forEach(p -> {
-            // An edge index of -1 for a particular point indicates that this point is unlinked
-            if (edges[p] == -1) return true;
-            edge.seek(edges[p]);
-            int t1 = Integer.MAX_VALUE, t2 = Integer.MAX_VALUE;
-            // TODO this is not strictly correct when there are turn restrictions onto the edge this is linked to
-
-            if (distanceTableToVertices.containsKey(edge.getFromVertex())) {
-                t1 = distanceTableToVertices.get(edge.getFromVertex()) + distances0_mm[p];
-            }
-            if (distanceTableToVertices.containsKey(edge.getToVertex())) {
-                t2 = distanceTableToVertices.get(edge.getToVertex()) + distances1_mm[p];
-            }
-            int t = Math.min(t1, t2);
-            if (t != Integer.MAX_VALUE) {
-                if (t < distanceToPoint.get(p)) {
-                    distanceToPoint.put(p, t);
-                }
+            int distance = distanceToPoint(distanceTablesToVertices, stopIndex, edge, p);
+            if (distance != Integer.MAX_VALUE) {
+                packed.add(p);
+                packed.add(distance);
             }
             return true; // Continue iteration.
         });
-        if (distanceToPoint.size() == 0) {
-            return null;
+        return packed.isEmpty() ? null : packed.toArray();
+    }
+
+    /**
+     * Given the table of distances to points from a transit stop in the base linkage, update it for a scenario linkage
+     * in which only the given points were relinked. The scenario only splits streets, which doesn't change the
+     * distance from the stop to the street vertices, so the distances to all points that stayed on the same street are
+     * unchanged and only the relinked points need to be considered.
+     * @param relinked for each point in this PointSet, whether it's one of the relinkedPoints.
+     * @return A packed array of (pointIndex, distanceMillimeters), or null if no points are reached.
+     */
+    private int[] updateDistanceTableForRelinkedPoints (int[] baseDistanceTable, int[] relinkedPoints, boolean[] relinked,
+                            CompressedSparseRows distanceTablesToVertices, int stopIndex, Envelope distanceTableZone) {
+        if (relinkedPoints.length == 0) return baseDistanceTable;
+        TIntArrayList packed = packedDistancesForThread.get();
+        packed.resetQuick();
+        if (baseDistanceTable != null) {
+            for (int i = 0; i < baseDistanceTable.length; i += 2) {
+                if (!relinked[baseDistanceTable[i]]) packed.add(baseDistanceTable, i, 2);
+            }
         }
-        // Convert a packed array of pairs.
-        // TODO don't put in a list and convert to array, just make an array.
-        TIntList packed = new TIntArrayList(distanceToPoint.size() * 2);
-        distanceToPoint.forEachEntry((point, distance) -> {
-            packed.add(point);
-            packed.add(distance);
-            return true; // Continue iteration.
-        });
-        return packed.toArray();
+        Edge edge = streetLayer.edgeStore.getCursor();
+        for (int p : relinkedPoints) {
+            int lonFixed = VertexStore.floatingDegreesToFixed(pointSet.getLon(p));
+            int latFixed = VertexStore.floatingDegreesToFixed(pointSet.getLat(p));
+            if (!distanceTableZone.contains(lonFixed, latFixed)) continue;
+            int distance = distanceToPoint(distanceTablesToVertices, stopIndex, edge, p);
+            if (distance != Integer.MAX_VALUE) {
+                packed.add(p);
+                packed.add(distance);
+            }
+        }
+        return packed.isEmpty() ? null : packed.toArray();
+    }
+
+    /**
+     * @return the distance in millimeters from the given stop to the given point via either end of the edge the point
+     *         is linked to, or Integer.MAX_VALUE if the point is unlinked or neither end is in the stop's table.
+     */
+    private int distanceToPoint (CompressedSparseRows distanceTablesToVertices, int stopIndex, Edge edge, int p) {
+        // An edge index of -1 for a particular point indicates that this point is unlinked
+        if (edges[p] == -1) return Integer.MAX_VALUE;
+        edge.seek(edges[p]);
+        int t1 = Integer.MAX_VALUE, t2 = Integer.MAX_VALUE;
+        // TODO this is not strictly correct when there are turn restrictions onto the edge this is linked to
+        int d1 = distanceTablesToVertices.get(stopIndex, edge.getFromVertex(), -1);
+        if (d1 != -1) {
+            t1 = d1 + distances0_mm[p];
+        }
+        int d2 = distanceTablesToVertices.get(stopIndex, edge.getToVertex(), -1);
+        if (d2 != -1) {
+            t2 = d2 + distances1_mm[p];
+        }
+        return Math.min(t1, t2);
     }
 
     /**
@@ -384,6 +445,19 @@ public class LinkedPointSet implements Serializable {
      *                        leaving all the others alone. If null, build trees for all stops.
      */
     public void makeStopToPointDistanceTables(Geometry treeRebuildZone) {
+        makeStopToPointDistanceTables(treeRebuildZone, null, 0);
+    }
+
+    /**
+     * As makeStopToPointDistanceTables(Geometry), but for a scenario linkage whose distance tables were copied from a
+     * base linkage. Tables for stops that existed in the base linkage are updated for the relinked points only, and
+     * tables are built from scratch only for stops added by the scenario.
+     * @param relinkedPoints the points whose linkage differs from the base linkage, or null to rebuild all tables in
+     *                       the treeRebuildZone from scratch.
+     * @param nBaseStops the number of stops with tables copied from the base linkage.
+     */
+    private void makeStopToPointDistanceTables(Geometry treeRebuildZone, int[] relinkedPoints, int nBaseStops) {
+        long startTime = System.currentTimeMillis();
         LOG.info("Creating distance tables from each transit stop to PointSet points.");
         pointSet.createSpatialIndexAsNeeded();
         if (treeRebuildZone != null) {
@@ -393,6 +467,11 @@ public class LinkedPointSet implements Serializable {
         int nStops = transitLayer.getStopCount();
         LambdaCounter counter = new LambdaCounter(LOG, nStops, 1000,
                 "Computed distances to PointSet points from {} of {} transit stops.");
+        boolean[] relinked = new boolean[size()];
+        if (relinkedPoints != null) {
+            for (int p : relinkedPoints) relinked[p] = true;
+            LOG.info("Updating distance tables to {} relinked points for existing stops.", relinkedPoints.length);
+        }
         // Create a distance table from each transit stop to the points in this PointSet in parallel.
         // When applying a scenario, keep the existing distance table for those stops that could not be affected.
         stopToPointDistanceTables = IntStream.range(0, nStops).parallel().mapToObj(stopIndex -> {
@@ -410,15 +489,24 @@ public class LinkedPointSet implements Serializable {
             }
             // Get the pre-computed distance table from the stop to the street vertices,
             // then extend that table out from the street vertices to the points in this PointSet.
-            TIntIntMap distanceTableToVertices = transitLayer.stopToVertexDistanceTables.get(stopIndex);
+            CompressedSparseRows distanceTablesToVertices = transitLayer.stopToVertexDistanceTables;
             Envelope distanceTableZone = stopPoint.getEnvelopeInternal();
             GeometryUtils.expandEnvelopeFixed(distanceTableZone, TransitLayer.DISTANCE_TABLE_SIZE_METERS);
-            int[] distancesToPoints = distanceTableToVertices == null ? null :
-                    extendDistanceTableToPoints(distanceTableToVertices, distanceTableZone);
+            int[] distancesToPoints;
+            if (!distanceTablesToVertices.hasRow(stopIndex)) {
+                distancesToPoints = null;
+            } else if (relinkedPoints != null && stopIndex < nBaseStops) {
+                distancesToPoints = updateDistanceTableForRelinkedPoints(stopToPointDistanceTables.get(stopIndex),
+                        relinkedPoints, relinked, distanceTablesToVertices, stopIndex, distanceTableZone);
+            } else {
+                distancesToPoints = extendDistanceTableToPoints(distanceTablesToVertices, stopIndex, distanceTableZone);
+            }
             counter.increment();
             return distancesToPoints;
         }).collect(Collectors.toList());
         counter.done();
+        LOG.info("Made distance tables from transit stops to PointSet points in {} sec.",
+                (System.currentTimeMillis() - startTime) / 1000d);
     }
 
     public synchronized void makePointToStopDistanceTablesIfNeeded () {
@@ -427,23 +515,40 @@ public class LinkedPointSet implements Serializable {
         synchronized (this) {
             // check again in case they were built while waiting on this synchronized block
             if (pointToStopDistanceTables != null) return;
+            if (superGridLinkage != null) {
+                // Each row of the larger grid's tables lists the stops near one cell, so just keep the rows for cells
+                // within the sub-grid. The larger grid's tables are usually deserialized with the network.
+                superGridLinkage.makePointToStopDistanceTablesIfNeeded();
+                pointToStopDistanceTables = cropPointToStopDistanceTables(superGridLinkage, subGrid);
+                superGridLinkage = null;
+                subGrid = null;
+                return;
+            }
             if (stopToPointDistanceTables == null) makeStopToPointDistanceTables(null);
-            TIntIntMap[] result = new TIntIntMap[size()];
-
-            for (int stop = 0; stop < stopToPointDistanceTables.size(); stop++) {
-                int[] stopToPointDistanceTable = stopToPointDistanceTables.get(stop);
-                if (stopToPointDistanceTable == null) continue;
+            pointToStopDistanceTables = CompressedSparseRows.transpose(stopToPointDistanceTables, size());
+        }
+    }
 
-                for (int idx = 0; idx < stopToPointDistanceTable.length; idx += 2) {
-                    int point = stopToPointDistanceTable[idx];
-                    int distance = stopToPointDistanceTable[idx + 1];
-                    if (result[point] == null) result[point] = new TIntIntHashMap();
-                    result[point].put(stop, distance);
+    /**
+     * @return the rows of the source linkage's point-to-stop tables for the cells of subGrid, with absent rows for cells
+     *         outside the source linkage's grid.
+     */
+    private static CompressedSparseRows cropPointToStopDistanceTables (LinkedPointSet sourceLinkage,
+                                                                       WebMercatorGridPointSet subGrid) {
+        WebMercatorGridPointSet superGrid = (WebMercatorGridPointSet) sourceLinkage.pointSet;
+        CompressedSparseRows.Builder builder = new CompressedSparseRows.Builder();
+        for (int y = 0; y < subGrid.height; y++) {
+            for (int x = 0; x < subGrid.width; x++) {
+                int sourceColumn = subGrid.west + x - superGrid.west;
+                int sourceRow = subGrid.north + y - superGrid.north;
+                if (sourceColumn < 0 || sourceColumn >= superGrid.width || sourceRow < 0 || sourceRow >= superGrid.height) {
+                    builder.addAbsentRow();
+                } else {
+                    builder.addRow(sourceLinkage.pointToStopDistanceTables, sourceRow * superGrid.width + sourceColumn);
                 }
             }
-            pointToStopDistanceTables = Arrays.asList(result);
         }
+        return builder.build();
     }
 
-
 }
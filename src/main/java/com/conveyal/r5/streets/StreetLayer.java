@@ -39,10 +39,12 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.EnumMap;
 import java.util.EnumSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
 import java.util.stream.Collectors;
 import java.util.stream.LongStream;
 
@@ -117,6 +119,9 @@ public class StreetLayer implements Serializable, Cloneable {
      */
     private transient IntHashGrid temporaryEdgeIndex;
 
+    /** Routers kept for reuse by searches on this layer. Created on demand and never shared with a scenario copy. */
+    private transient volatile StreetRouterPool routerPool;
+
     // Key is street vertex index, value is BikeRentalStation (with name, number of bikes, spaces id etc.)
     public TIntObjectMap<BikeRentalStation> bikeRentalStationMap;
     public TIntObjectMap<ParkRideParking> parkRideLocationsMap;
@@ -130,6 +135,12 @@ public class StreetLayer implements Serializable, Cloneable {
     // This is only used when loading from OSM, and is then nulled to save memory.
     public transient OSM osm;
 
+    /**
+     * Landmark tables used to speed up street searches toward a destination, for the modes they were built for.
+     * Null or empty if none were built. These are only valid for the street layer they were built on, see Landmarks.
+     */
+    public Map<StreetMode, Landmarks> landmarksForMode;
+
     /** Envelope of this street layer, in decimal degrees (floating, not fixed-point) */
     public Envelope envelope = new Envelope();
 
@@ -1127,6 +1138,18 @@ public class StreetLayer implements Serializable, Cloneable {
         LOG.info("Done building edge lists.");
     }
 
+    /**
+     * Choose landmarks and compute their tables for each of the given modes. This must be done after the street
+     * network is complete and the edge lists are built, as any later changes to the network invalidate the tables.
+     */
+    public void buildLandmarks (Set<StreetMode> streetModes, int nLandmarks) {
+        landmarksForMode = new EnumMap<>(StreetMode.class);
+        if (streetModes == null || nLandmarks <= 0) return;
+        for (StreetMode streetMode : streetModes) {
+            landmarksForMode.put(streetMode, Landmarks.build(this, streetMode, nLandmarks));
+        }
+    }
+
     /**
      * Find an existing street vertex near the supplied coordinates, or create a new one if there are no vertices
      * near enough. Note that calling this method is potentially destructive (it can modify the street network).
@@ -1380,9 +1403,22 @@ public class StreetLayer implements Serializable, Cloneable {
         }
         copy.parentNetwork = newScenarioNetwork;
         copy.baseStreetLayer = this;
+        copy.routerPool = null;
         return copy;
     }
 
+    /** @return the pool of routers for searches on this layer, see StreetRouterPool. */
+    StreetRouterPool getRouterPool () {
+        StreetRouterPool pool = routerPool;
+        if (pool == null) {
+            synchronized (this) {
+                pool = routerPool;
+                if (pool == null) routerPool = pool = new StreetRouterPool();
+            }
+        }
+        return pool;
+    }
+
 
     /**
      * Creates vertices to represent each bike rental station.
@@ -6,11 +6,13 @@ import com.conveyal.r5.point_to_point.builder.PointToPointQuery;
 import com.conveyal.r5.profile.StreetMode;
 import com.conveyal.r5.profile.ProfileRequest;
 import com.conveyal.r5.transit.TransitLayer;
+import com.conveyal.r5.util.IndexedIntHeap;
 import com.conveyal.r5.util.TIntObjectHashMultimap;
 import com.conveyal.r5.util.TIntObjectMultimap;
 import gnu.trove.iterator.TIntIterator;
 import com.conveyal.r5.transit.TransportNetwork;
 import gnu.trove.list.TIntList;
+import gnu.trove.list.array.TIntArrayList;
 import gnu.trove.map.TIntIntMap;
 import gnu.trove.map.TIntObjectMap;
 import gnu.trove.map.hash.TIntIntHashMap;
@@ -23,11 +25,13 @@ import org.slf4j.LoggerFactory;
 
 import java.io.*;
 import java.util.*;
+import java.util.function.Consumer;
 
 /**
  * This routes over the street layer of a TransitNetwork.
  * It is a throw-away calculator object that retains routing state after the search is finished.
  * Additional functions are called to retrieve the routing results from that state.
+ * Code performing many searches in a row can instead reset and reuse routers, see StreetRouterPool.
  */
 public class StreetRouter {
 
@@ -81,6 +85,13 @@ public class StreetRouter {
     // Yes, that's indeed the speed unit "seconds per millimeter", to avoid computing 1/x repeatedly.
     private double maxSpeedSecondsPerMillimeter;
 
+    /**
+     * Precomputed landmark tables that tighten the A* heuristic, if the street layer has them for this mode and they
+     * apply to this search. The heuristic bounds the cost of reaching any of the landmarkTargets vertices.
+     */
+    private Landmarks landmarks;
+    private int[] landmarkTargets;
+
     /**
      * The StreetRouter will respect any nonzero limits, and will stop the search when it hits either of them.
      * If both limits are zero a warning will be logged. If both are set, both are used, but you should never do this.
@@ -131,15 +142,36 @@ public class StreetRouter {
      * apply that left turn cost. Even more important is to make sure that the destination edge is not the end of a
      * restricted turn; if it is, one must reach the destination via an alternate state.
      *
-     * TODO we might be able to make this more efficient (not using a multimap)
-     * by taking advantage of the fact that we almost always have a single state per edge
-     * (the only time we don't is when we're in the middle of a turn restriction).
+     * We take advantage of the fact that we almost always have a single state per edge (the only time we don't is when
+     * we're in the middle of a turn restriction). States that are not in a turn restriction always dominate one
+     * another, so there is at most one of them per edge: these are kept in a plain array indexed by edge, and queued
+     * in a heap of edge indexes that is updated in place when a better state is found at the same edge. The states
+     * in turn restrictions, and origin states that were not produced by traversing an edge, are kept in a multimap
+     * and queued separately as objects. States of the two kinds never dominate one another.
+     *
+     * The array and the heap have one slot per edge in the street network, which costs more to allocate than a short
+     * search costs to run. They're only worth allocating for routers that will be reused (see StreetRouterPool).
+     * Other routers keep the same states in a hash map and use a sparse heap, and this array is null.
      */
-    TIntObjectMultimap<State> bestStatesAtEdge = new TIntObjectHashMultimap<>();
+    private final State[] stateAtEdge;
+
+    /** Used instead of stateAtEdge by routers that are not reused. Null if stateAtEdge is allocated. */
+    private final TIntObjectMap<State> sparseStateAtEdge;
+
+    /** The number of edges in the street layer when this router was created, the bounds of the edge indexes above. */
+    private final int nEdges;
 
-    // The queue is prioritized by the specified optimization objective variable.
-    PriorityQueue<State> queue = new PriorityQueue<>(
-            Comparator.comparingInt(s0 -> (s0.getRoutingVariable(quantityToMinimize) + s0.heuristic)));
+    /** The edges that have a state in stateAtEdge, so it can be cleared without scanning the whole array. */
+    private final TIntList edgesWithState = new TIntArrayList();
+
+    /** Queue of edges with states in stateAtEdge, prioritized by the objective variable plus the heuristic. */
+    private final IndexedIntHeap edgeQueue;
+
+    /** States that can't be kept in stateAtEdge (see above), keyed on their back edge. */
+    TIntObjectMultimap<State> overflowStatesAtEdge = new TIntObjectHashMultimap<>();
+
+    // Queue of the overflow states, prioritized by the specified optimization objective variable plus the heuristic.
+    PriorityQueue<State> overflowQueue = new PriorityQueue<>(Comparator.comparingInt(this::priority));
 
     /**
      * If you set this to a non-negative number, the search will end at the vertex with the given index,
@@ -219,19 +251,12 @@ public class StreetRouter {
     public TIntIntMap getReachedVertices () {
         TIntIntMap result = new TIntIntHashMap();
         EdgeStore.Edge e = streetLayer.edgeStore.getCursor();
-        bestStatesAtEdge.forEachEntry((eidx, states) -> {
-            if (eidx < 0) return true;
-            // Iterating over a little list and reducing the values with a stream might be slow.
-            // TODO We should try replacing this with states.get(0) and see if it makes building distance tables faster.
-            State state = states.stream()
-                    .reduce((s0, s1) -> s0.getRoutingVariable(quantityToMinimize) < s1.getRoutingVariable(quantityToMinimize) ? s0 : s1).get();
-            e.seek(eidx);
+        forEachStateAtEdge(state -> {
+            e.seek(state.backEdge);
             int vidx = e.getToVertex();
 
             if (!result.containsKey(vidx) || result.get(vidx) > state.getRoutingVariable(quantityToMinimize))
                 result.put(vidx, state.getRoutingVariable(quantityToMinimize));
-
-            return true; // continue iteration
         });
         return result;
     }
@@ -253,12 +278,8 @@ public class StreetRouter {
         TIntObjectMap<State> result = new TIntObjectHashMap<>();
         EdgeStore.Edge e = streetLayer.edgeStore.getCursor();
         VertexStore.Vertex v = streetLayer.vertexStore.getCursor();
-        bestStatesAtEdge.forEachEntry((eidx, states) -> {
-            if (eidx < 0) return true;
-
-            State state = states.stream().reduce((s0, s1) ->
-                    s0.getRoutingVariable(quantityToMinimize) < s1.getRoutingVariable(quantityToMinimize) ? s0 : s1).get();
-            e.seek(eidx);
+        forEachStateAtEdge(state -> {
+            e.seek(state.backEdge);
             int vidx = e.getToVertex();
             v.seek(vidx);
 
@@ -268,8 +289,6 @@ public class StreetRouter {
                     result.put(vidx, state);
                 }
             }
-
-            return true; // continue iteration
         });
         return result;
     }
@@ -279,13 +298,57 @@ public class StreetRouter {
     }
 
     public StreetRouter (StreetLayer streetLayer, TravelTimeCalculator travelTimeCalculator) {
+        this(streetLayer, travelTimeCalculator, false);
+    }
+
+    /**
+     * @param reusable if true, allocate arrays with one slot per edge so that each of many searches is fast. This is
+     *                 only worthwhile when the router will be reset and reused, as by StreetRouterPool.
+     */
+    StreetRouter (StreetLayer streetLayer, TravelTimeCalculator travelTimeCalculator, boolean reusable) {
         this.streetLayer = streetLayer;
         // TODO one of two things: 1) don't hardwire drive-on-right, or 2) https://en.wikipedia.org/wiki/Dagen_H
         this.turnCostCalculator = new TurnCostCalculator(streetLayer, true);
         this.travelTimeCalculator = travelTimeCalculator;
+        this.nEdges = streetLayer.edgeStore.nEdges();
+        this.stateAtEdge = reusable ? new State[nEdges] : null;
+        this.sparseStateAtEdge = reusable ? null : new TIntObjectHashMap<>();
+        this.edgeQueue = new IndexedIntHeap(nEdges, !reusable);
     }
 
 
+    /**
+     * Return this router to the state it was in when it was constructed, so it can be used for another search.
+     * Forgetting the states from the previous search takes time proportional to the number of edges that search
+     * reached, not to the size of the street network. The travel time calculator supplied at construction is kept.
+     */
+    public void reset () {
+        clearStates();
+        transitStopSearch = false;
+        flagSearch = null;
+        transitStopSearchQuantity = PointToPointQuery.MAX_ACCESS_STOPS;
+        flagSearchQuantity = 20;
+        distanceLimitMeters = 0;
+        timeLimitSeconds = 0;
+        quantityToMinimize = State.RoutingVariable.WEIGHT;
+        toVertex = ALL_VERTICES;
+        profileRequest = new ProfileRequest();
+        streetMode = StreetMode.WALK;
+        routingVisitor = null;
+        originSplit = null;
+        destinationSplit = null;
+        landmarks = null;
+        landmarkTargets = null;
+        bestValueAtDestination = Integer.MAX_VALUE;
+        maxAbsOriginLat = Integer.MIN_VALUE;
+        previousRouter = null;
+    }
+
+    /** @return true if this router can be reset and used to search the given street layer in its current state. */
+    boolean canRouteOn (StreetLayer streetLayer) {
+        return stateAtEdge != null && this.streetLayer == streetLayer && nEdges == streetLayer.edgeStore.nEdges();
+    }
+
     /**
      * Set the origin point of this StreetRouter (before a search is started) to a point along an edge that allows
      * traversal by the specified streetMode.
@@ -307,8 +370,7 @@ public class StreetRouter {
             return false;
         }
         originSplit = split;
-        bestStatesAtEdge.clear();
-        queue.clear();
+        clearStates();
         // The states are located at the end of edges. Vertex0 is at the end of the reverse edge (split.edge + 1).
         // In these states we must specify which edge was traversed to reach them, so that turn costs work.
         State startState0 = new State(split.vertex0, split.edge + 1, streetMode);
@@ -336,18 +398,15 @@ public class StreetRouter {
 
         // These initial states are not recorded as bestStates, they will be added when they come out of the queue.
         // FIXME but wait - we are putting them in the bestStates for some reason.
-        queue.add(startState0);
-        queue.add(startState1);
-        bestStatesAtEdge.put(startState0.backEdge, startState0);
-        bestStatesAtEdge.put(startState1.backEdge, startState1);
+        addState(startState0);
+        addState(startState1);
 
         maxAbsOriginLat = originSplit.fixedLat;
         return true;
     }
 
     public void setOrigin (int fromVertex) {
-        bestStatesAtEdge.clear();
-        queue.clear();
+        clearStates();
 
         // sets maximal absolute origin latitude used for goal direction heuristic
         VertexStore.Vertex vertex = streetLayer.vertexStore.getCursor(fromVertex);
@@ -355,7 +414,7 @@ public class StreetRouter {
 
         // NB backEdge of -1 is no problem as it is a special case that indicates that the origin was a vertex.
         State startState = new State(fromVertex, -1, streetMode);
-        queue.add(startState);
+        overflowQueue.add(startState);
     }
 
     /**
@@ -370,8 +429,7 @@ public class StreetRouter {
      * @param legMode What origin search is this bike share or P+R
      */
     public void setOrigin(TIntObjectMap<State> previousStates, int switchTime, int switchCost, LegMode legMode) {
-        bestStatesAtEdge.clear();
-        queue.clear();
+        clearStates();
         //Maximal origin latitude is used in goal direction heuristic.
         final int[] maxOriginLatArr = { Integer.MIN_VALUE };
 
@@ -387,8 +445,7 @@ public class StreetRouter {
             }
             state.distance = previousState.distance;
             if (!isDominated(state)) {
-                bestStatesAtEdge.put(state.backEdge, state);
-                queue.add(state);
+                addState(state);
                 VertexStore.Vertex vertex = streetLayer.vertexStore.getCursor(state.vertex);
                 int deltaLatFixed = vertex.getFixedLat();
                 maxOriginLatArr[0] = Math.max(maxOriginLatArr[0], Math.abs(deltaLatFixed));
@@ -417,7 +474,7 @@ public class StreetRouter {
 
     /**
      * Call one of the setOrigin functions first before calling route().
-     * Don't call route() more than once, a StreetRouter is only intended to be used once.
+     * Don't call route() more than once, a StreetRouter is only intended to be used once unless it is reset().
      * Routing will respect any nonzero limits (distance or time), and will stop the search when it hits either of them.
      * If both limits are zero a warning will be logged. If both are set, both are used, but you should not do this
      * because it always implies a resource limiting problem.
@@ -433,7 +490,27 @@ public class StreetRouter {
         // FIXME this class is supposed to be throw-away, should we be reusing instances at all? change this variable name to be clearer.
         final int tmpTimeLimitSeconds;
 
-        // Set up goal direction.
+        // Set up goal direction. Landmark bounds are computed on the base street layer with the speeds used by the
+        // default travel time calculator, and only in the forward direction.
+        landmarks = null;
+        landmarkTargets = null;
+        if (destinationSplit != null) {
+            landmarkTargets = new int[] { destinationSplit.vertex0, destinationSplit.vertex1 };
+        } else if (toVertex >= 0) {
+            landmarkTargets = new int[] { toVertex };
+        }
+        if (landmarkTargets != null && streetLayer.landmarksForMode != null && !profileRequest.reverseSearch
+                && travelTimeCalculator instanceof EdgeStore.DefaultTravelTimeCalculator) {
+            Landmarks landmarksForMode = streetLayer.landmarksForMode.get(streetMode);
+            if (landmarksForMode != null && landmarksForMode.canBeUsedOn(streetLayer)) landmarks = landmarksForMode;
+        }
+        if (destinationSplit != null || landmarks != null) {
+            // FIXME account for speeds of individual street segments, not just speed in request
+            double maxSpeedMetersPerSecond = profileRequest.getSpeedForMode(streetMode);
+            // Car speed is currently often unspecified in the request and defaults to zero.
+            if (maxSpeedMetersPerSecond == 0) maxSpeedMetersPerSecond = 36.11; // 130 km/h
+            maxSpeedSecondsPerMillimeter = 1 / (maxSpeedMetersPerSecond * 1000);
+        }
         if (destinationSplit != null) {
             // This search has a destination, so enable A* goal direction.
             // To speed up the distance calculations that are part of the A* heuristic, we precalculate some factors.
@@ -443,11 +520,6 @@ public class StreetRouter {
             int maxAbsLatFixed = Math.max(Math.abs(destinationSplit.fixedLat), Math.abs(maxAbsOriginLat));
             double maxAbsLatRadians = Math.toRadians(VertexStore.fixedDegreesToFloating(maxAbsLatFixed));
             millimetersPerUnitLonFixed = MM_PER_UNIT_LAT_FIXED * Math.cos(maxAbsLatRadians);
-            // FIXME account for speeds of individual street segments, not just speed in request
-            double maxSpeedMetersPerSecond = profileRequest.getSpeedForMode(streetMode);
-            // Car speed is currently often unspecified in the request and defaults to zero.
-            if (maxSpeedMetersPerSecond == 0) maxSpeedMetersPerSecond = 36.11; // 130 km/h
-            maxSpeedSecondsPerMillimeter = 1 / (maxSpeedMetersPerSecond * 1000);
         }
 
         if (distanceLimitMeters > 0) {
@@ -481,7 +553,7 @@ public class StreetRouter {
             LOG.debug("Using time limit of {} sec", timeLimitSeconds);
         }
 
-        if (queue.size() == 0) {
+        if (edgeQueue.isEmpty() && overflowQueue.isEmpty()) {
             LOG.warn("Routing without first setting an origin, no search will happen.");
         }
 
@@ -505,8 +577,9 @@ public class StreetRouter {
         } else if (flagSearch != null) {
             routingVisitor = new VertexFlagVisitor(streetLayer, quantityToMinimize, flagSearch, flagSearchQuantity, profileRequest.getMinTimeLimit(streetMode));
         }
-        while (!queue.isEmpty()) {
-            State s0 = queue.poll();
+        while (true) {
+            State s0 = pollState();
+            if (s0 == null) break; // The queue is exhausted.
 
             if (DEBUG_OUTPUT) {
                 VertexStore.Vertex v = streetLayer.vertexStore.getCursor(s0.vertex);
@@ -524,12 +597,6 @@ public class StreetRouter {
                 debugPrintStream.println(String.format("%.6f,%.6f,%d", v.getLat(), v.getLon(), s0.weight));
             }
 
-            // The state coming off the priority queue may have been dominated by some other state that was produced
-            // by traversing the same edge. Check that the state coming off the queue has not been dominated before
-            // exploring it. States at the origin may have their backEdge set to a negative number to indicate that
-            // they have no backEdge (were not produced by traversing an edge). Skip the check for those states.
-            if (s0.backEdge >= 0 && !bestStatesAtEdge.get(s0.backEdge).contains(s0)) continue;
-
             // If the search has reached the destination, the state coming off the queue is the best way to get there.
             if (toVertex > 0 && toVertex == s0.vertex) break;
 
@@ -543,7 +610,8 @@ public class StreetRouter {
 
                 if (routingVisitor.shouldBreakSearch()) {
                     LOG.debug("{} routing visitor stopped search", routingVisitor.getClass().getSimpleName());
-                    queue.clear();
+                    edgeQueue.clear();
+                    overflowQueue.clear();
                     break;
                 }
             }
@@ -574,8 +642,7 @@ public class StreetRouter {
                     if (!isDominated(s1)) {
                         // Calculate the heuristic (which involves a square root) only when the state is retained.
                         s1.heuristic = calcHeuristic(s1);
-                        bestStatesAtEdge.put(s1.backEdge, s1);
-                        queue.add(s1);
+                        addState(s1);
                     }
                 }
                 return true; // Iteration over the edge list should continue.
@@ -588,15 +655,120 @@ public class StreetRouter {
         LOG.debug("Routing took {} msec", routingTimeMsec);
     }
 
+    /** @return the value by which the given state is prioritized in the queue. */
+    private int priority (State state) {
+        return state.getRoutingVariable(quantityToMinimize) + state.heuristic;
+    }
+
+    /**
+     * @return true if the given state can be kept in stateAtEdge, i.e. it is not in a turn restriction and was produced
+     *         by traversing an edge.
+     */
+    private boolean isIndexedByEdge (State state) {
+        return state.turnRestrictions == null && state.backEdge >= 0 && state.backEdge < nEdges;
+    }
+
+    /** @return the state in stateAtEdge (or sparseStateAtEdge) at the given edge, which must be in range. */
+    private State getIndexedState (int edgeIndex) {
+        return stateAtEdge == null ? sparseStateAtEdge.get(edgeIndex) : stateAtEdge[edgeIndex];
+    }
+
+    /**
+     * Record the given state as the best one known at the end of its back edge, and queue it for exploration. The
+     * caller must already have checked that the state is not dominated.
+     */
+    private void addState (State state) {
+        if (isIndexedByEdge(state)) {
+            // Any existing state at this edge is dominated by the new one, so we just replace it.
+            if (stateAtEdge == null) {
+                if (sparseStateAtEdge.put(state.backEdge, state) == null) edgesWithState.add(state.backEdge);
+            } else {
+                if (stateAtEdge[state.backEdge] == null) edgesWithState.add(state.backEdge);
+                stateAtEdge[state.backEdge] = state;
+            }
+            edgeQueue.put(state.backEdge, priority(state));
+        } else {
+            overflowStatesAtEdge.put(state.backEdge, state);
+            overflowQueue.add(state);
+        }
+    }
+
+    /**
+     * Remove and return the queued state with the lowest priority, or null if there are no more states to explore.
+     */
+    private State pollState () {
+        while (!edgeQueue.isEmpty() || !overflowQueue.isEmpty()) {
+            if (overflowQueue.isEmpty() ||
+                    (!edgeQueue.isEmpty() && edgeQueue.peekPriority() <= priority(overflowQueue.peek()))) {
+                // The edge queue only ever refers to the current best state at each edge.
+                return getIndexedState(edgeQueue.poll());
+            }
+            State state = overflowQueue.poll();
+            // The state coming off the priority queue may have been dominated by some other state that was produced
+            // by traversing the same edge. Check that the state coming off the queue has not been dominated before
+            // exploring it. States at the origin may have their backEdge set to a negative number to indicate that
+            // they have no backEdge (were not produced by traversing an edge). Skip the check for those states.
+            if (state.backEdge < 0 || overflowStatesAtEdge.get(state.backEdge).contains(state)) return state;
+        }
+        return null;
+    }
+
+    /** Forget all states and empty the queue, in time proportional to the number of edges reached. */
+    private void clearStates () {
+        if (stateAtEdge == null) {
+            sparseStateAtEdge.clear();
+        } else {
+            for (TIntIterator it = edgesWithState.iterator(); it.hasNext(); ) {
+                stateAtEdge[it.next()] = null;
+            }
+        }
+        edgesWithState.clear();
+        edgeQueue.clear();
+        overflowStatesAtEdge.clear();
+        overflowQueue.clear();
+    }
+
+    /**
+     * Call the given function on every state at the end of an edge, skipping origin states that were not produced by
+     * traversing an edge. There may be more than one state per edge (see overflowStatesAtEdge).
+     */
+    private void forEachStateAtEdge (Consumer<State> consumer) {
+        for (TIntIterator it = edgesWithState.iterator(); it.hasNext(); ) {
+            consumer.accept(getIndexedState(it.next()));
+        }
+        overflowStatesAtEdge.forEachEntry((eidx, states) -> {
+            if (eidx >= 0) states.forEach(consumer);
+            return true; // continue iteration
+        });
+    }
+
+    /** @return all the states at the end of the given edge. */
+    private Collection<State> getStatesAtEdge (int edgeIndex) {
+        State state = edgeIndex >= 0 && edgeIndex < nEdges ? getIndexedState(edgeIndex) : null;
+        // Multimap returns empty list for missing keys.
+        Collection<State> otherStates = overflowStatesAtEdge.get(edgeIndex);
+        if (state == null) return otherStates;
+        if (otherStates.isEmpty()) return Collections.singletonList(state);
+        List<State> states = new ArrayList<>(otherStates);
+        states.add(state);
+        return states;
+    }
+
     /**
      * Given a new state, check whether it is dominated by any existing state that resulted from traversing the
      * same edge. Side effect: Boot out any existing states that are dominated by the new one.
      */
     private boolean isDominated(State newState) {
+        if (isIndexedByEdge(newState)) {
+            // The only comparable state is the one in stateAtEdge. If the new state dominates it, it will be replaced
+            // when the new state is added.
+            State existingState = getIndexedState(newState.backEdge);
+            return existingState != null && dominates(existingState, newState);
+        }
         // States in turn restrictions are incomparable (don't dominate and aren't dominated by other states)
         // If the new state is not in a turn restriction, check whether it dominates any existing states and remove them.
         // Multimap returns empty list for missing keys.
-        for (Iterator<State> it = bestStatesAtEdge.get(newState.backEdge).iterator(); it.hasNext(); ) {
+        for (Iterator<State> it = overflowStatesAtEdge.get(newState.backEdge).iterator(); it.hasNext(); ) {
             State existingState = it.next();
             if (dominates(existingState, newState)) {
                 // If any existing state dominates the new one, bail out early and declare the new state dominated.
@@ -612,21 +784,32 @@ public class StreetRouter {
 
     /**
      * Provide an underestimate on the remaining distance/weight/time to the destination (the A* heuristic).
+     * This is the straight-line distance to the destination, or the bound from the landmark tables where it's higher.
      */
     private int calcHeuristic (State state) {
         // If there's no destination, there's no goal direction. Zero is always a valid underestimate.
-        if (destinationSplit == null) return 0;
-        VertexStore.Vertex vertex = streetLayer.vertexStore.getCursor(state.vertex);
-        int deltaLatFixed = destinationSplit.fixedLat - vertex.getFixedLat();
-        int deltaLonFixed = destinationSplit.fixedLon - vertex.getFixedLon();
-        double millimetersX = millimetersPerUnitLonFixed * deltaLonFixed;
-        double millimetersY = MM_PER_UNIT_LAT_FIXED * deltaLatFixed;
-        double distanceMillimeters = FastMath.sqrt(millimetersX * millimetersX + millimetersY * millimetersY);
+        if (destinationSplit == null && landmarks == null) return 0;
+        double distanceMillimeters = 0;
+        if (destinationSplit != null) {
+            VertexStore.Vertex vertex = streetLayer.vertexStore.getCursor(state.vertex);
+            int deltaLatFixed = destinationSplit.fixedLat - vertex.getFixedLat();
+            int deltaLonFixed = destinationSplit.fixedLon - vertex.getFixedLon();
+            double millimetersX = millimetersPerUnitLonFixed * deltaLonFixed;
+            double millimetersY = MM_PER_UNIT_LAT_FIXED * deltaLatFixed;
+            distanceMillimeters = FastMath.sqrt(millimetersX * millimetersX + millimetersY * millimetersY);
+        }
+        if (landmarks != null) {
+            distanceMillimeters = Math.max(distanceMillimeters,
+                    landmarks.distanceLowerBoundMm(state.vertex, landmarkTargets));
+        }
         double estimate = distanceMillimeters;
         if (quantityToMinimize != State.RoutingVariable.DISTANCE_MILLIMETERS) {
             // Calculate time in seconds to traverse this distance in a straight line.
             // Weight should always be greater than or equal to time in seconds.
             estimate *= maxSpeedSecondsPerMillimeter;
+            if (landmarks != null && landmarks.hasTravelTimes()) {
+                estimate = Math.max(estimate, landmarks.timeLowerBoundSeconds(state.vertex, landmarkTargets));
+            }
         }
         if (quantityToMinimize == State.RoutingVariable.WEIGHT && streetMode == StreetMode.WALK) {
             estimate *= EdgeStore.WALK_RELUCTANCE_FACTOR;
@@ -670,7 +853,7 @@ public class StreetRouter {
      * There can be more than one state at the end of an edge due to turn restrictions
      */
     public State getStateAtEdge (int edgeIndex) {
-        Collection<State> states = bestStatesAtEdge.get(edgeIndex);
+        Collection<State> states = getStatesAtEdge(edgeIndex);
         if (states.isEmpty()) {
             return null; // Unreachable
         }
@@ -736,7 +919,7 @@ public class StreetRouter {
         }
 
         for (TIntIterator it = edgeList.iterator(); it.hasNext();) {
-            Collection<State> states = bestStatesAtEdge.get(it.next());
+            Collection<State> states = getStatesAtEdge(it.next());
             // NB this needs a state to copy turn restrictions into. We then don't use that state, which is fine because
             // we don't need the turn restrictions any more because we're at the end of the search
             states.stream().filter(s -> e.canTurnFrom(s, new State(-1, split.edge, s), profileRequest.reverseSearch))
@@ -768,7 +951,7 @@ public class StreetRouter {
         }
 
         for (TIntIterator it = edgeList.iterator(); it.hasNext();) {
-            Collection<State> states = bestStatesAtEdge.get(it.next());
+            Collection<State> states = getStatesAtEdge(it.next());
             states.stream().filter(s -> e.canTurnFrom(s, new State(-1, split.edge + 1, s), profileRequest.reverseSearch))
                     .map(s -> {
                         State ret = new State(-1, split.edge + 1, s);
@@ -0,0 +1,67 @@
+package com.conveyal.r5.streets;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps StreetRouters around for reuse, for code that performs one street search after another: building distance
+ * tables and transfers (one search per stop) and regional analyses (one per origin).
+ * Routers from this pool allocate arrays proportional to the number of edges in the street network, which for short
+ * searches on large networks costs far more than the search itself, but makes each search faster than with the hash
+ * maps used by routers constructed directly. A reused router is reset in time proportional to the number of edges its
+ * previous search reached.
+ *
+ * Each StreetLayer has its own pool. Routers refer to their street layer, so a pool that outlived its layer (for
+ * example one held by a thread that never searches again) would keep networks in memory after the network cache has
+ * evicted them. Keeping the pool on the layer means the routers become unreachable along with the network.
+ *
+ * Any thread may acquire a router released by another; the pool's queue ensures the released router is safely visible.
+ * Each router must be released exactly once when the caller no longer needs its results, and must not be used after
+ * it's released. Only routers obtained from acquire() should be released.
+ */
+public class StreetRouterPool {
+
+    /** A thread rarely needs more than a couple of routers at once, e.g. for access and direct searches. */
+    private static final int MAX_ROUTERS = Runtime.getRuntime().availableProcessors() * 4;
+
+    private final Queue<StreetRouter> routers = new ConcurrentLinkedQueue<>();
+
+    /** The number of routers in the queue, which is expensive to count. */
+    private final AtomicInteger nRouters = new AtomicInteger();
+
+    /** Pools are created by StreetLayer.getRouterPool(). */
+    StreetRouterPool () { }
+
+    /**
+     * @return a router for the given street layer, in the same state as a newly constructed one. It is reused from
+     *         the layer's pool if possible.
+     */
+    public static StreetRouter acquire (StreetLayer streetLayer) {
+        StreetRouterPool pool = streetLayer.getRouterPool();
+        StreetRouter router;
+        while ((router = pool.routers.poll()) != null) {
+            pool.nRouters.decrementAndGet();
+            if (router.canRouteOn(streetLayer)) return router;
+            // Drop routers created before edges were added to the layer (e.g. while a scenario was being applied).
+        }
+        return new StreetRouter(streetLayer, new EdgeStore.DefaultTravelTimeCalculator(), true);
+    }
+
+    /**
+     * Return a router to its street layer's pool once the caller is done with its results. The router is reset
+     * immediately, so that the pool does not hold on to the states from its last search.
+     */
+    public static void release (StreetRouter router) {
+        // Routers constructed directly rather than by acquire() are not worth pooling, see StreetRouter.stateAtEdge.
+        if (!router.canRouteOn(router.streetLayer)) return;
+        StreetRouterPool pool = router.streetLayer.getRouterPool();
+        if (pool.nRouters.incrementAndGet() <= MAX_ROUTERS) {
+            router.reset();
+            pool.routers.add(router);
+        } else {
+            pool.nRouters.decrementAndGet();
+        }
+    }
+
+}
@@ -1,6 +1,7 @@
 package com.conveyal.r5.streets;
 
 import com.conveyal.r5.trove.TIntAugmentedList;
+import com.conveyal.r5.util.MappedColumnFile;
 import com.vividsolutions.jts.geom.CoordinateFilter;
 import com.vividsolutions.jts.geom.Geometry;
 import gnu.trove.list.TByteList;
@@ -9,6 +10,7 @@ import gnu.trove.list.TIntList;
 import gnu.trove.list.array.TByteArrayList;
 import gnu.trove.list.array.TIntArrayList;
 
+import java.io.IOException;
 import java.io.Serializable;
 
 /**
@@ -26,9 +28,10 @@ public class VertexStore implements Serializable {
     public static final double FIXED_FACTOR = 1e7; // we could just reuse the constant from osm-lib Node.
     // TODO direct mm_per_fixed_degree conversion, work entirely in mm and fixed degrees.
 
-    public TIntList fixedLats;
-    public TIntList fixedLons;
-    public TByteList vertexFlags;
+    // These lists are serialized as columns by writeColumns, rather than with the rest of the network.
+    public transient TIntList fixedLats;
+    public transient TIntList fixedLons;
+    public transient TByteList vertexFlags;
 
     public VertexStore (int initialSize) {
         fixedLats = new TIntArrayList(initialSize);
@@ -194,6 +197,23 @@ public class VertexStore implements Serializable {
 
     }
 
+    /** Write the coordinates and flags of all vertices to the given file as columns, to be restored by readColumns. */
+    public void writeColumns (MappedColumnFile.Writer writer) throws IOException {
+        writer.writeInts("vertices.fixedLats", fixedLats);
+        writer.writeInts("vertices.fixedLons", fixedLons);
+        writer.writeBytes("vertices.flags", vertexFlags);
+    }
+
+    /**
+     * Replace the coordinates and flags of all vertices with read-only views of the columns in the given file. Vertices
+     * can't be added to or modified in this VertexStore afterward, only in extend-only copies.
+     */
+    public void readColumns (MappedColumnFile.Reader reader) throws IOException {
+        fixedLats = reader.readInts("vertices.fixedLats");
+        fixedLons = reader.readInts("vertices.fixedLons");
+        vertexFlags = reader.readBytes("vertices.flags");
+    }
+
     /**
      * Makes a copy of this VertexStore that can have vertices added to it, but cannot otherwise be modified.
      * This is done efficiently by wrapping the existing lists holding the various vertex characteristics.
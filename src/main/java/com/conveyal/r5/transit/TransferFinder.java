@@ -9,13 +9,18 @@ import gnu.trove.map.hash.TIntIntHashMap;
 import gnu.trove.map.hash.TIntObjectHashMap;
 import com.conveyal.r5.streets.StreetLayer;
 import com.conveyal.r5.streets.StreetRouter;
+import com.conveyal.r5.streets.StreetRouterPool;
+import com.conveyal.r5.util.CompressedSparseRows;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.List;
+import java.util.stream.IntStream;
 
 /**
- * TODO optimization: combine TransferFinder with stop-to-vertex distance table builder.
+ * Finds transfers between transit stops through the street network. If stop-to-vertex distance tables have already
+ * been built, transfers are derived from those tables rather than searching the streets around each stop a second
+ * time, so where both are needed the distance tables should be built first.
  */
 public class TransferFinder {
 
@@ -88,35 +93,35 @@ public class TransferFinder {
         LOG.info("Found {} unconnected P+Rs and {} P+Rs without closest stop in {} m", unconnectedParkRides, parkRidesWithoutStops, TransitLayer.PARKRIDE_DISTANCE_LIMIT);
     }
 
+    /**
+     * Find transfers out of every stop that doesn't already have them. The street searches from each stop are
+     * independent so are performed in parallel, then the transfers are recorded one stop at a time in stop order,
+     * which yields exactly the same transfer lists as performing the searches one after another.
+     */
     public void findTransfers () {
+        long startTime = System.currentTimeMillis();
         int unconnectedStops = 0;
         // For each stop, store all transfers out of that stop as packed pairs of (toStopIndex, distance)
         final List<TIntList> transfersForStop = transitLayer.transfersForStop;
         // When applying scenarios we want to find transfers for only the newly added stops.
         // We look at any existing list of transfers and do enough iterations to make it as long as the list of stops.
         int firstStopIndex = transfersForStop.size();
-        LOG.info("Finding transfers through the street network from {} stops...", transitLayer.getStopCount() - transfersForStop.size());
-        // TODO Parallelize with streams. See distance table generation.
+        int nStops = transitLayer.getStopCount() - firstStopIndex;
+        LOG.info("Finding transfers through the street network from {} stops...", nStops);
+        // From each stop, run a street search looking for other transit stops.
+        TIntIntMap[] distancesToReachedStopsFromStop = new TIntIntMap[nStops];
+        IntStream.range(0, nStops).parallel().forEach(i -> {
+            distancesToReachedStopsFromStop[i] = findDistancesToNearbyStops(firstStopIndex + i);
+        });
+        long searchTime = System.currentTimeMillis();
         for (int s = firstStopIndex; s < transitLayer.getStopCount(); s++) {
-            // From each stop, run a street search looking for other transit stops.
-            int originStreetVertex = transitLayer.streetVertexForStop.get(s);
-            if (originStreetVertex == -1) {
+            TIntIntMap distancesToReachedStops = distancesToReachedStopsFromStop[s - firstStopIndex];
+            if (distancesToReachedStops == null) {
                 unconnectedStops++;
                 // Every iteration must add an array to transfersForStop to maintain the right length.
                 transfersForStop.add(EMPTY_INT_LIST);
                 continue;
             }
-
-            StreetRouter streetRouter = new StreetRouter(streetLayer);
-            streetRouter.distanceLimitMeters = TransitLayer.TRANSFER_DISTANCE_LIMIT;
-
-            streetRouter.setOrigin(originStreetVertex);
-            streetRouter.quantityToMinimize = StreetRouter.State.RoutingVariable.DISTANCE_MILLIMETERS;
-
-            streetRouter.route();
-            TIntIntMap distancesToReachedStops = streetRouter.getReachedStops();
-            // FIXME the following is technically incorrect, measure that it's actually improving calculation speed
-            retainClosestStopsOnPatterns(distancesToReachedStops);
             // At this point we have the distances to all stops that are the closest one on some pattern.
             // Make transfers to them, packed as pairs of (target stop index, distance).
             TIntList packedTransfers = new TIntArrayList();
@@ -153,9 +158,66 @@ public class TransferFinder {
         }
         // Store the transfers in the transit layer
         transitLayer.transfersForStop = transfersForStop;
-        LOG.info("Done finding transfers. {} stops are unlinked.", unconnectedStops);
+        transitLayer.transferTable = new TransferTable(transfersForStop, transitLayer.getStopCount());
+        long endTime = System.currentTimeMillis();
+        LOG.info("Done finding transfers in {} sec ({} sec searching streets, {} sec recording transfers). " +
+                "{} stops are unlinked.", (endTime - startTime) / 1000d, (searchTime - startTime) / 1000d,
+                (endTime - searchTime) / 1000d, unconnectedStops);
+    }
+
+    /**
+     * Run a street search from the given stop looking for other transit stops. This is called from several threads
+     * at once so must not modify any shared state.
+     * @return the distance to each reached stop that is the closest one on some pattern, or null if the stop is not
+     *         linked to the street network.
+     */
+    private TIntIntMap findDistancesToNearbyStops (int stopIndex) {
+        int originStreetVertex = transitLayer.streetVertexForStop.get(stopIndex);
+        if (originStreetVertex == -1) return null;
+        TIntIntMap distancesFromDistanceTable = findDistancesToStopsInDistanceTable(stopIndex);
+        if (distancesFromDistanceTable != null) {
+            retainClosestStopsOnPatterns(distancesFromDistanceTable);
+            return distancesFromDistanceTable;
+        }
+        // Reuse routers from one stop to the next rather than allocating a new one for every stop.
+        StreetRouter streetRouter = StreetRouterPool.acquire(streetLayer);
+        TIntIntMap distancesToReachedStops;
+        try {
+            streetRouter.distanceLimitMeters = TransitLayer.TRANSFER_DISTANCE_LIMIT;
+
+            streetRouter.setOrigin(originStreetVertex);
+            streetRouter.quantityToMinimize = StreetRouter.State.RoutingVariable.DISTANCE_MILLIMETERS;
+
+            streetRouter.route();
+            distancesToReachedStops = streetRouter.getReachedStops();
+        } finally {
+            StreetRouterPool.release(streetRouter);
+        }
+        // FIXME the following is technically incorrect, measure that it's actually improving calculation speed
+        retainClosestStopsOnPatterns(distancesToReachedStops);
+        return distancesToReachedStops;
     }
 
+    /**
+     * The distance tables are built with the same kind of street search as transfers, only with a larger distance
+     * limit, so they contain exactly the distances a transfer search would find to every vertex within the transfer
+     * distance limit. This is called from several threads at once so must not modify any shared state.
+     * @return the distance to every stop within transfer distance of the given stop, or null if no distance table
+     *         has been built for it.
+     */
+    private TIntIntMap findDistancesToStopsInDistanceTable (int stopIndex) {
+        CompressedSparseRows distanceTables = transitLayer.stopToVertexDistanceTables;
+        if (distanceTables == null || !distanceTables.hasRow(stopIndex)) return null;
+        final int distanceLimitMm = TransitLayer.TRANSFER_DISTANCE_LIMIT * 1000;
+        TIntIntMap distancesToReachedStops = new TIntIntHashMap();
+        for (int i = distanceTables.rowStart(stopIndex); i < distanceTables.rowEnd(stopIndex); i++) {
+            int distanceMm = distanceTables.value(i);
+            if (distanceMm > distanceLimitMm) continue;
+            int targetStopIndex = transitLayer.stopForStreetVertex.get(distanceTables.key(i));
+            if (targetStopIndex != -1) distancesToReachedStops.put(targetStopIndex, distanceMm);
+        }
+        return distancesToReachedStops;
+    }
 
     /**
      * Filter down a map from target stop indexes to distances so it only includes those stops that are the
@@ -0,0 +1,91 @@
+package com.conveyal.r5.transit;
+
+import gnu.trove.list.TIntList;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The transfers between transit stops from TransitLayer.transfersForStop, flattened into compressed sparse row form
+ * for use in the transfer phase of RAPTOR searches. This is derived from transfersForStop and is not serialized.
+ *
+ * The transfers out of stop s are at indexes i where offsets[s] <= i < offsets[s + 1] in the parallel targetStops
+ * and distancesMillimeters arrays. Within each stop they are sorted by increasing distance, so a search can stop
+ * looking at transfers out of a stop as soon as it reaches one longer than its walk limit.
+ */
+public class TransferTable {
+
+    /** For each stop, the index of its first transfer. Has one more element than there are stops. */
+    public final int[] offsets;
+
+    /** The stop at the end of each transfer. */
+    public final int[] targetStops;
+
+    /** The length of each transfer in millimeters. */
+    public final int[] distancesMillimeters;
+
+    /**
+     * The transfer times for the most recently requested walk speed. Nearly all requests against a network use the
+     * same speed, so this avoids dividing every transfer distance by the speed in every round of every search.
+     */
+    private volatile TransferTimes transferTimes;
+
+    /**
+     * @param transfersForStop packed pairs of (target stop, distance in millimeters) for each stop.
+     * @param nStops the number of stops in the network, which may exceed the size of transfersForStop while
+     *               transfers are still being found. Stops with no entry have no transfers.
+     */
+    public TransferTable (List<TIntList> transfersForStop, int nStops) {
+        offsets = new int[nStops + 1];
+        for (int s = 0; s < nStops; s++) {
+            TIntList transfers = s < transfersForStop.size() ? transfersForStop.get(s) : null;
+            offsets[s + 1] = offsets[s] + (transfers == null ? 0 : transfers.size() / 2);
+        }
+
+        int nTransfers = offsets[nStops];
+        targetStops = new int[nTransfers];
+        distancesMillimeters = new int[nTransfers];
+        for (int s = 0; s < nStops; s++) {
+            int nTransfersForStop = offsets[s + 1] - offsets[s];
+            if (nTransfersForStop == 0) continue;
+            TIntList transfers = transfersForStop.get(s);
+            // Sort by distance by packing the (non-negative) distance into the high bits and the target into the low bits.
+            long[] sortable = new long[nTransfersForStop];
+            for (int t = 0; t < nTransfersForStop; t++) {
+                sortable[t] = ((long) transfers.get(t * 2 + 1) << 32) | transfers.get(t * 2);
+            }
+            Arrays.sort(sortable);
+            for (int t = 0; t < nTransfersForStop; t++) {
+                targetStops[offsets[s] + t] = (int) sortable[t];
+                distancesMillimeters[offsets[s] + t] = (int) (sortable[t] >>> 32);
+            }
+        }
+    }
+
+    /**
+     * @return the time in seconds to walk each transfer at the given speed, parallel to targetStops. The returned array
+     *         is shared and must not be modified.
+     */
+    public int[] getTransferTimesSeconds (int walkSpeedMillimetersPerSecond) {
+        TransferTimes times = transferTimes;
+        if (times == null || times.walkSpeedMillimetersPerSecond != walkSpeedMillimetersPerSecond) {
+            times = new TransferTimes(walkSpeedMillimetersPerSecond);
+            transferTimes = times;
+        }
+        return times.seconds;
+    }
+
+    private class TransferTimes {
+        final int walkSpeedMillimetersPerSecond;
+        final int[] seconds;
+
+        TransferTimes (int walkSpeedMillimetersPerSecond) {
+            this.walkSpeedMillimetersPerSecond = walkSpeedMillimetersPerSecond;
+            seconds = new int[distancesMillimeters.length];
+            for (int i = 0; i < seconds.length; i++) {
+                seconds[i] = distancesMillimeters[i] / walkSpeedMillimetersPerSecond;
+            }
+        }
+    }
+
+}
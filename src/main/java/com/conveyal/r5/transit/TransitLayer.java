@@ -9,6 +9,7 @@ import com.conveyal.r5.api.util.*;
 import com.conveyal.r5.common.GeometryUtils;
 import com.conveyal.r5.streets.EdgeStore;
 import com.conveyal.r5.streets.VertexStore;
+import com.conveyal.r5.util.CompressedSparseRows;
 import com.conveyal.r5.util.LambdaCounter;
 import com.conveyal.r5.util.LocationIndexedLineInLocalCoordinateSystem;
 import com.google.common.base.Strings;
@@ -26,6 +27,7 @@ import gnu.trove.map.TObjectIntMap;
 import gnu.trove.map.hash.TIntIntHashMap;
 import gnu.trove.map.hash.TObjectIntHashMap;
 import com.conveyal.r5.streets.StreetRouter;
+import com.conveyal.r5.streets.StreetRouterPool;
 import java.time.LocalDate;
 
 import gnu.trove.set.TIntSet;
@@ -98,6 +100,9 @@ public class TransitLayer implements Serializable, Cloneable {
     // FIXME we may currently be storing weight or time to reach other stop, which we did to avoid floating point division. Instead, store distances in millimeters, and divide by speed in mm/sec.
     public List<TIntList> transfersForStop = new ArrayList<>();
 
+    /** The contents of transfersForStop in a flat form for routing, rebuilt whenever the transfers change. */
+    public transient TransferTable transferTable;
+
     /** Information about a route */
     public List<RouteInfo> routes = new ArrayList<>();
 
@@ -106,6 +111,16 @@ public class TransitLayer implements Serializable, Cloneable {
 
     public List<TIntList> patternsForStop;
 
+    /**
+     * The contents of patternsForStop flattened into compressed sparse row form, for use in tight loops in routing.
+     * The patterns passing through stop s are patternsForStopFlat[i] for patternsForStopOffsets[s] <= i <
+     * patternsForStopOffsets[s + 1]. Rebuilt along with patternsForStop.
+     */
+    public transient int[] patternsForStopOffsets;
+
+    /** See patternsForStopOffsets. */
+    public transient int[] patternsForStopFlat;
+
     public List<Service> services = new ArrayList<>();
 
     /** Map from frequency entry ID to pattern index, trip index, frequency entry index */
@@ -130,7 +145,8 @@ public class TransitLayer implements Serializable, Cloneable {
     public boolean hasSchedules = false;
 
     /**
-     * For each transit stop, an int-int map giving the distance of every reachable street vertex from that stop.
+     * For each transit stop, a row giving the distance in millimeters of every reachable street vertex from that stop,
+     * keyed on street vertex index. The row is absent for stops that are not linked to the street network.
      * This is the result of running a distance-constrained street search outward from every stop in the graph.
      * If these tables are present, we serialize them when persisting a network to disk to avoid recalculating them
      * upon re-load. However, the tables are not computed when the network is first built, except in certain code
@@ -138,7 +154,7 @@ public class TransitLayer implements Serializable, Cloneable {
      * Serializing these tables makes files much bigger and makes our checks to ensure that scenario application
      * does not damage base graphs slower.
      */
-    public List<TIntIntMap> stopToVertexDistanceTables;
+    public CompressedSparseRows stopToVertexDistanceTables;
 
     /**
      * The TransportNetwork containing this TransitLayer. This link up the object tree also allows us to access the
@@ -479,6 +495,18 @@ public class TransitLayer implements Serializable, Cloneable {
             }
             p++;
         }
+        patternsForStopOffsets = new int[nStops + 1];
+        for (int s = 0; s < nStops; s++) {
+            patternsForStopOffsets[s + 1] = patternsForStopOffsets[s] + patternsForStop.get(s).size();
+        }
+        patternsForStopFlat = new int[patternsForStopOffsets[nStops]];
+        for (int s = 0; s < nStops; s++) {
+            patternsForStop.get(s).toArray(patternsForStopFlat, 0, patternsForStopOffsets[s], patternsForStop.get(s).size());
+        }
+
+        // Transfers are not found until after the first call to this method when building or applying a scenario. In
+        // that case this table will be rebuilt once they are.
+        transferTable = new TransferTable(transfersForStop, nStops);
 
         // 2. What street vertex represents each transit stop? Invert the serialized map.
         stopForStreetVertex = new TIntIntHashMap(streetVertexForStop.size(), 0.5f, -1, -1);
@@ -529,21 +557,32 @@ public class TransitLayer implements Serializable, Cloneable {
         LambdaCounter buildCounter = new LambdaCounter(LOG, getStopCount(), 1000,
                 "Computed distances to street vertices from {} of {} transit stops.");
 
-        // Working in parallel, create a new list containing one distance table for each stop index, optionally
-        // skipping stops falling outside the specified geometry.
-        stopToVertexDistanceTables = IntStream.range(0, getStopCount()).parallel().mapToObj(stopIndex -> {
+        // Working in parallel, create a distance table for each stop index, optionally skipping stops falling outside
+        // the specified geometry. Tables are packed as they are built so the maps can be discarded right away.
+        int nStops = getStopCount();
+        boolean[] rebuilt = new boolean[nStops];
+        List<int[]> rebuiltTables = IntStream.range(0, nStops).parallel().mapToObj(stopIndex -> {
             if (rebuildZone != null) {
                 // Skip existing or new stops outside the zone that may be affected by the scenario.
                 Point p = getJTSPointForStopFixed(stopIndex);
-                if (p == null || !rebuildZone.contains(p)) {
-                    // This stop can't be affected, return any existing one.
-                    return stopIndex < stopToVertexDistanceTables.size() ? stopToVertexDistanceTables.get(stopIndex) : null;
-                }
+                if (p == null || !rebuildZone.contains(p)) return null;
             }
+            rebuilt[stopIndex] = true;
             buildCounter.increment();
-            return this.buildOneDistanceTable(stopIndex);
+            return CompressedSparseRows.packSorted(this.buildOneDistanceTable(stopIndex));
         }).collect(Collectors.toList());
         buildCounter.done();
+
+        // Assemble the new tables, keeping any existing one for stops that can't be affected by the scenario. Those
+        // rows are shared with the existing tables (usually those of the base network) rather than copied.
+        CompressedSparseRows existingTables = stopToVertexDistanceTables;
+        CompressedSparseRows.Builder builder = new CompressedSparseRows.Builder(existingTables);
+        for (int stopIndex = 0; stopIndex < nStops; stopIndex++) {
+            if (rebuilt[stopIndex]) builder.addRow(rebuiltTables.get(stopIndex));
+            else if (existingTables != null) builder.addBaseRow(stopIndex);
+            else builder.addAbsentRow();
+        }
+        stopToVertexDistanceTables = builder.build();
     }
 
     /**
@@ -559,17 +598,22 @@ public class TransitLayer implements Serializable, Cloneable {
             LOG.warn("Stop {} has not been linked to the street network, cannot build a distance table for it.", stop);
             return null;
         }
-        StreetRouter router = new StreetRouter(parentNetwork.streetLayer);
-        router.distanceLimitMeters = DISTANCE_TABLE_SIZE_METERS;
-
-        // Dominate based on distance in millimeters, since (a) we're using a hard distance limit, and (b) we divide
-        // by a speed to get time when we use these tables.
-        router.quantityToMinimize = StreetRouter.State.RoutingVariable.DISTANCE_MILLIMETERS;
-        router.setOrigin(originVertex);
-        router.route();
-
-        // The values in this map will be distances in millimeters since that is our dominance function.
-        return router.getReachedVertices();
+        // This is called once per stop, so reuse routers rather than allocating a new one for every stop.
+        StreetRouter router = StreetRouterPool.acquire(parentNetwork.streetLayer);
+        try {
+            router.distanceLimitMeters = DISTANCE_TABLE_SIZE_METERS;
+
+            // Dominate based on distance in millimeters, since (a) we're using a hard distance limit, and (b) we divide
+            // by a speed to get time when we use these tables.
+            router.quantityToMinimize = StreetRouter.State.RoutingVariable.DISTANCE_MILLIMETERS;
+            router.setOrigin(originVertex);
+            router.route();
+
+            // The values in this map will be distances in millimeters since that is our dominance function.
+            return router.getReachedVertices();
+        } finally {
+            StreetRouterPool.release(router);
+        }
     }
 
     public int getStopCount () {
@@ -714,7 +758,6 @@ public class TransitLayer implements Serializable, Cloneable {
             copy.stopIdForIndex = new ArrayList<>(this.stopIdForIndex);
             copy.stopNames = new ArrayList<>(this.stopNames);
             copy.streetVertexForStop = new TIntArrayList(this.streetVertexForStop);
-            copy.stopToVertexDistanceTables = new ArrayList<>(this.stopToVertexDistanceTables);
             copy.transfersForStop = new ArrayList<>(this.transfersForStop);
             copy.routes = new ArrayList<>(this.routes);
             // To indicate that this layer is different than the one it was copied from, record the scenarioId of
@@ -10,7 +10,7 @@ import com.conveyal.r5.analyst.PointSet;
 import com.conveyal.r5.analyst.PointSetWithIds;
 import com.conveyal.r5.common.JsonUtilities;
 import com.conveyal.r5.point_to_point.builder.TNBuilderConfig;
-import com.conveyal.r5.util.ExpandingMMFBytez;
+import com.conveyal.r5.util.MappedColumnFile;
 import com.google.common.hash.HashCode;
 import com.google.common.hash.Hashing;
 import com.conveyal.r5.analyst.fare.GreedyFareCalculator;
@@ -21,8 +21,6 @@ import com.conveyal.r5.streets.LinkedPointSet;
 import com.conveyal.r5.streets.StreetLayer;
 
 import org.mapdb.Fun;
-import org.nustaq.serialization.FSTObjectInput;
-import org.nustaq.serialization.FSTObjectOutput;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -44,12 +42,6 @@ public class TransportNetwork implements Serializable {
 
     public TransitLayer transitLayer;
 
-    /**
-     * This stores any number of lightweight scenario networks built upon the current base network.
-     * FIXME that sounds like a memory leak, should be a WeighingCache or at least size-limited.
-     */
-    public transient Map<String, TransportNetwork> scenarios = new HashMap<>();
-
     /**
      * A grid point set that covers the full extent of this transport network. The PointSet itself then caches linkages
      * to street networks (the baseline street network, or ones with various scenarios applied). If they have been
@@ -84,15 +76,34 @@ public class TransportNetwork implements Serializable {
     /** Non-fatal warnings encountered when applying the scenario, null on a base network */
     public List<TaskError> scenarioApplicationWarnings;
 
+    /**
+     * Write this network to the given file. The large per-edge and per-vertex lists of the street layer are written as
+     * columns that read() maps back into memory, and the rest of the network is serialized with FST after them.
+     */
     public void write (File file) throws IOException {
         LOG.info("Writing transport network...");
-        ExpandingMMFBytez.writeObjectToFile(file, this);
+        try (MappedColumnFile.Writer writer = new MappedColumnFile.Writer(file)) {
+            streetLayer.edgeStore.writeColumns(writer);
+            streetLayer.vertexStore.writeColumns(writer);
+            writer.writeObject(this);
+        }
         LOG.info("Done writing.");
     }
 
+    /**
+     * Read a network written by write(). The street layer's edges and vertices are left in the file and read in place,
+     * so they are not copied onto the heap and are shared with any other process that has the same file open. The file
+     * must therefore not be modified in place while the network is in use. Replacing it with write() is safe, because
+     * write() renames a new file over the old one, and a process that has the old file mapped keeps reading it.
+     */
     public static TransportNetwork read (File file) throws Exception {
         LOG.info("Reading transport network...");
-        TransportNetwork result = ExpandingMMFBytez.readObjectFromFile(file, TransportNetwork.class);
+        TransportNetwork result;
+        try (MappedColumnFile.Reader reader = new MappedColumnFile.Reader(file)) {
+            result = reader.readObject(TransportNetwork.class);
+            result.streetLayer.edgeStore.readColumns(reader);
+            result.streetLayer.vertexStore.readColumns(reader);
+        }
         LOG.info("Done reading.");
         if (result.fareCalculator != null) {
             result.fareCalculator.transitLayer = result.transitLayer;
@@ -113,32 +124,6 @@ public class TransportNetwork implements Serializable {
         return result;
     }
 
-    // Old method that has the advantage of not using hidden black magic memory map methods, but buffers entirely in memory
-    public void writeStream (File file) throws IOException {
-        LOG.info("Writing transport network...");
-        OutputStream stream = new BufferedOutputStream(new FileOutputStream(file));
-        FSTObjectOutput out = new FSTObjectOutput(stream);
-        out.writeObject(this, TransportNetwork.class);
-        out.close();
-        LOG.info("Done writing.");
-    }
-
-    // Old method that has the advantage of not using hidden black magic memory map methods, but buffers entirely in memory
-    public static TransportNetwork readStream (File file) throws Exception {
-        LOG.info("Reading transport network...");
-        InputStream stream = new BufferedInputStream(new FileInputStream(file));
-        FSTObjectInput in = new FSTObjectInput(stream);
-        TransportNetwork result = (TransportNetwork) in.readObject(TransportNetwork.class);
-        in.close();
-        LOG.info("Done reading.");
-        if (result.fareCalculator != null) {
-            result.fareCalculator.transitLayer = result.transitLayer;
-        }
-        result.rebuildTransientIndexes();
-        return result;
-    }
-
-
     /**
      * Build some simple derived index tables that are not serialized with the network.
      * Distance tables and street spatial indexes are now serialized with the network.
@@ -222,6 +207,15 @@ public class TransportNetwork implements Serializable {
         streetLayer.buildEdgeLists();
         transitLayer.rebuildTransientIndexes();
 
+        // Landmark tables must be built once the street network is complete, and need the edge lists.
+        streetLayer.buildLandmarks(tnBuilderConfig.landmarkModes, tnBuilderConfig.nLandmarks);
+
+        // If destinations will be linked, build the distance tables first so transfers can be derived from them
+        // rather than searching the streets around every stop twice.
+        if (tnBuilderConfig.destinations != null) {
+            transportNetwork.transitLayer.buildDistanceTables(null);
+        }
+
         // Create transfers
         new TransferFinder(transportNetwork).findTransfers();
         new TransferFinder(transportNetwork).findParkRideTransfer();
@@ -229,7 +223,6 @@ public class TransportNetwork implements Serializable {
         // If a set of destinations is available at build time, link them to the street and transit networks.
         if (tnBuilderConfig.destinations != null) {
             PointSetWithIds destinations = OneToMany.readDestinations(new File(tnBuilderConfig.destinations));
-            transportNetwork.transitLayer.buildDistanceTables(null);
             transportNetwork.rebuildLinkedGridPointSet(destinations);
             transportNetwork.linkedGridPointSet = destinations.link(transportNetwork.streetLayer, StreetMode.BICYCLE);
             transportNetwork.linkedGridPointSet = destinations.link(transportNetwork.streetLayer, StreetMode.WALK);
@@ -378,6 +371,7 @@ public class TransportNetwork implements Serializable {
         // Here we are bypassing the GridPointSet's internal cache of linkages because we want this particular
         // linkage to be serialized with the network. The internal cache does not serialize its contents.
         linkedGridPointSet = new LinkedPointSet(pointSet, streetLayer, StreetMode.WALK, linkedGridPointSet);
+        linkedGridPointSet.makePointToStopDistanceTablesIfNeeded();
     }
 
     /**
@@ -396,6 +390,9 @@ public class TransportNetwork implements Serializable {
         // Here we are bypassing the GridPointSet's internal cache of linkages because we want this particular
         // linkage to be serialized with the network. The internal Guava cache does not serialize its contents (by design).
         linkedGridPointSet = new LinkedPointSet(pointSet, streetLayer, StreetMode.WALK, linkedGridPointSet);
+        // Also invert its distance tables now, so they are serialized with the network and propagation can start as
+        // soon as the network (or scenario) is ready.
+        linkedGridPointSet.makePointToStopDistanceTablesIfNeeded();
     }
 
     //TODO: add transit stops to envelope
@@ -13,14 +13,21 @@ import com.conveyal.r5.common.JsonUtilities;
 import com.conveyal.r5.common.R5Version;
 import com.conveyal.r5.point_to_point.builder.TNBuilderConfig;
 import com.conveyal.r5.profile.ProfileRequest;
+import com.conveyal.r5.profile.StreetMode;
+import com.conveyal.r5.streets.Landmarks;
+import com.conveyal.r5.streets.LinkedPointSet;
 import com.conveyal.r5.streets.OSMCache;
 import com.conveyal.r5.streets.StreetLayer;
+import com.conveyal.r5.trove.TIntBufferList;
+import com.conveyal.r5.util.CompressedSparseRows;
+import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
-import com.google.common.cache.CacheLoader;
-import com.google.common.cache.LoadingCache;
+import com.google.common.cache.RemovalCause;
 import com.google.common.cache.RemovalListener;
+import com.google.common.cache.Weigher;
 import com.google.common.io.ByteStreams;
 import org.apache.commons.io.IOUtils;
+import org.mapdb.Fun.Tuple2;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -30,17 +37,31 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.Collection;
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
 
 /**
- * This holds one or more TransportNetworks keyed on unique strings.
+ * This holds one or more TransportNetworks keyed on unique strings, along with the scenario networks derived from them.
  * Because (de)serialization is now much faster than building networks from scratch, built graphs are cached on the
  * local filesystem and on S3 for later re-use.
+ *
+ * Base and scenario networks are held in a single cache whose total size is limited by an estimate of the heap space
+ * each network uses, rather than by a number of networks. This allows a worker to keep networks for several regions
+ * in memory if they're small enough, and evicts the least recently used scenarios before large base networks.
+ * Networks are loaded without holding any lock on the cache as a whole, so distinct networks or scenarios can be
+ * loaded concurrently while other threads use networks that are already loaded. Concurrent requests for the same
+ * network wait for a single load to finish.
+ *
+ * Networks grow after they're cached, for example when point sets are linked for other modes. Guava only weighs an
+ * entry when it's stored, so networks are weighed again from time to time as they're used, and stored again when their
+ * estimated size has changed.
  */
 public class TransportNetworkCache {
 
@@ -52,17 +73,51 @@ public class TransportNetworkCache {
 
     private final String bucket;
 
-    private static final int DEFAULT_CACHE_SIZE = 1;
+    /** The share of the maximum heap size that cached networks may occupy, if no size is configured. */
+    private static final double DEFAULT_HEAP_FRACTION = 0.6;
 
-    private final LoadingCache<String, TransportNetwork> cache;
+    /** Rough heap space used per street vertex and per edge (one direction of an edge pair), in bytes. */
+    private static final int BYTES_PER_VERTEX = 40, BYTES_PER_EDGE = 60;
+
+    /**
+     * Rough heap space used per street vertex and per edge of a network read from a file, whose vertex and edge
+     * columns are mapped from the file rather than held on the heap. Only the indexes built when the network is loaded
+     * (incoming and outgoing edge lists and the spatial index) remain.
+     */
+    private static final int BYTES_PER_MAPPED_VERTEX = 30, BYTES_PER_MAPPED_EDGE = 25;
+
+    /** Rough heap space used by a trip schedule, not counting its stop times. */
+    private static final int BYTES_PER_TRIP = 100;
+
+    private static final long BYTES_PER_MEGABYTE = 1024 * 1024;
+
+    /** The minimum time between estimates of the size of a cached network, see reweighIfDue. */
+    private static final long REWEIGH_INTERVAL_MILLIS = 60 * 1000;
+
+    /** The maximum total estimated size of the cached networks, in megabytes, which are the units of cache weights. */
+    public final int maxCacheMegabytes;
+
+    private final Cache<NetworkKey, TransportNetwork> cache;
+
+    /** The weight each cached network was last given, and when. */
+    private final Map<NetworkKey, Weight> weights = new ConcurrentHashMap<>();
     private final BaseGTFSCache gtfsCache;
     private final OSMCache osmCache;
 
     /** Create a transport network cache. If source bucket is null, will work offline. */
     public TransportNetworkCache(String bucket, File cacheDir) {
+        this(bucket, cacheDir, defaultCacheMegabytes());
+    }
+
+    /**
+     * Create a transport network cache that holds networks up to the given total estimated size. If source bucket is
+     * null, will work offline.
+     */
+    public TransportNetworkCache(String bucket, File cacheDir, int maxCacheMegabytes) {
         this.cacheDir = cacheDir;
         this.bucket = bucket;
-        this.cache = createCache(DEFAULT_CACHE_SIZE);
+        this.maxCacheMegabytes = maxCacheMegabytes;
+        this.cache = createCache();
         this.gtfsCache = new GTFSCache(bucket, cacheDir);
         this.osmCache = new OSMCache(bucket, cacheDir);
         this.s3 = (bucket == null) ? null : AmazonS3ClientBuilder.defaultClient();
@@ -71,17 +126,25 @@ public class TransportNetworkCache {
     public TransportNetworkCache(BaseGTFSCache gtfsCache, OSMCache osmCache) {
         this.gtfsCache = gtfsCache;
         this.osmCache = osmCache;
-        this.cache = createCache(DEFAULT_CACHE_SIZE);
+        this.maxCacheMegabytes = defaultCacheMegabytes();
+        this.cache = createCache();
         this.cacheDir = gtfsCache.cacheDir;
         this.bucket = gtfsCache.bucket;
         // This constructor is only called when working offline, so don't create an S3 client to avoid region settings.
         s3 = null;
     }
 
+    private static int defaultCacheMegabytes () {
+        return (int) (Runtime.getRuntime().maxMemory() * DEFAULT_HEAP_FRACTION / BYTES_PER_MEGABYTE);
+    }
+
     /** Convenience method that returns transport network from cache. */
-    public synchronized TransportNetwork getNetwork (String networkId) {
+    public TransportNetwork getNetwork (String networkId) {
         try {
-            return cache.get(networkId);
+            NetworkKey key = new NetworkKey(networkId, null);
+            TransportNetwork network = cache.get(key, () -> loadNetwork(networkId));
+            reweighIfDue(key, network);
+            return network;
         } catch (Exception e) {
             LOG.error("Exception while loading a transport network into the cache: {}", e.toString());
             e.printStackTrace();
@@ -94,74 +157,95 @@ public class TransportNetworkCache {
      * ProfileRequests may contain an embedded complete scenario, or it may contain only the ID of a scenario that
      * must be fetched from S3.
      * By design a particular scenario is always defined relative to a single base graph (it's never applied to multiple
-     * different base graphs). Therefore we can look up cached scenario networks based solely on their scenarioId
-     * rather than a compound key of (networkId, scenarioId).
+     * different base graphs), but scenario networks are cached under (networkId, scenarioId) so that they can be
+     * evicted along with their base network.
      *
      * The fact that scenario networks are cached means that PointSet linkages will be automatically reused when
      * TODO it seems to me that this method should just take a Scenario as its second parameter, and that resolving the scenario against caches on S3 or local disk should be pulled out into a separate function
      */
-    public synchronized TransportNetwork getNetworkForScenario (String networkId, ProfileRequest request) {
+    public TransportNetwork getNetworkForScenario (String networkId, ProfileRequest request) {
         String scenarioId = request.scenarioId != null ? request.scenarioId : request.scenario.id;
 
-        // The following call clears the scenarioNetworkCache if the current base graph changes.
         TransportNetwork baseNetwork = this.getNetwork(networkId);
-        if (baseNetwork.scenarios == null) {
-            baseNetwork.scenarios = new HashMap<>();
-        }
-        TransportNetwork scenarioNetwork =  baseNetwork.scenarios.get(scenarioId);
+        if (baseNetwork == null) return null;
+
+        NetworkKey key = new NetworkKey(networkId, scenarioId);
+        TransportNetwork scenarioNetwork = cache.getIfPresent(key);
 
         // DEBUG force scenario re-application
         // scenarioNetwork = null;
 
-        if (scenarioNetwork == null) {
-            LOG.info("Applying scenario to base network...");
+        if (scenarioNetwork != null) {
+            LOG.info("Reusing cached TransportNetwork for scenario {}.", scenarioId);
+            reweighIfDue(key, scenarioNetwork);
+            return scenarioNetwork;
+        }
+        try {
+            scenarioNetwork = cache.get(key, () -> applyScenario(networkId, scenarioId, request, baseNetwork));
+            // If the base network was evicted while the scenario was being applied, the scenarios of that network were
+            // removed before this one was stored. Don't keep it, as it would keep the base network in memory without
+            // counting it. It's still fine to use for this request. If the base network is evicted after this check,
+            // this scenario will be removed along with it.
+            if (cache.getIfPresent(new NetworkKey(networkId, null)) != baseNetwork) {
+                LOG.info("Base network {} was evicted while applying scenario {}, not caching the scenario.",
+                        networkId, scenarioId);
+                cache.asMap().remove(key, scenarioNetwork);
+            }
+            return scenarioNetwork;
+        } catch (Exception e) {
+            LOG.error("Exception while applying scenario {} to transport network {}: {}", scenarioId, networkId,
+                    e.toString());
+            return null;
+        }
+    }
 
-            Scenario scenario;
-            if (request.scenario == null && request.scenarioId != null) {
-                // resolve scenario
-                LOG.info("Retrieving scenario stored separately on S3 rather than in the ProfileRequest");
+    /** @return the given base network with the scenario specified in the request applied, or null if it can't be found. */
+    private TransportNetwork applyScenario (String networkId, String scenarioId, ProfileRequest request,
+                                            TransportNetwork baseNetwork) {
+        LOG.info("Applying scenario to base network...");
 
-                File scenarioFile = new File(cacheDir, getScenarioFilename(networkId, scenarioId));
+        Scenario scenario;
+        if (request.scenario == null && request.scenarioId != null) {
+            // resolve scenario
+            LOG.info("Retrieving scenario stored separately on S3 rather than in the ProfileRequest");
 
-                if (!scenarioFile.exists()) {
-                    try {
-                        S3Object obj = s3.getObject(bucket, getScenarioFilename(networkId, scenarioId));
-                        InputStream is = obj.getObjectContent();
-                        OutputStream os = new BufferedOutputStream(new FileOutputStream(scenarioFile));
-                        ByteStreams.copy(is, os);
-                        is.close();
-                        os.close();
-                    } catch (Exception e) {
-                        LOG.info("Error retrieving scenario from S3", e);
-                        return null;
-                    }
-                }
+            File scenarioFile = new File(cacheDir, getScenarioFilename(networkId, scenarioId));
 
+            if (!scenarioFile.exists()) {
                 try {
-                    scenario = JsonUtilities.objectMapper.readValue(scenarioFile, Scenario.class);
-                } catch (IOException e) {
-                    LOG.error("Could not read scenario {} from disk", scenarioId, e);
+                    S3Object obj = s3.getObject(bucket, getScenarioFilename(networkId, scenarioId));
+                    InputStream is = obj.getObjectContent();
+                    OutputStream os = new BufferedOutputStream(new FileOutputStream(scenarioFile));
+                    ByteStreams.copy(is, os);
+                    is.close();
+                    os.close();
+                } catch (Exception e) {
+                    LOG.info("Error retrieving scenario from S3", e);
                     return null;
                 }
-            } else if (request.scenario != null) {
-                scenario = request.scenario;
-            } else {
-                LOG.warn("No scenario specified");
-                scenario = new Scenario();
             }
 
-            // Apply any scenario modifications to the network before use, performing protective copies where necessary.
-            // We used to prepend a filter to the scenario, removing trips that are not running during the search time window.
-            // scenario.modifications.add(0, new InactiveTripsFilter(baseNetwork, clusterRequest.profileRequest));
-            // However, because we are caching transportNetworks with scenarios already applied to them, we can’t use
-            // the InactiveTripsFilter. The solution may be to cache linked point sets based on scenario ID but always
-            // apply scenarios every time.
-            scenarioNetwork = scenario.applyToTransportNetwork(baseNetwork);
-            LOG.info("Done applying scenario. Caching the resulting network.");
-            baseNetwork.scenarios.put(scenario.id, scenarioNetwork);
+            try {
+                scenario = JsonUtilities.objectMapper.readValue(scenarioFile, Scenario.class);
+            } catch (IOException e) {
+                LOG.error("Could not read scenario {} from disk", scenarioId, e);
+                return null;
+            }
+        } else if (request.scenario != null) {
+            scenario = request.scenario;
         } else {
-            LOG.info("Reusing cached TransportNetwork for scenario {}.", scenarioId);
+            LOG.warn("No scenario specified");
+            scenario = new Scenario();
         }
+
+        // Apply any scenario modifications to the network before use, performing protective copies where necessary.
+        // We used to prepend a filter to the scenario, removing trips that are not running during the search time window.
+        // scenario.modifications.add(0, new InactiveTripsFilter(baseNetwork, clusterRequest.profileRequest));
+        // However, because we are caching transportNetworks with scenarios already applied to them, we can’t use
+        // the InactiveTripsFilter. The solution may be to cache linked point sets based on scenario ID but always
+        // apply scenarios every time.
+        TransportNetwork scenarioNetwork = scenario.applyToTransportNetwork(baseNetwork);
+        LOG.info("Done applying scenario. Caching the resulting network.");
         return scenarioNetwork;
     }
 
@@ -235,8 +319,10 @@ public class TransportNetworkCache {
         // Pre-compute distance tables from stops to streets and pre-build a linked grid pointSet for the whole region.
         // They should be serialized along with the network, which avoids building them when an analysis worker starts.
         // The pointSet linkage will never be used directly, but serves as a basis for scenario linkages, making
-        // analysis much faster to start up.
-        network.transitLayer.buildDistanceTables(null);
+        // analysis much faster to start up. Networks built from a manifest already have their distance tables.
+        if (network.transitLayer.stopToVertexDistanceTables == null) {
+            network.transitLayer.buildDistanceTables(null);
+        }
         network.rebuildLinkedGridPointSet();
 
         // Cache the network.
@@ -366,6 +452,10 @@ public class TransportNetworkCache {
 
         network.rebuildTransientIndexes();
 
+        // Build the distance tables before finding transfers, which are then derived from the tables rather than
+        // searching the streets around every stop a second time.
+        network.transitLayer.buildDistanceTables(null);
+
         TransferFinder transferFinder = new TransferFinder(network);
         transferFinder.findTransfers();
         transferFinder.findParkRideTransfer();
@@ -377,30 +467,172 @@ public class TransportNetworkCache {
         return GTFSCache.cleanId(networkId) + ".json";
     }
 
-    private LoadingCache createCache(int size) {
-        RemovalListener<String, TransportNetwork> removalListener = removalNotification -> {
-            String id = removalNotification.getKey();
+    private Cache<NetworkKey, TransportNetwork> createCache() {
+        RemovalListener<NetworkKey, TransportNetwork> removalListener = removalNotification -> {
+            NetworkKey key = removalNotification.getKey();
+            // A replaced network is the same network stored again to update its weight.
+            if (removalNotification.getCause() == RemovalCause.REPLACED) return;
+            weights.remove(key);
+            if (key.scenarioId != null) return;
+
+            // A scenario network refers to its base network, so keeping it would keep the base network in memory
+            // without counting it in the total size of the cache.
+            LOG.info("Removing transport network {} and its scenarios from the cache.", key.networkId);
+            cache.asMap().keySet().removeIf(k -> k.networkId.equals(key.networkId));
 
             // delete local files ONLY if using s3
             if (bucket != null) {
                 String[] extensions = {".db", ".db.p", ".zip"};
                 // delete local cache files (including zip) when feed removed from cache
                 for (String type : extensions) {
-                    File file = new File(cacheDir, id + type);
+                    File file = new File(cacheDir, key.networkId + type);
                     file.delete();
                 }
             }
         };
+        // The weight of a scenario network does not include its base network, which has its own entry in the cache.
+        // A network larger than the whole cache is given the weight of the whole cache, so that it evicts everything
+        // else rather than being evicted as soon as it's loaded.
+        Weigher<NetworkKey, TransportNetwork> weigher = (key, network) -> {
+            int megabytes = estimateMegabytes(network);
+            LOG.info("Estimated size of transport network {} scenario {} is {} MB.", key.networkId, key.scenarioId,
+                    megabytes);
+            weights.put(key, new Weight(megabytes));
+            return Math.min(megabytes, maxCacheMegabytes);
+        };
+        // Guava divides the maximum weight between segments of the cache, each of which evicts on its own, so a single
+        // segment is needed for one network to be able to use the whole cache. Segments are only locked while
+        // entries are updated, not while they are loaded.
         return CacheBuilder.newBuilder()
-                .maximumSize(size)
+                .concurrencyLevel(1)
+                .maximumWeight(maxCacheMegabytes)
+                .weigher(weigher)
                 .removalListener(removalListener)
-                .build(new CacheLoader() {
-                    public TransportNetwork load(Object s) throws Exception {
-                        // Thanks, java, for making me use a cast here. If I put generic arguments to new CacheLoader
-                        // due to type erasure it can't be sure I'm using types correctly.
-                        return loadNetwork((String) s);
-                    }
-                });
+                .build();
+    }
+
+    /** @return the estimated size of the given network in megabytes, not counting its base network if any. */
+    private static int estimateMegabytes (TransportNetwork network) {
+        StreetLayer streetLayer = network.streetLayer;
+        TransportNetwork baseNetwork = streetLayer.isScenarioCopy() ? streetLayer.baseStreetLayer.parentNetwork : null;
+        return (int) (estimateSizeBytes(network, baseNetwork) / BYTES_PER_MEGABYTE + 1);
+    }
+
+    /**
+     * If the given cached network has not been weighed recently, estimate its size again, and if it has changed store
+     * the network again so the cache takes the new weight into account.
+     */
+    private void reweighIfDue (NetworkKey key, TransportNetwork network) {
+        Weight weight = weights.get(key);
+        if (weight != null && System.currentTimeMillis() - weight.timeMillis < REWEIGH_INTERVAL_MILLIS) return;
+        int megabytes = estimateMegabytes(network);
+        if (weight != null && weight.megabytes == megabytes) {
+            weights.put(key, new Weight(megabytes));
+        } else {
+            // This calls the weigher, unless the network has been evicted in the meantime.
+            cache.asMap().replace(key, network, network);
+        }
+    }
+
+    /**
+     * A rough estimate of the heap space used by the given network in bytes, counting only its largest structures. For
+     * a scenario network, only the parts that are not shared with the given base network are counted.
+     * @param baseNetwork the network the scenario was applied to, or null if the given network is a base network.
+     */
+    static long estimateSizeBytes (TransportNetwork network, TransportNetwork baseNetwork) {
+        long bytes = 0;
+
+        // Scenario copies of the street layer wrap the base layer and only hold the vertices and edges they add.
+        StreetLayer streetLayer = network.streetLayer;
+        if (baseNetwork == null || streetLayer != baseNetwork.streetLayer) {
+            StreetLayer baseStreetLayer = baseNetwork == null ? null : baseNetwork.streetLayer;
+            int nVertices = streetLayer.getVertexCount();
+            int nEdges = streetLayer.edgeStore.nEdges();
+            if (baseStreetLayer != null) {
+                nVertices -= baseStreetLayer.getVertexCount();
+                nEdges -= baseStreetLayer.edgeStore.nEdges();
+            }
+            // The edges and vertices of a base network read from a file are mapped from the file, see
+            // MappedColumnFile. Those a scenario adds are always on the heap, in the extensions of the augmented lists.
+            if (streetLayer.edgeStore.flags instanceof TIntBufferList) {
+                bytes += (long) Math.max(0, nVertices) * BYTES_PER_MAPPED_VERTEX +
+                        (long) Math.max(0, nEdges) * BYTES_PER_MAPPED_EDGE;
+            } else {
+                bytes += (long) Math.max(0, nVertices) * BYTES_PER_VERTEX + (long) Math.max(0, nEdges) * BYTES_PER_EDGE;
+            }
+        }
+
+        // Scenario copies of the street layer share the landmark tables of the base layer.
+        Map<StreetMode, Landmarks> landmarks = streetLayer.landmarksForMode;
+        if (landmarks != null && (baseNetwork == null || landmarks != baseNetwork.streetLayer.landmarksForMode)) {
+            for (Landmarks landmarksForMode : landmarks.values()) bytes += landmarksForMode.estimateSizeBytes();
+        }
+
+        // Scenario copies of the transit layer share any trip patterns they don't modify.
+        TransitLayer transitLayer = network.transitLayer;
+        TransitLayer baseTransitLayer = baseNetwork == null ? null : baseNetwork.transitLayer;
+        if (transitLayer != baseTransitLayer) {
+            Set<TripPattern> basePatterns = Collections.newSetFromMap(new IdentityHashMap<>());
+            if (baseTransitLayer != null) basePatterns.addAll(baseTransitLayer.tripPatterns);
+            for (TripPattern pattern : transitLayer.tripPatterns) {
+                if (basePatterns.contains(pattern)) continue;
+                for (TripSchedule schedule : pattern.tripSchedules) {
+                    bytes += BYTES_PER_TRIP + schedule.arrivals.length * 8L;
+                }
+            }
+            // Scenario tables share the rows of stops that were not rebuilt with the base tables.
+            CompressedSparseRows tables = transitLayer.stopToVertexDistanceTables;
+            if (tables != null && (baseTransitLayer == null || tables != baseTransitLayer.stopToVertexDistanceTables)) {
+                bytes += tables.nOwnEntries() * 8L + tables.nRows() * 8L;
+            }
+        }
+
+        // Count every linkage of the network's grid to its own street layer, including those for other modes that
+        // were made after the network was loaded.
+        Set<LinkedPointSet> linkages = Collections.newSetFromMap(new IdentityHashMap<>());
+        if (network.linkedGridPointSet != null) linkages.add(network.linkedGridPointSet);
+        if (network.pointSet != null) {
+            network.pointSet.linkageCache.asMap().forEach((linkageKey, linkage) -> {
+                if (linkageKey.a == streetLayer) linkages.add(linkage);
+            });
+        }
+        for (LinkedPointSet linkage : linkages) {
+            LinkedPointSet baseLinkage = null;
+            if (baseNetwork != null && baseNetwork.pointSet != null) {
+                baseLinkage = baseNetwork.pointSet.linkageCache.getIfPresent(
+                        new Tuple2<>(baseNetwork.streetLayer, linkage.streetMode));
+            }
+            if (baseLinkage == null && baseNetwork != null && linkage == network.linkedGridPointSet) {
+                baseLinkage = baseNetwork.linkedGridPointSet;
+            }
+            bytes += estimateSizeBytes(linkage, baseLinkage);
+        }
+        return bytes;
+    }
+
+    /**
+     * A rough estimate of the heap space used by the given linkage in bytes, not counting anything it shares with the
+     * given linkage of the same points to the base network.
+     * @param baseLinkage null if the linkage is to a base network or there is no such linkage to the base network.
+     */
+    private static long estimateSizeBytes (LinkedPointSet linkage, LinkedPointSet baseLinkage) {
+        if (linkage == baseLinkage) return 0;
+        long bytes = linkage.edges.length * 12L;
+        // Point-to-stop tables are built on demand, so they may have been added since the network was last weighed.
+        if (linkage.pointToStopDistanceTables != null) {
+            bytes += linkage.pointToStopDistanceTables.nEntries() * 8L;
+        }
+        // Scenario linkages share the stop-to-point tables of stops whose surroundings were not modified.
+        if (linkage.stopToPointDistanceTables != null) {
+            Set<int[]> baseTables = Collections.newSetFromMap(new IdentityHashMap<>());
+            if (baseLinkage != null && baseLinkage.stopToPointDistanceTables != null) {
+                baseTables.addAll(baseLinkage.stopToPointDistanceTables);
+            }
+            for (int[] table : linkage.stopToPointDistanceTables) {
+                if (table != null && !baseTables.contains(table)) bytes += table.length * 4L;
+            }
+        }
+        return bytes;
     }
 
     /**
@@ -418,20 +650,58 @@ public class TransportNetworkCache {
                     networkId, R5Version.version);
             network = buildNetwork(networkId);
         }
-
-        cache.put(networkId, network);
         return network;
     }
 
     public Set<String> getLoadedNetworkIds() {
-        return cache.asMap().keySet();
+        return cache.asMap().keySet().stream()
+                .filter(key -> key.scenarioId == null)
+                .map(key -> key.networkId)
+                .collect(Collectors.toSet());
     }
 
     public Set<String> getAppliedScenarios() {
-        return cache.asMap().values().stream()
-                .filter(network -> network.scenarios != null)
-                .map(network -> network.scenarios.keySet())
-                .flatMap(Collection::stream)
+        return cache.asMap().keySet().stream()
+                .filter(key -> key.scenarioId != null)
+                .map(key -> key.scenarioId)
                 .collect(Collectors.toSet());
     }
+
+    /** The weight given to a cached network and when it was estimated. */
+    private static class Weight {
+
+        final int megabytes;
+
+        final long timeMillis = System.currentTimeMillis();
+
+        Weight (int megabytes) {
+            this.megabytes = megabytes;
+        }
+    }
+
+    /** Identifies a base network, or a scenario applied to a base network, in the cache. */
+    private static class NetworkKey {
+
+        final String networkId;
+
+        /** Null for a base network. */
+        final String scenarioId;
+
+        NetworkKey (String networkId, String scenarioId) {
+            this.networkId = networkId;
+            this.scenarioId = scenarioId;
+        }
+
+        @Override
+        public boolean equals (Object other) {
+            if (!(other instanceof NetworkKey)) return false;
+            NetworkKey key = (NetworkKey) other;
+            return networkId.equals(key.networkId) && Objects.equals(scenarioId, key.scenarioId);
+        }
+
+        @Override
+        public int hashCode () {
+            return networkId.hashCode() * 31 + Objects.hashCode(scenarioId);
+        }
+    }
 }
@@ -0,0 +1,144 @@
+package com.conveyal.r5.trove;
+
+import gnu.trove.TByteCollection;
+import gnu.trove.TIntCollection;
+import gnu.trove.TLongCollection;
+import gnu.trove.TShortCollection;
+import gnu.trove.function.TByteFunction;
+import gnu.trove.function.TIntFunction;
+import gnu.trove.function.TLongFunction;
+import gnu.trove.function.TShortFunction;
+
+import java.nio.Buffer;
+import java.util.Collection;
+import java.util.Random;
+
+/**
+ * The shared part of the read-only Trove lists backed by NIO buffers (TByteBufferList, TShortBufferList,
+ * TIntBufferList and TLongBufferList), which hold the columns of a street layer mapped from a network file. This holds
+ * the buffer and throws UnsupportedOperationException from every method that would modify a list, for all four element
+ * types at once, so each subclass only has to read values of its own type from the buffer. Scenarios extend these
+ * lists with the augmented lists rather than modifying them.
+ *
+ * Methods that differ between the element types only in their return type (removeAt for example) can't be declared
+ * here and are left to the subclasses.
+ */
+public abstract class BufferList<B extends Buffer> {
+
+    /** The values of this list, from index 0 to the limit of the buffer. */
+    protected final B buffer;
+
+    protected BufferList (B buffer) {
+        this.buffer = buffer;
+    }
+
+    public int size () {
+        return buffer.limit();
+    }
+
+    public boolean isEmpty () {
+        return buffer.limit() == 0;
+    }
+
+    protected static UnsupportedOperationException readOnly () {
+        return new UnsupportedOperationException("A list backed by a buffer is read-only.");
+    }
+
+    // The remaining methods modify the list, which is not possible for a read-only buffer.
+
+    public void clear () { throw readOnly(); }
+    public void remove (int offset, int length) { throw readOnly(); }
+    public boolean addAll (Collection collection) { throw readOnly(); }
+    public boolean retainAll (Collection<?> collection) { throw readOnly(); }
+    public boolean removeAll (Collection<?> collection) { throw readOnly(); }
+    public void reverse () { throw readOnly(); }
+    public void reverse (int from, int to) { throw readOnly(); }
+    public void shuffle (Random random) { throw readOnly(); }
+    public void sort () { throw readOnly(); }
+    public void sort (int fromIndex, int toIndex) { throw readOnly(); }
+
+    public boolean add (byte value) { throw readOnly(); }
+    public void add (byte[] values) { throw readOnly(); }
+    public void add (byte[] values, int offset, int length) { throw readOnly(); }
+    public void insert (int offset, byte value) { throw readOnly(); }
+    public void insert (int offset, byte[] values) { throw readOnly(); }
+    public void insert (int offset, byte[] values, int valOffset, int length) { throw readOnly(); }
+    public byte set (int offset, byte value) { throw readOnly(); }
+    public void set (int offset, byte[] values) { throw readOnly(); }
+    public void set (int offset, byte[] values, int valOffset, int length) { throw readOnly(); }
+    public byte replace (int offset, byte value) { throw readOnly(); }
+    public boolean remove (byte value) { throw readOnly(); }
+    public boolean addAll (TByteCollection collection) { throw readOnly(); }
+    public boolean addAll (byte[] array) { throw readOnly(); }
+    public boolean retainAll (TByteCollection collection) { throw readOnly(); }
+    public boolean retainAll (byte[] array) { throw readOnly(); }
+    public boolean removeAll (TByteCollection collection) { throw readOnly(); }
+    public boolean removeAll (byte[] array) { throw readOnly(); }
+    public void transformValues (TByteFunction function) { throw readOnly(); }
+    public void fill (byte value) { throw readOnly(); }
+    public void fill (int fromIndex, int toIndex, byte value) { throw readOnly(); }
+
+    public boolean add (short value) { throw readOnly(); }
+    public void add (short[] values) { throw readOnly(); }
+    public void add (short[] values, int offset, int length) { throw readOnly(); }
+    public void insert (int offset, short value) { throw readOnly(); }
+    public void insert (int offset, short[] values) { throw readOnly(); }
+    public void insert (int offset, short[] values, int valOffset, int length) { throw readOnly(); }
+    public short set (int offset, short value) { throw readOnly(); }
+    public void set (int offset, short[] values) { throw readOnly(); }
+    public void set (int offset, short[] values, int valOffset, int length) { throw readOnly(); }
+    public short replace (int offset, short value) { throw readOnly(); }
+    public boolean remove (short value) { throw readOnly(); }
+    public boolean addAll (TShortCollection collection) { throw readOnly(); }
+    public boolean addAll (short[] array) { throw readOnly(); }
+    public boolean retainAll (TShortCollection collection) { throw readOnly(); }
+    public boolean retainAll (short[] array) { throw readOnly(); }
+    public boolean removeAll (TShortCollection collection) { throw readOnly(); }
+    public boolean removeAll (short[] array) { throw readOnly(); }
+    public void transformValues (TShortFunction function) { throw readOnly(); }
+    public void fill (short value) { throw readOnly(); }
+    public void fill (int fromIndex, int toIndex, short value) { throw readOnly(); }
+
+    public boolean add (int value) { throw readOnly(); }
+    public void add (int[] values) { throw readOnly(); }
+    public void add (int[] values, int offset, int length) { throw readOnly(); }
+    public void insert (int offset, int value) { throw readOnly(); }
+    public void insert (int offset, int[] values) { throw readOnly(); }
+    public void insert (int offset, int[] values, int valOffset, int length) { throw readOnly(); }
+    public int set (int offset, int value) { throw readOnly(); }
+    public void set (int offset, int[] values) { throw readOnly(); }
+    public void set (int offset, int[] values, int valOffset, int length) { throw readOnly(); }
+    public int replace (int offset, int value) { throw readOnly(); }
+    public boolean remove (int value) { throw readOnly(); }
+    public boolean addAll (TIntCollection collection) { throw readOnly(); }
+    public boolean addAll (int[] array) { throw readOnly(); }
+    public boolean retainAll (TIntCollection collection) { throw readOnly(); }
+    public boolean retainAll (int[] array) { throw readOnly(); }
+    public boolean removeAll (TIntCollection collection) { throw readOnly(); }
+    public boolean removeAll (int[] array) { throw readOnly(); }
+    public void transformValues (TIntFunction function) { throw readOnly(); }
+    public void fill (int value) { throw readOnly(); }
+    public void fill (int fromIndex, int toIndex, int value) { throw readOnly(); }
+
+    public boolean add (long value) { throw readOnly(); }
+    public void add (long[] values) { throw readOnly(); }
+    public void add (long[] values, int offset, int length) { throw readOnly(); }
+    public void insert (int offset, long value) { throw readOnly(); }
+    public void insert (int offset, long[] values) { throw readOnly(); }
+    public void insert (int offset, long[] values, int valOffset, int length) { throw readOnly(); }
+    public long set (int offset, long value) { throw readOnly(); }
+    public void set (int offset, long[] values) { throw readOnly(); }
+    public void set (int offset, long[] values, int valOffset, int length) { throw readOnly(); }
+    public long replace (int offset, long value) { throw readOnly(); }
+    public boolean remove (long value) { throw readOnly(); }
+    public boolean addAll (TLongCollection collection) { throw readOnly(); }
+    public boolean addAll (long[] array) { throw readOnly(); }
+    public boolean retainAll (TLongCollection collection) { throw readOnly(); }
+    public boolean retainAll (long[] array) { throw readOnly(); }
+    public boolean removeAll (TLongCollection collection) { throw readOnly(); }
+    public boolean removeAll (long[] array) { throw readOnly(); }
+    public void transformValues (TLongFunction function) { throw readOnly(); }
+    public void fill (long value) { throw readOnly(); }
+    public void fill (int fromIndex, int toIndex, long value) { throw readOnly(); }
+
+}
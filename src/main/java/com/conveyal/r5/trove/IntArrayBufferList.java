@@ -0,0 +1,37 @@
+package com.conveyal.r5.trove;
+
+import java.nio.IntBuffer;
+import java.util.AbstractList;
+
+/**
+ * A read-only list of int arrays backed by two IntBuffers, usually columns mapped from a file with FileChannel.map:
+ * one holding all the arrays end to end, and one holding the offset of each array followed by the total length.
+ * Each call to get() copies one array out of the buffer, which is cheap for the short arrays this is used for (the
+ * intermediate points of edge geometries). Like the other buffer lists this can't be modified, and scenarios extend it
+ * with an AugmentedList instead.
+ */
+public class IntArrayBufferList extends AbstractList<int[]> {
+
+    private final IntBuffer offsets;
+
+    private final IntBuffer values;
+
+    public IntArrayBufferList (IntBuffer offsets, IntBuffer values) {
+        this.offsets = offsets;
+        this.values = values;
+    }
+
+    @Override
+    public int[] get (int index) {
+        int start = offsets.get(index);
+        int[] array = new int[offsets.get(index + 1) - start];
+        for (int i = 0; i < array.length; i++) array[i] = values.get(start + i);
+        return array;
+    }
+
+    @Override
+    public int size () {
+        return offsets.limit() - 1;
+    }
+
+}
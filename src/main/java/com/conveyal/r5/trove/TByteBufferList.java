@@ -0,0 +1,229 @@
+package com.conveyal.r5.trove;
+
+import gnu.trove.TByteCollection;
+import gnu.trove.iterator.TByteIterator;
+import gnu.trove.list.TByteList;
+import gnu.trove.list.array.TByteArrayList;
+import gnu.trove.procedure.TByteProcedure;
+
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.NoSuchElementException;
+
+/**
+ * A read-only TByteList backed by a ByteBuffer, usually a column mapped from a file with FileChannel.map. Values are
+ * read from the buffer in place, so nothing is copied onto the heap and the pages of a mapped file can be shared
+ * between processes. The methods that would modify the list are inherited from BufferList, which throws from all
+ * of them.
+ */
+public class TByteBufferList extends BufferList<ByteBuffer> implements TByteList {
+
+    public TByteBufferList (ByteBuffer buffer) {
+        super(buffer);
+    }
+
+    @Override
+    public byte get (int offset) {
+        return buffer.get(offset);
+    }
+
+    @Override
+    public byte getNoEntryValue () {
+        return 0;
+    }
+
+    @Override
+    public boolean contains (byte value) {
+        return indexOf(value) >= 0;
+    }
+
+    @Override
+    public boolean containsAll (Collection<?> collection) {
+        for (Object element : collection) {
+            if (!(element instanceof Byte) || !contains((Byte) element)) return false;
+        }
+        return true;
+    }
+
+    @Override
+    public boolean containsAll (TByteCollection collection) {
+        for (TByteIterator it = collection.iterator(); it.hasNext(); ) {
+            if (!contains(it.next())) return false;
+        }
+        return true;
+    }
+
+    @Override
+    public boolean containsAll (byte[] array) {
+        for (byte value : array) {
+            if (!contains(value)) return false;
+        }
+        return true;
+    }
+
+    @Override
+    public int indexOf (byte value) {
+        return indexOf(0, value);
+    }
+
+    @Override
+    public int indexOf (int offset, byte value) {
+        for (int i = offset; i < size(); i++) {
+            if (buffer.get(i) == value) return i;
+        }
+        return -1;
+    }
+
+    @Override
+    public int lastIndexOf (byte value) {
+        return lastIndexOf(size(), value);
+    }
+
+    @Override
+    public int lastIndexOf (int offset, byte value) {
+        for (int i = offset - 1; i >= 0; i--) {
+            if (buffer.get(i) == value) return i;
+        }
+        return -1;
+    }
+
+    @Override
+    public int binarySearch (byte value) {
+        return binarySearch(value, 0, size());
+    }
+
+    @Override
+    public int binarySearch (byte value, int fromIndex, int toIndex) {
+        int low = fromIndex;
+        int high = toIndex - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            byte midValue = buffer.get(mid);
+            if (midValue < value) low = mid + 1;
+            else if (midValue > value) high = mid - 1;
+            else return mid;
+        }
+        return -(low + 1);
+    }
+
+    @Override
+    public TByteIterator iterator () {
+        return new TByteIterator() {
+            int index = 0;
+
+            @Override
+            public byte next () {
+                if (index >= size()) throw new NoSuchElementException();
+                return buffer.get(index++);
+            }
+
+            @Override
+            public boolean hasNext () {
+                return index < size();
+            }
+
+            @Override
+            public void remove () {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    @Override
+    public byte[] toArray () {
+        return toArray(0, size());
+    }
+
+    @Override
+    public byte[] toArray (int offset, int len) {
+        return toArray(new byte[len], offset, 0, len);
+    }
+
+    @Override
+    public byte[] toArray (byte[] dest) {
+        int len = Math.min(dest.length, size());
+        return toArray(dest, 0, 0, len);
+    }
+
+    @Override
+    public byte[] toArray (byte[] dest, int offset, int len) {
+        return toArray(dest, offset, 0, len);
+    }
+
+    @Override
+    public byte[] toArray (byte[] dest, int source_pos, int dest_pos, int len) {
+        // Read through a duplicate so that concurrent readers don't disturb each other's positions.
+        ByteBuffer source = buffer.duplicate();
+        source.position(source_pos);
+        source.get(dest, dest_pos, len);
+        return dest;
+    }
+
+    @Override
+    public TByteList subList (int begin, int end) {
+        return new TByteArrayList(toArray(begin, end - begin));
+    }
+
+    @Override
+    public boolean forEach (TByteProcedure procedure) {
+        for (int i = 0; i < size(); i++) {
+            if (!procedure.execute(buffer.get(i))) return false;
+        }
+        return true;
+    }
+
+    @Override
+    public boolean forEachDescending (TByteProcedure procedure) {
+        for (int i = size() - 1; i >= 0; i--) {
+            if (!procedure.execute(buffer.get(i))) return false;
+        }
+        return true;
+    }
+
+    @Override
+    public TByteList grep (TByteProcedure condition) {
+        TByteList result = new TByteArrayList();
+        for (int i = 0; i < size(); i++) {
+            if (condition.execute(buffer.get(i))) result.add(buffer.get(i));
+        }
+        return result;
+    }
+
+    @Override
+    public TByteList inverseGrep (TByteProcedure condition) {
+        TByteList result = new TByteArrayList();
+        for (int i = 0; i < size(); i++) {
+            if (!condition.execute(buffer.get(i))) result.add(buffer.get(i));
+        }
+        return result;
+    }
+
+    @Override
+    public byte max () {
+        if (isEmpty()) throw new IllegalStateException("cannot find maximum of an empty list");
+        byte max = buffer.get(0);
+        for (int i = 1; i < size(); i++) if (buffer.get(i) > max) max = buffer.get(i);
+        return max;
+    }
+
+    @Override
+    public byte min () {
+        if (isEmpty()) throw new IllegalStateException("cannot find minimum of an empty list");
+        byte min = buffer.get(0);
+        for (int i = 1; i < size(); i++) if (buffer.get(i) < min) min = buffer.get(i);
+        return min;
+    }
+
+    @Override
+    public byte sum () {
+        byte sum = 0;
+        for (int i = 0; i < size(); i++) sum += buffer.get(i);
+        return sum;
+    }
+
+    @Override
+    public byte removeAt (int offset) {
+        throw readOnly();
+    }
+
+}
@@ -0,0 +1,229 @@
+package com.conveyal.r5.trove;
+
+import gnu.trove.TIntCollection;
+import gnu.trove.iterator.TIntIterator;
+import gnu.trove.list.TIntList;
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.procedure.TIntProcedure;
+
+import java.nio.IntBuffer;
+import java.util.Collection;
+import java.util.NoSuchElementException;
+
+/**
+ * A read-only TIntList backed by a IntBuffer, usually a column mapped from a file with FileChannel.map. Values are
+ * read from the buffer in place, so nothing is copied onto the heap and the pages of a mapped file can be shared
+ * between processes. The methods that would modify the list are inherited from BufferList, which throws from all
+ * of them.
+ */
+public class TIntBufferList extends BufferList<IntBuffer> implements TIntList {
+
+    public TIntBufferList (IntBuffer buffer) {
+        super(buffer);
+    }
+
+    @Override
+    public int get (int offset) {
+        return buffer.get(offset);
+    }
+
+    @Override
+    public int getNoEntryValue () {
+        return 0;
+    }
+
+    @Override
+    public boolean contains (int value) {
+        return indexOf(value) >= 0;
+    }
+
+    @Override
+    public boolean containsAll (Collection<?> collection) {
+        for (Object element : collection) {
+            if (!(element instanceof Integer) || !contains((Integer) element)) return false;
+        }
+        return true;
+    }
+
+    @Override
+    public boolean containsAll (TIntCollection collection) {
+        for (TIntIterator it = collection.iterator(); it.hasNext(); ) {
+            if (!contains(it.next())) return false;
+        }
+        return true;
+    }
+
+    @Override
+    public boolean containsAll (int[] array) {
+        for (int value : array) {
+            if (!contains(value)) return false;
+        }
+        return true;
+    }
+
+    @Override
+    public int indexOf (int value) {
+        return indexOf(0, value);
+    }
+
+    @Override
+    public int indexOf (int offset, int value) {
+        for (int i = offset; i < size(); i++) {
+            if (buffer.get(i) == value) return i;
+        }
+        return -1;
+    }
+
+    @Override
+    public int lastIndexOf (int value) {
+        return lastIndexOf(size(), value);
+    }
+
+    @Override
+    public int lastIndexOf (int offset, int value) {
+        for (int i = offset - 1; i >= 0; i--) {
+            if (buffer.get(i) == value) return i;
+        }
+        return -1;
+    }
+
+    @Override
+    public int binarySearch (int value) {
+        return binarySearch(value, 0, size());
+    }
+
+    @Override
+    public int binarySearch (int value, int fromIndex, int toIndex) {
+        int low = fromIndex;
+        int high = toIndex - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int midValue = buffer.get(mid);
+            if (midValue < value) low = mid + 1;
+            else if (midValue > value) high = mid - 1;
+            else return mid;
+        }
+        return -(low + 1);
+    }
+
+    @Override
+    public TIntIterator iterator () {
+        return new TIntIterator() {
+            int index = 0;
+
+            @Override
+            public int next () {
+                if (index >= size()) throw new NoSuchElementException();
+                return buffer.get(index++);
+            }
+
+            @Override
+            public boolean hasNext () {
+                return index < size();
+            }
+
+            @Override
+            public void remove () {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    @Override
+    public int[] toArray () {
+        return toArray(0, size());
+    }
+
+    @Override
+    public int[] toArray (int offset, int len) {
+        return toArray(new int[len], offset, 0, len);
+    }
+
+    @Override
+    public int[] toArray (int[] dest) {
+        int len = Math.min(dest.length, size());
+        return toArray(dest, 0, 0, len);
+    }
+
+    @Override
+    public int[] toArray (int[] dest, int offset, int len) {
+        return toArray(dest, offset, 0, len);
+    }
+
+    @Override
+    public int[] toArray (int[] dest, int source_pos, int dest_pos, int len) {
+        // Read through a duplicate so that concurrent readers don't disturb each other's positions.
+        IntBuffer source = buffer.duplicate();
+        source.position(source_pos);
+        source.get(dest, dest_pos, len);
+        return dest;
+    }
+
+    @Override
+    public TIntList subList (int begin, int end) {
+        return new TIntArrayList(toArray(begin, end - begin));
+    }
+
+    @Override
+    public boolean forEach (TIntProcedure procedure) {
+        for (int i = 0; i < size(); i++) {
+            if (!procedure.execute(buffer.get(i))) return false;
+        }
+        return true;
+    }
+
+    @Override
+    public boolean forEachDescending (TIntProcedure procedure) {
+        for (int i = size() - 1; i >= 0; i--) {
+            if (!procedure.execute(buffer.get(i))) return false;
+        }
+        return true;
+    }
+
+    @Override
+    public TIntList grep (TIntProcedure condition) {
+        TIntList result = new TIntArrayList();
+        for (int i = 0; i < size(); i++) {
+            if (condition.execute(buffer.get(i))) result.add(buffer.get(i));
+        }
+        return result;
+    }
+
+    @Override
+    public TIntList inverseGrep (TIntProcedure condition) {
+        TIntList result = new TIntArrayList();
+        for (int i = 0; i < size(); i++) {
+            if (!condition.execute(buffer.get(i))) result.add(buffer.get(i));
+        }
+        return result;
+    }
+
+    @Override
+    public int max () {
+        if (isEmpty()) throw new IllegalStateException("cannot find maximum of an empty list");
+        int max = buffer.get(0);
+        for (int i = 1; i < size(); i++) if (buffer.get(i) > max) max = buffer.get(i);
+        return max;
+    }
+
+    @Override
+    public int min () {
+        if (isEmpty()) throw new IllegalStateException("cannot find minimum of an empty list");
+        int min = buffer.get(0);
+        for (int i = 1; i < size(); i++) if (buffer.get(i) < min) min = buffer.get(i);
+        return min;
+    }
+
+    @Override
+    public int sum () {
+        int sum = 0;
+        for (int i = 0; i < size(); i++) sum += buffer.get(i);
+        return sum;
+    }
+
+    @Override
+    public int removeAt (int offset) {
+        throw readOnly();
+    }
+
+}
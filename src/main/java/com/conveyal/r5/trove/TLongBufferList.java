@@ -0,0 +1,229 @@
+package com.conveyal.r5.trove;
+
+import gnu.trove.TLongCollection;
+import gnu.trove.iterator.TLongIterator;
+import gnu.trove.list.TLongList;
+import gnu.trove.list.array.TLongArrayList;
+import gnu.trove.procedure.TLongProcedure;
+
+import java.nio.LongBuffer;
+import java.util.Collection;
+import java.util.NoSuchElementException;
+
+/**
+ * A read-only TLongList backed by a LongBuffer, usually a column mapped from a file with FileChannel.map. Values are
+ * read from the buffer in place, so nothing is copied onto the heap and the pages of a mapped file can be shared
+ * between processes. The methods that would modify the list are inherited from BufferList, which throws from all
+ * of them.
+ */
+public class TLongBufferList extends BufferList<LongBuffer> implements TLongList {
+
+    public TLongBufferList (LongBuffer buffer) {
+        super(buffer);
+    }
+
+    @Override
+    public long get (int offset) {
+        return buffer.get(offset);
+    }
+
+    @Override
+    public long getNoEntryValue () {
+        return 0;
+    }
+
+    @Override
+    public boolean contains (long value) {
+        return indexOf(value) >= 0;
+    }
+
+    @Override
+    public boolean containsAll (Collection<?> collection) {
+        for (Object element : collection) {
+            if (!(element instanceof Long) || !contains((Long) element)) return false;
+        }
+        return true;
+    }
+
+    @Override
+    public boolean containsAll (TLongCollection collection) {
+        for (TLongIterator it = collection.iterator(); it.hasNext(); ) {
+            if (!contains(it.next())) return false;
+        }
+        return true;
+    }
+
+    @Override
+    public boolean containsAll (long[] array) {
+        for (long value : array) {
+            if (!contains(value)) return false;
+        }
+        return true;
+    }
+
+    @Override
+    public int indexOf (long value) {
+        return indexOf(0, value);
+    }
+
+    @Override
+    public int indexOf (int offset, long value) {
+        for (int i = offset; i < size(); i++) {
+            if (buffer.get(i) == value) return i;
+        }
+        return -1;
+    }
+
+    @Override
+    public int lastIndexOf (long value) {
+        return lastIndexOf(size(), value);
+    }
+
+    @Override
+    public int lastIndexOf (int offset, long value) {
+        for (int i = offset - 1; i >= 0; i--) {
+            if (buffer.get(i) == value) return i;
+        }
+        return -1;
+    }
+
+    @Override
+    public int binarySearch (long value) {
+        return binarySearch(value, 0, size());
+    }
+
+    @Override
+    public int binarySearch (long value, int fromIndex, int toIndex) {
+        int low = fromIndex;
+        int high = toIndex - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            long midValue = buffer.get(mid);
+            if (midValue < value) low = mid + 1;
+            else if (midValue > value) high = mid - 1;
+            else return mid;
+        }
+        return -(low + 1);
+    }
+
+    @Override
+    public TLongIterator iterator () {
+        return new TLongIterator() {
+            int index = 0;
+
+            @Override
+            public long next () {
+                if (index >= size()) throw new NoSuchElementException();
+                return buffer.get(index++);
+            }
+
+            @Override
+            public boolean hasNext () {
+                return index < size();
+            }
+
+            @Override
+            public void remove () {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    @Override
+    public long[] toArray () {
+        return toArray(0, size());
+    }
+
+    @Override
+    public long[] toArray (int offset, int len) {
+        return toArray(new long[len], offset, 0, len);
+    }
+
+    @Override
+    public long[] toArray (long[] dest) {
+        int len = Math.min(dest.length, size());
+        return toArray(dest, 0, 0, len);
+    }
+
+    @Override
+    public long[] toArray (long[] dest, int offset, int len) {
+        return toArray(dest, offset, 0, len);
+    }
+
+    @Override
+    public long[] toArray (long[] dest, int source_pos, int dest_pos, int len) {
+        // Read through a duplicate so that concurrent readers don't disturb each other's positions.
+        LongBuffer source = buffer.duplicate();
+        source.position(source_pos);
+        source.get(dest, dest_pos, len);
+        return dest;
+    }
+
+    @Override
+    public TLongList subList (int begin, int end) {
+        return new TLongArrayList(toArray(begin, end - begin));
+    }
+
+    @Override
+    public boolean forEach (TLongProcedure procedure) {
+        for (int i = 0; i < size(); i++) {
+            if (!procedure.execute(buffer.get(i))) return false;
+        }
+        return true;
+    }
+
+    @Override
+    public boolean forEachDescending (TLongProcedure procedure) {
+        for (int i = size() - 1; i >= 0; i--) {
+            if (!procedure.execute(buffer.get(i))) return false;
+        }
+        return true;
+    }
+
+    @Override
+    public TLongList grep (TLongProcedure condition) {
+        TLongList result = new TLongArrayList();
+        for (int i = 0; i < size(); i++) {
+            if (condition.execute(buffer.get(i))) result.add(buffer.get(i));
+        }
+        return result;
+    }
+
+    @Override
+    public TLongList inverseGrep (TLongProcedure condition) {
+        TLongList result = new TLongArrayList();
+        for (int i = 0; i < size(); i++) {
+            if (!condition.execute(buffer.get(i))) result.add(buffer.get(i));
+        }
+        return result;
+    }
+
+    @Override
+    public long max () {
+        if (isEmpty()) throw new IllegalStateException("cannot find maximum of an empty list");
+        long max = buffer.get(0);
+        for (int i = 1; i < size(); i++) if (buffer.get(i) > max) max = buffer.get(i);
+        return max;
+    }
+
+    @Override
+    public long min () {
+        if (isEmpty()) throw new IllegalStateException("cannot find minimum of an empty list");
+        long min = buffer.get(0);
+        for (int i = 1; i < size(); i++) if (buffer.get(i) < min) min = buffer.get(i);
+        return min;
+    }
+
+    @Override
+    public long sum () {
+        long sum = 0;
+        for (int i = 0; i < size(); i++) sum += buffer.get(i);
+        return sum;
+    }
+
+    @Override
+    public long removeAt (int offset) {
+        throw readOnly();
+    }
+
+}
@@ -0,0 +1,229 @@
+package com.conveyal.r5.trove;
+
+import gnu.trove.TShortCollection;
+import gnu.trove.iterator.TShortIterator;
+import gnu.trove.list.TShortList;
+import gnu.trove.list.array.TShortArrayList;
+import gnu.trove.procedure.TShortProcedure;
+
+import java.nio.ShortBuffer;
+import java.util.Collection;
+import java.util.NoSuchElementException;
+
+/**
+ * A read-only TShortList backed by a ShortBuffer, usually a column mapped from a file with FileChannel.map. Values are
+ * read from the buffer in place, so nothing is copied onto the heap and the pages of a mapped file can be shared
+ * between processes. The methods that would modify the list are inherited from BufferList, which throws from all
+ * of them.
+ */
+public class TShortBufferList extends BufferList<ShortBuffer> implements TShortList {
+
+    public TShortBufferList (ShortBuffer buffer) {
+        super(buffer);
+    }
+
+    @Override
+    public short get (int offset) {
+        return buffer.get(offset);
+    }
+
+    @Override
+    public short getNoEntryValue () {
+        return 0;
+    }
+
+    @Override
+    public boolean contains (short value) {
+        return indexOf(value) >= 0;
+    }
+
+    @Override
+    public boolean containsAll (Collection<?> collection) {
+        for (Object element : collection) {
+            if (!(element instanceof Short) || !contains((Short) element)) return false;
+        }
+        return true;
+    }
+
+    @Override
+    public boolean containsAll (TShortCollection collection) {
+        for (TShortIterator it = collection.iterator(); it.hasNext(); ) {
+            if (!contains(it.next())) return false;
+        }
+        return true;
+    }
+
+    @Override
+    public boolean containsAll (short[] array) {
+        for (short value : array) {
+            if (!contains(value)) return false;
+        }
+        return true;
+    }
+
+    @Override
+    public int indexOf (short value) {
+        return indexOf(0, value);
+    }
+
+    @Override
+    public int indexOf (int offset, short value) {
+        for (int i = offset; i < size(); i++) {
+            if (buffer.get(i) == value) return i;
+        }
+        return -1;
+    }
+
+    @Override
+    public int lastIndexOf (short value) {
+        return lastIndexOf(size(), value);
+    }
+
+    @Override
+    public int lastIndexOf (int offset, short value) {
+        for (int i = offset - 1; i >= 0; i--) {
+            if (buffer.get(i) == value) return i;
+        }
+        return -1;
+    }
+
+    @Override
+    public int binarySearch (short value) {
+        return binarySearch(value, 0, size());
+    }
+
+    @Override
+    public int binarySearch (short value, int fromIndex, int toIndex) {
+        int low = fromIndex;
+        int high = toIndex - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            short midValue = buffer.get(mid);
+            if (midValue < value) low = mid + 1;
+            else if (midValue > value) high = mid - 1;
+            else return mid;
+        }
+        return -(low + 1);
+    }
+
+    @Override
+    public TShortIterator iterator () {
+        return new TShortIterator() {
+            int index = 0;
+
+            @Override
+            public short next () {
+                if (index >= size()) throw new NoSuchElementException();
+                return buffer.get(index++);
+            }
+
+            @Override
+            public boolean hasNext () {
+                return index < size();
+            }
+
+            @Override
+            public void remove () {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    @Override
+    public short[] toArray () {
+        return toArray(0, size());
+    }
+
+    @Override
+    public short[] toArray (int offset, int len) {
+        return toArray(new short[len], offset, 0, len);
+    }
+
+    @Override
+    public short[] toArray (short[] dest) {
+        int len = Math.min(dest.length, size());
+        return toArray(dest, 0, 0, len);
+    }
+
+    @Override
+    public short[] toArray (short[] dest, int offset, int len) {
+        return toArray(dest, offset, 0, len);
+    }
+
+    @Override
+    public short[] toArray (short[] dest, int source_pos, int dest_pos, int len) {
+        // Read through a duplicate so that concurrent readers don't disturb each other's positions.
+        ShortBuffer source = buffer.duplicate();
+        source.position(source_pos);
+        source.get(dest, dest_pos, len);
+        return dest;
+    }
+
+    @Override
+    public TShortList subList (int begin, int end) {
+        return new TShortArrayList(toArray(begin, end - begin));
+    }
+
+    @Override
+    public boolean forEach (TShortProcedure procedure) {
+        for (int i = 0; i < size(); i++) {
+            if (!procedure.execute(buffer.get(i))) return false;
+        }
+        return true;
+    }
+
+    @Override
+    public boolean forEachDescending (TShortProcedure procedure) {
+        for (int i = size() - 1; i >= 0; i--) {
+            if (!procedure.execute(buffer.get(i))) return false;
+        }
+        return true;
+    }
+
+    @Override
+    public TShortList grep (TShortProcedure condition) {
+        TShortList result = new TShortArrayList();
+        for (int i = 0; i < size(); i++) {
+            if (condition.execute(buffer.get(i))) result.add(buffer.get(i));
+        }
+        return result;
+    }
+
+    @Override
+    public TShortList inverseGrep (TShortProcedure condition) {
+        TShortList result = new TShortArrayList();
+        for (int i = 0; i < size(); i++) {
+            if (!condition.execute(buffer.get(i))) result.add(buffer.get(i));
+        }
+        return result;
+    }
+
+    @Override
+    public short max () {
+        if (isEmpty()) throw new IllegalStateException("cannot find maximum of an empty list");
+        short max = buffer.get(0);
+        for (int i = 1; i < size(); i++) if (buffer.get(i) > max) max = buffer.get(i);
+        return max;
+    }
+
+    @Override
+    public short min () {
+        if (isEmpty()) throw new IllegalStateException("cannot find minimum of an empty list");
+        short min = buffer.get(0);
+        for (int i = 1; i < size(); i++) if (buffer.get(i) < min) min = buffer.get(i);
+        return min;
+    }
+
+    @Override
+    public short sum () {
+        short sum = 0;
+        for (int i = 0; i < size(); i++) sum += buffer.get(i);
+        return sum;
+    }
+
+    @Override
+    public short removeAt (int offset) {
+        throw readOnly();
+    }
+
+}
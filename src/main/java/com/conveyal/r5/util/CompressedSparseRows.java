@@ -0,0 +1,310 @@
+package com.conveyal.r5.util;
+
+import gnu.trove.list.TIntList;
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.map.TIntIntMap;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * An immutable table of int values for (row, key) pairs, where each row has only a few of a large range of possible
+ * keys, such as the distances from each transit stop to nearby street vertices. This uses the compressed sparse row
+ * layout of sparse matrices: the keys and values of all rows are kept in two parallel arrays, sorted by row and then by
+ * key, so each row is a contiguous range of those arrays. That takes 8 bytes per entry, where a hash map per row with a
+ * load factor of 0.5 takes 16 or more plus the map objects, and a row can be read with a simple indexed loop:
+ *
+ * <pre>
+ * for (int i = table.rowStart(row); i &lt; table.rowEnd(row); i++) {
+ *     int key = table.key(i);
+ *     int value = table.value(i);
+ * }
+ * </pre>
+ *
+ * A row may be absent, which is distinct from a row that is present but empty. For example a transit stop that is not
+ * linked to the street network has no distance table at all. Absent rows are empty when iterated over.
+ *
+ * A table may also be built on top of a base table, sharing any rows it does not replace rather than copying them,
+ * as when a scenario rebuilds the distance tables of only the stops it affects. Entries of the base table keep their
+ * indexes in such a table, and the entries of replaced rows come after them, so rows are still read as above.
+ */
+public class CompressedSparseRows implements Serializable {
+
+    private static final long serialVersionUID = 2L;
+
+    /**
+     * The index of the first entry of each row. In a table without a base table this is followed by the total number
+     * of entries, and each row ends where the next begins. Otherwise the ends of the rows are in rowEnds.
+     */
+    private final int[] rowOffsets;
+
+    /** One past the index of the last entry of each row, for a table with a base table. Null otherwise. */
+    private final int[] rowEnds;
+
+    /** Rows that are absent rather than empty. */
+    private final BitSet absentRows;
+
+    /** The table whose entries this one shares, which never has a base table of its own. Null if there is none. */
+    private final CompressedSparseRows base;
+
+    /** Entries with lower indexes are in the base table, and the others are in this table's own arrays. */
+    private final int firstOwnEntry;
+
+    /** The total number of entries in all rows, including those shared with the base table. */
+    private final int nEntries;
+
+    /** The keys of the entries held in this table, starting with the entry at index firstOwnEntry. */
+    private final int[] keys;
+
+    private final int[] values;
+
+    private CompressedSparseRows (int[] rowOffsets, BitSet absentRows, int[] keys, int[] values) {
+        this.rowOffsets = rowOffsets;
+        this.rowEnds = null;
+        this.absentRows = absentRows;
+        this.base = null;
+        this.firstOwnEntry = 0;
+        this.nEntries = keys.length;
+        this.keys = keys;
+        this.values = values;
+    }
+
+    private CompressedSparseRows (CompressedSparseRows base, int[] rowStarts, int[] rowEnds, BitSet absentRows,
+                                  int[] keys, int[] values) {
+        this.rowOffsets = rowStarts;
+        this.rowEnds = rowEnds;
+        this.absentRows = absentRows;
+        this.base = base;
+        this.firstOwnEntry = base.keys.length;
+        int nEntries = 0;
+        for (int row = 0; row < rowEnds.length; row++) nEntries += rowEnds[row] - rowStarts[row];
+        this.nEntries = nEntries;
+        this.keys = keys;
+        this.values = values;
+    }
+
+    public int nRows () {
+        return rowEnds == null ? rowOffsets.length - 1 : rowEnds.length;
+    }
+
+    /** @return the total number of entries in all rows. */
+    public int nEntries () {
+        return nEntries;
+    }
+
+    /** @return the number of entries held by this table rather than shared with its base table. */
+    public int nOwnEntries () {
+        return keys.length;
+    }
+
+    /** @return false if the given row is absent or beyond the end of the table. */
+    public boolean hasRow (int row) {
+        return row >= 0 && row < nRows() && !absentRows.get(row);
+    }
+
+    /** @return the index of the first entry in the given row. */
+    public int rowStart (int row) {
+        return rowOffsets[row];
+    }
+
+    /** @return one past the index of the last entry in the given row. */
+    public int rowEnd (int row) {
+        return rowEnds == null ? rowOffsets[row + 1] : rowEnds[row];
+    }
+
+    public int rowSize (int row) {
+        return rowEnd(row) - rowStart(row);
+    }
+
+    /** @return the key of the entry at the given index. Within a row, keys are in increasing order. */
+    public int key (int index) {
+        return index < firstOwnEntry ? base.keys[index] : keys[index - firstOwnEntry];
+    }
+
+    /** @return the value of the entry at the given index. */
+    public int value (int index) {
+        return index < firstOwnEntry ? base.values[index] : values[index - firstOwnEntry];
+    }
+
+    /** @return the value for the given key in the given row, or noEntryValue if the row has no such key. */
+    public int get (int row, int key, int noEntryValue) {
+        int index = indexOf(row, key);
+        return index < 0 ? noEntryValue : value(index);
+    }
+
+    public boolean containsKey (int row, int key) {
+        return indexOf(row, key) >= 0;
+    }
+
+    /** @return the index of the entry for the given key in the given row, or a negative number if there is none. */
+    public int indexOf (int row, int key) {
+        if (row < 0 || row >= nRows()) return -1;
+        int start = rowStart(row);
+        int end = rowEnd(row);
+        int index;
+        if (start < firstOwnEntry) {
+            index = Arrays.binarySearch(base.keys, start, end, key);
+        } else {
+            index = Arrays.binarySearch(keys, start - firstOwnEntry, end - firstOwnEntry, key);
+            if (index >= 0) index += firstOwnEntry;
+        }
+        return index < 0 ? -1 : index;
+    }
+
+    /**
+     * Make a table in which row N contains, for each row of the given packed table that has key N, an entry whose key
+     * is that row's index. Rows of the result are therefore sorted, and rows with no entries are absent.
+     * @param packedRows for each row, the (key, value) pairs packed into one array as in LinkedPointSet, or null.
+     * @param nKeys one more than the largest key in packedRows, which is the number of rows in the result.
+     */
+    public static CompressedSparseRows transpose (List<int[]> packedRows, int nKeys) {
+        int[] rowOffsets = new int[nKeys + 1];
+        for (int[] packedRow : packedRows) {
+            if (packedRow == null) continue;
+            for (int i = 0; i < packedRow.length; i += 2) rowOffsets[packedRow[i] + 1]++;
+        }
+        BitSet absentRows = new BitSet(nKeys);
+        for (int row = 0; row < nKeys; row++) {
+            if (rowOffsets[row + 1] == 0) absentRows.set(row);
+            rowOffsets[row + 1] += rowOffsets[row];
+        }
+        int nEntries = rowOffsets[nKeys];
+        int[] keys = new int[nEntries];
+        int[] values = new int[nEntries];
+        int[] nextIndex = Arrays.copyOf(rowOffsets, nKeys);
+        for (int row = 0; row < packedRows.size(); row++) {
+            int[] packedRow = packedRows.get(row);
+            if (packedRow == null) continue;
+            for (int i = 0; i < packedRow.length; i += 2) {
+                int index = nextIndex[packedRow[i]]++;
+                keys[index] = row;
+                values[index] = packedRow[i + 1];
+            }
+        }
+        return new CompressedSparseRows(rowOffsets, absentRows, keys, values);
+    }
+
+    /**
+     * Convert a map to an array of (key, value) pairs sorted by key, suitable for Builder.addRow. Tables are often
+     * built one row at a time in parallel, and this allows the maps to be discarded before the table is assembled.
+     * @return null if the map is null.
+     */
+    public static int[] packSorted (TIntIntMap map) {
+        if (map == null) return null;
+        int[] keys = map.keys();
+        Arrays.sort(keys);
+        int[] packed = new int[keys.length * 2];
+        for (int i = 0; i < keys.length; i++) {
+            packed[i * 2] = keys[i];
+            packed[i * 2 + 1] = map.get(keys[i]);
+        }
+        return packed;
+    }
+
+    /** Assembles a table one row at a time, in order. */
+    public static class Builder {
+
+        /** The table whose entries are shared by rows added with addBaseRow, or null. */
+        private final CompressedSparseRows base;
+
+        /** The table whose entries the finished table will share: the base table or the one it was built on. */
+        private final CompressedSparseRows shared;
+
+        /** The index in the finished table of the first entry added to this builder. */
+        private final int firstOwnEntry;
+
+        private final TIntList rowStarts = new TIntArrayList();
+
+        private final TIntList rowEnds = new TIntArrayList();
+
+        private final BitSet absentRows = new BitSet();
+
+        private final TIntList keys = new TIntArrayList();
+
+        private final TIntList values = new TIntArrayList();
+
+        public Builder () {
+            this(null);
+        }
+
+        /**
+         * Build a table that shares the rows added with addBaseRow with the given base table, which may be null.
+         * If the base table was itself built on another table, the rows it shares with that table are shared in turn,
+         * and the rows it replaced are copied.
+         */
+        public Builder (CompressedSparseRows base) {
+            this.base = base;
+            this.shared = base == null ? null : base.base == null ? base : base.base;
+            this.firstOwnEntry = shared == null ? 0 : shared.keys.length;
+        }
+
+        /**
+         * Add a row from an array of (key, value) pairs sorted by key, such as that returned by packSorted.
+         * @param packedRow the row, or null to add an absent row.
+         */
+        public Builder addRow (int[] packedRow) {
+            if (packedRow == null) return addAbsentRow();
+            for (int i = 0; i < packedRow.length; i += 2) {
+                if (i > 0 && packedRow[i] <= packedRow[i - 2]) {
+                    throw new IllegalArgumentException("Keys in a row must be distinct and in increasing order.");
+                }
+            }
+            rowStarts.add(firstOwnEntry + keys.size());
+            for (int i = 0; i < packedRow.length; i += 2) {
+                keys.add(packedRow[i]);
+                values.add(packedRow[i + 1]);
+            }
+            rowEnds.add(firstOwnEntry + keys.size());
+            return this;
+        }
+
+        /** Add a copy of the given row of another table, which may be absent. */
+        public Builder addRow (CompressedSparseRows table, int row) {
+            if (!table.hasRow(row)) return addAbsentRow();
+            rowStarts.add(firstOwnEntry + keys.size());
+            for (int i = table.rowStart(row); i < table.rowEnd(row); i++) {
+                keys.add(table.key(i));
+                values.add(table.value(i));
+            }
+            rowEnds.add(firstOwnEntry + keys.size());
+            return this;
+        }
+
+        /**
+         * Add the given row of the base table supplied to the constructor, which may be absent. The row is shared
+         * rather than copied where possible.
+         */
+        public Builder addBaseRow (int row) {
+            if (!base.hasRow(row)) return addAbsentRow();
+            int start = base.rowStart(row);
+            int end = base.rowEnd(row);
+            // Entries of the shared table have the same indexes in the base table, and come before any of its own.
+            if (end > shared.keys.length) return addRow(base, row);
+            rowStarts.add(start);
+            rowEnds.add(end);
+            return this;
+        }
+
+        public Builder addAbsentRow () {
+            absentRows.set(rowStarts.size());
+            rowStarts.add(firstOwnEntry + keys.size());
+            rowEnds.add(firstOwnEntry + keys.size());
+            return this;
+        }
+
+        public CompressedSparseRows build () {
+            BitSet absentRows = (BitSet) this.absentRows.clone();
+            if (shared == null) {
+                // Without a base table, rows are contiguous so only their starts and the total are needed.
+                TIntList rowOffsets = new TIntArrayList(rowStarts);
+                rowOffsets.add(keys.size());
+                return new CompressedSparseRows(rowOffsets.toArray(), absentRows, keys.toArray(), values.toArray());
+            }
+            return new CompressedSparseRows(shared, rowStarts.toArray(), rowEnds.toArray(), absentRows,
+                    keys.toArray(), values.toArray());
+        }
+    }
+
+}
@@ -0,0 +1,193 @@
+package com.conveyal.r5.util;
+
+import gnu.trove.map.TIntIntMap;
+import gnu.trove.map.hash.TIntIntHashMap;
+
+import java.util.Arrays;
+
+/**
+ * A binary min-heap of int elements in the range [0, capacity), each with an int priority. Each element can appear
+ * in the heap only once, and its priority can be changed while it's in the heap. This lets a search keep one queue
+ * entry per edge or vertex and simply update it when a better path is found, rather than queueing a new object and
+ * later skipping the outdated ones.
+ *
+ * Elements and their priorities are kept in parallel primitive arrays, so no objects are created when adding,
+ * updating or removing elements. Clearing takes time proportional to the number of elements in the heap rather than
+ * the capacity.
+ *
+ * The position of each element is normally kept in an array with one slot per possible element, which must be
+ * allocated up front. A sparse heap instead keeps the positions of the elements it holds in a hash map. This is slower
+ * per operation, but costs nothing in proportion to the capacity, for heaps that are used once and will only ever hold
+ * a small fraction of the possible elements.
+ */
+public class IndexedIntHeap {
+
+    /** The elements in heap order. */
+    private int[] elements = new int[64];
+
+    /** The priority of each element, parallel to the elements array. */
+    private int[] priorities = new int[64];
+
+    /**
+     * For each possible element, one plus its position in the heap, or zero if it's not in the heap. Null if this heap
+     * is sparse.
+     */
+    private final int[] positionPlusOne;
+
+    /** For each element in a sparse heap, one plus its position in the heap. Null if this heap is not sparse. */
+    private final TIntIntMap sparsePositionPlusOne;
+
+    private final int capacity;
+
+    private int size = 0;
+
+    public IndexedIntHeap (int capacity) {
+        this(capacity, false);
+    }
+
+    /**
+     * @param sparse if true, keep the positions of elements in a hash map rather than an array of the full capacity.
+     */
+    public IndexedIntHeap (int capacity, boolean sparse) {
+        this.capacity = capacity;
+        if (sparse) {
+            positionPlusOne = null;
+            // Trove maps return zero for missing keys, which here means the element is not in the heap.
+            sparsePositionPlusOne = new TIntIntHashMap();
+        } else {
+            positionPlusOne = new int[capacity];
+            sparsePositionPlusOne = null;
+        }
+    }
+
+    /** @return the number of distinct elements this heap can hold. */
+    public int capacity () {
+        return capacity;
+    }
+
+    public int size () {
+        return size;
+    }
+
+    public boolean isEmpty () {
+        return size == 0;
+    }
+
+    public boolean contains (int element) {
+        return getPositionPlusOne(element) != 0;
+    }
+
+    /** @return the element with the lowest priority, without removing it. */
+    public int peek () {
+        if (size == 0) throw new IllegalStateException("Heap is empty.");
+        return elements[0];
+    }
+
+    /** @return the lowest priority of any element in the heap. */
+    public int peekPriority () {
+        if (size == 0) throw new IllegalStateException("Heap is empty.");
+        return priorities[0];
+    }
+
+    /**
+     * Add the given element to the heap with the given priority, or change its priority if it's already in the heap.
+     */
+    public void put (int element, int priority) {
+        int position = getPositionPlusOne(element) - 1;
+        if (position < 0) {
+            if (size == elements.length) {
+                elements = Arrays.copyOf(elements, size * 2);
+                priorities = Arrays.copyOf(priorities, size * 2);
+            }
+            position = size++;
+            elements[position] = element;
+            priorities[position] = priority;
+            setPositionPlusOne(element, position + 1);
+            siftUp(position);
+        } else if (priority < priorities[position]) {
+            priorities[position] = priority;
+            siftUp(position);
+        } else {
+            priorities[position] = priority;
+            siftDown(position);
+        }
+    }
+
+    /** Remove and return the element with the lowest priority. */
+    public int poll () {
+        int element = peek();
+        setPositionPlusOne(element, 0);
+        size--;
+        if (size > 0) {
+            elements[0] = elements[size];
+            priorities[0] = priorities[size];
+            setPositionPlusOne(elements[0], 1);
+            siftDown(0);
+        }
+        return element;
+    }
+
+    /** Remove all elements from the heap. */
+    public void clear () {
+        if (positionPlusOne == null) {
+            sparsePositionPlusOne.clear();
+        } else {
+            for (int i = 0; i < size; i++) positionPlusOne[elements[i]] = 0;
+        }
+        size = 0;
+    }
+
+    private void siftUp (int position) {
+        int element = elements[position];
+        int priority = priorities[position];
+        while (position > 0) {
+            int parent = (position - 1) >>> 1;
+            if (priorities[parent] <= priority) break;
+            move(parent, position);
+            position = parent;
+        }
+        place(element, priority, position);
+    }
+
+    private void siftDown (int position) {
+        int element = elements[position];
+        int priority = priorities[position];
+        int half = size >>> 1;
+        while (position < half) {
+            int child = 2 * position + 1;
+            if (child + 1 < size && priorities[child + 1] < priorities[child]) child++;
+            if (priority <= priorities[child]) break;
+            move(child, position);
+            position = child;
+        }
+        place(element, priority, position);
+    }
+
+    private void move (int from, int to) {
+        elements[to] = elements[from];
+        priorities[to] = priorities[from];
+        setPositionPlusOne(elements[to], to + 1);
+    }
+
+    private void place (int element, int priority, int position) {
+        elements[position] = element;
+        priorities[position] = priority;
+        setPositionPlusOne(element, position + 1);
+    }
+
+    private int getPositionPlusOne (int element) {
+        return positionPlusOne == null ? sparsePositionPlusOne.get(element) : positionPlusOne[element];
+    }
+
+    /** Record the position of the given element, where zero means it has been removed from the heap. */
+    private void setPositionPlusOne (int element, int positionPlusOne) {
+        if (this.positionPlusOne != null) {
+            this.positionPlusOne[element] = positionPlusOne;
+        } else if (positionPlusOne == 0) {
+            sparsePositionPlusOne.remove(element);
+        } else {
+            sparsePositionPlusOne.put(element, positionPlusOne);
+        }
+    }
+
+}
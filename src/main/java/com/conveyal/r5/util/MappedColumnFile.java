@@ -0,0 +1,351 @@
+package com.conveyal.r5.util;
+
+import com.conveyal.r5.trove.IntArrayBufferList;
+import com.conveyal.r5.trove.TByteBufferList;
+import com.conveyal.r5.trove.TIntBufferList;
+import com.conveyal.r5.trove.TLongBufferList;
+import com.conveyal.r5.trove.TShortBufferList;
+import gnu.trove.list.TByteList;
+import gnu.trove.list.TIntList;
+import gnu.trove.list.TLongList;
+import gnu.trove.list.TShortList;
+import org.nustaq.serialization.FSTObjectInput;
+import org.nustaq.serialization.FSTObjectOutput;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A file holding named columns of primitive values, followed by an FST-serialized object graph. This is used to store
+ * the large per-edge and per-vertex lists of a street layer, which make up most of a transport network, separately
+ * from the rest of the network. Each column is a little-endian array aligned on an 8-byte boundary, so it can be mapped
+ * read-only with FileChannel.map and read in place rather than deserialized onto the heap. Reading a network then
+ * takes time proportional to the size of the serialized part only, and several JVMs on the same machine share the
+ * mapped pages through the operating system's page cache.
+ *
+ * The file begins with a magic number, the format version, and the offset of the directory of columns. The columns
+ * follow the header, and the directory (the name, type, offset and length of each column) follows the columns. The
+ * serialized object comes last, so that it can be read with the same stream as the directory. Whenever the layout of
+ * the file or the meaning of a column changes, the format version must be incremented. Files with another version are
+ * rejected rather than misread.
+ */
+public abstract class MappedColumnFile {
+
+    /** The ASCII characters "R5COLUMN". */
+    private static final long MAGIC = 0x5235434F4C554D4EL;
+
+    public static final int FORMAT_VERSION = 1;
+
+    private static final int HEADER_BYTES = 24;
+
+    private static final int DIRECTORY_OFFSET_POSITION = 16;
+
+    private static final int ALIGNMENT_BYTES = 8;
+
+    /** The types of values a column can hold, identified in the file by their size in bytes. */
+    private static final byte BYTE = 1, SHORT = 2, INT = 4, LONG = 8;
+
+    private static class Column {
+        final byte type;
+        final long offset;
+        final int length;
+
+        Column (byte type, long offset, int length) {
+            this.type = type;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    /**
+     * Writes columns one after another, and then the serialized object. Other processes may have the destination file
+     * mapped, and truncating a mapped file crashes them when they touch the missing pages. So everything is written to
+     * a temporary file in the same directory, which replaces the destination in one atomic rename when the writer is
+     * closed after writeObject. If the writer is closed before that, the temporary file is deleted and the destination
+     * is left as it was.
+     */
+    public static class Writer implements Closeable {
+
+        private final File destination;
+
+        private final File tempFile;
+
+        private final RandomAccessFile file;
+
+        private final FileChannel channel;
+
+        /** Values are accumulated here and written to the channel whenever it's full. */
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(1024 * 1024).order(ByteOrder.LITTLE_ENDIAN);
+
+        private final Map<String, Column> columns = new LinkedHashMap<>();
+
+        /** The offset in the file of the next value to be written to the buffer. */
+        private long position = HEADER_BYTES;
+
+        /** Set once the object has been written, after which the file is complete and can replace the destination. */
+        private boolean complete = false;
+
+        public Writer (File file) throws IOException {
+            destination = file;
+            tempFile = File.createTempFile(file.getName(), ".tmp", file.getAbsoluteFile().getParentFile());
+            this.file = new RandomAccessFile(tempFile, "rw");
+            this.channel = this.file.getChannel();
+            channel.position(HEADER_BYTES);
+        }
+
+        public void writeBytes (String name, TByteList values) throws IOException {
+            startColumn(name, BYTE, values.size());
+            for (int i = 0; i < values.size(); i++) {
+                makeRoom(1);
+                buffer.put(values.get(i));
+            }
+            endColumn();
+        }
+
+        public void writeShorts (String name, TShortList values) throws IOException {
+            startColumn(name, SHORT, values.size());
+            for (int i = 0; i < values.size(); i++) {
+                makeRoom(2);
+                buffer.putShort(values.get(i));
+            }
+            endColumn();
+        }
+
+        public void writeInts (String name, TIntList values) throws IOException {
+            startColumn(name, INT, values.size());
+            for (int i = 0; i < values.size(); i++) {
+                makeRoom(4);
+                buffer.putInt(values.get(i));
+            }
+            endColumn();
+        }
+
+        public void writeLongs (String name, TLongList values) throws IOException {
+            startColumn(name, LONG, values.size());
+            for (int i = 0; i < values.size(); i++) {
+                makeRoom(8);
+                buffer.putLong(values.get(i));
+            }
+            endColumn();
+        }
+
+        /**
+         * Write a list of int arrays as two int columns: the arrays end to end (name.values), and the offset of each
+         * array followed by the total length (name.offsets). A null array is written as an empty one.
+         */
+        public void writeIntArrays (String name, List<int[]> arrays) throws IOException {
+            long nValues = 0;
+            for (int[] array : arrays) {
+                if (array != null) nValues += array.length;
+            }
+            // The offsets are ints, both here and in the IntArrayBufferList that reads them back.
+            checkSize(name + ".values", INT, nValues);
+            startColumn(name + ".offsets", INT, arrays.size() + 1);
+            int offset = 0;
+            for (int[] array : arrays) {
+                makeRoom(4);
+                buffer.putInt(offset);
+                if (array != null) offset += array.length;
+            }
+            makeRoom(4);
+            buffer.putInt(offset);
+            endColumn();
+
+            startColumn(name + ".values", INT, offset);
+            for (int[] array : arrays) {
+                if (array == null) continue;
+                for (int value : array) {
+                    makeRoom(4);
+                    buffer.putInt(value);
+                }
+            }
+            endColumn();
+        }
+
+        /**
+         * Write the directory of columns, then serialize the given object. Any fields of the object that were written
+         * as columns should be transient, so that they're not stored twice. No more columns can be written afterward.
+         */
+        public void writeObject (Object object) throws IOException {
+            flushBuffer();
+            long directoryOffset = position;
+            // Don't close these streams, which would close the channel before the header is written.
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+            out.writeInt(columns.size());
+            for (Map.Entry<String, Column> entry : columns.entrySet()) {
+                Column column = entry.getValue();
+                out.writeUTF(entry.getKey());
+                out.writeByte(column.type);
+                out.writeLong(column.offset);
+                out.writeInt(column.length);
+            }
+            FSTObjectOutput fstOut = new FSTObjectOutput(out);
+            fstOut.writeObject(object, object.getClass());
+            fstOut.flush();
+            out.flush();
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            header.putLong(MAGIC);
+            header.putInt(FORMAT_VERSION);
+            header.putInt(0);
+            header.putLong(directoryOffset);
+            header.flip();
+            channel.write(header, 0);
+            complete = true;
+        }
+
+        private void startColumn (String name, byte type, int length) throws IOException {
+            if (columns.containsKey(name)) throw new IllegalArgumentException("Duplicate column " + name);
+            checkSize(name, type, length);
+            columns.put(name, new Column(type, position, length));
+        }
+
+        /**
+         * Each column is mapped with a single call to FileChannel.map, which can't map more than Integer.MAX_VALUE
+         * bytes, so fail while writing rather than produce a file that can't be read.
+         */
+        private void checkSize (String name, byte type, long length) throws IOException {
+            long bytes = length * type;
+            if (bytes > Integer.MAX_VALUE) {
+                throw new IOException(String.format("Column %s would hold %d bytes, which is more than can be mapped " +
+                        "at once (%d bytes). The network is too large to be written in this format.", name, bytes,
+                        Integer.MAX_VALUE));
+            }
+        }
+
+        private void endColumn () throws IOException {
+            while (position % ALIGNMENT_BYTES != 0) {
+                makeRoom(1);
+                buffer.put((byte) 0);
+            }
+        }
+
+        /** Make sure there is room for a value of the given size in the buffer, and count it as written. */
+        private void makeRoom (int bytes) throws IOException {
+            if (buffer.remaining() < bytes) flushBuffer();
+            position += bytes;
+        }
+
+        private void flushBuffer () throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) channel.write(buffer);
+            buffer.clear();
+        }
+
+        @Override
+        public void close () throws IOException {
+            file.close();
+            if (complete) {
+                Files.move(tempFile.toPath(), destination.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            } else {
+                tempFile.delete();
+            }
+        }
+    }
+
+    /** Maps columns from a file written by a Writer, and deserializes the object that follows them. */
+    public static class Reader implements Closeable {
+
+        private final FileChannel channel;
+
+        private final Map<String, Column> columns = new HashMap<>();
+
+        /** Positioned at the start of the serialized object once the directory has been read. */
+        private final DataInputStream in;
+
+        public Reader (File file) throws IOException {
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            while (header.hasRemaining()) {
+                if (channel.read(header) < 0) throw new IOException(file + " is too short to be a column file.");
+            }
+            header.flip();
+            if (header.getLong() != MAGIC) throw new IOException(file + " is not a column file.");
+            int version = header.getInt();
+            if (version != FORMAT_VERSION) {
+                throw new IOException(String.format("%s has format version %d, but this version of R5 reads version %d.",
+                        file, version, FORMAT_VERSION));
+            }
+            long directoryOffset = header.getLong(DIRECTORY_OFFSET_POSITION);
+            channel.position(directoryOffset);
+            in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+            int nColumns = in.readInt();
+            for (int c = 0; c < nColumns; c++) {
+                String name = in.readUTF();
+                byte type = in.readByte();
+                long offset = in.readLong();
+                int length = in.readInt();
+                columns.put(name, new Column(type, offset, length));
+            }
+        }
+
+        public TByteList readBytes (String name) throws IOException {
+            return new TByteBufferList(map(name, BYTE));
+        }
+
+        public TShortList readShorts (String name) throws IOException {
+            return new TShortBufferList(map(name, SHORT).asShortBuffer());
+        }
+
+        public TIntList readInts (String name) throws IOException {
+            return new TIntBufferList(map(name, INT).asIntBuffer());
+        }
+
+        public TLongList readLongs (String name) throws IOException {
+            return new TLongBufferList(map(name, LONG).asLongBuffer());
+        }
+
+        /** Read a list of int arrays written by Writer.writeIntArrays. */
+        public List<int[]> readIntArrays (String name) throws IOException {
+            return new IntArrayBufferList(map(name + ".offsets", INT).asIntBuffer(),
+                    map(name + ".values", INT).asIntBuffer());
+        }
+
+        /** Deserialize the object that follows the columns. This must be called only once. */
+        public <T> T readObject (Class<T> type) throws Exception {
+            FSTObjectInput fstIn = new FSTObjectInput(in);
+            return type.cast(fstIn.readObject(type));
+        }
+
+        private ByteBuffer map (String name, byte type) throws IOException {
+            Column column = columns.get(name);
+            if (column == null) throw new IOException("No column named " + name);
+            if (column.type != type) {
+                throw new IOException(String.format("Column %s holds %d-byte values, not %d-byte values.", name,
+                        column.type, type));
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, column.offset,
+                    (long) column.length * type);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            return buffer;
+        }
+
+        /**
+         * A mapping remains valid after the channel it was made from is closed, so the file can be closed as soon as all
+         * the columns have been mapped.
+         */
+        @Override
+        public void close () throws IOException {
+            channel.close();
+        }
+    }
+
+}
@@ -0,0 +1,85 @@
+package com.conveyal.r5.analyst;
+
+import com.conveyal.r5.profile.FastRaptorWorker;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TravelTimeReducerTest {
+
+    private static final int[] PERCENTILE_INDEXES = new int[] { 0, 4, 49, 50, 94, 99 };
+
+    /** The counting sort must give exactly the same percentiles as sorting, with any proportion of unreached times. */
+    @Test
+    public void testHistogramMatchesSort () {
+        Random random = new Random(42);
+        // The same histogram is reused for every test, as it is for every target in the reducer.
+        int[] histogram = new int[121];
+        for (int test = 0; test < 1000; test++) {
+            int[] times = new int[100];
+            double unreachedProportion = random.nextDouble();
+            for (int i = 0; i < times.length; i++) {
+                times[i] = random.nextDouble() < unreachedProportion ? FastRaptorWorker.UNREACHED : random.nextInt(120 * 60);
+            }
+
+            int[] histogramResult = new int[PERCENTILE_INDEXES.length];
+            int[] unmodifiedTimes = Arrays.copyOf(times, times.length);
+            assertTrue(TravelTimeReducer.extractPercentilesFromHistogram(times, PERCENTILE_INDEXES, histogram, histogramResult));
+            assertArrayEquals(unmodifiedTimes, times);
+
+            int[] sortResult = new int[PERCENTILE_INDEXES.length];
+            TravelTimeReducer.extractPercentilesBySorting(times, PERCENTILE_INDEXES, sortResult);
+            assertArrayEquals(sortResult, histogramResult);
+        }
+    }
+
+    /** Percentiles in seconds for point sets must agree with the percentiles in minutes used for grids. */
+    @Test
+    public void testSecondsMatchMinutes () {
+        Random random = new Random(42);
+        for (int test = 0; test < 100; test++) {
+            int[] times = new int[100];
+            for (int i = 0; i < times.length; i++) {
+                times[i] = random.nextInt(10) == 0 ? FastRaptorWorker.UNREACHED : random.nextInt(120 * 60);
+            }
+            int[] secondsResult = new int[PERCENTILE_INDEXES.length];
+            TravelTimeReducer.extractPercentileSecondsBySorting(Arrays.copyOf(times, times.length), PERCENTILE_INDEXES,
+                    secondsResult);
+            int[] minutesResult = new int[PERCENTILE_INDEXES.length];
+            TravelTimeReducer.extractPercentilesBySorting(times, PERCENTILE_INDEXES, minutesResult);
+            for (int p = 0; p < PERCENTILE_INDEXES.length; p++) {
+                int seconds = secondsResult[p];
+                assertTrue(seconds == FastRaptorWorker.UNREACHED ? minutesResult[p] == FastRaptorWorker.UNREACHED
+                        : minutesResult[p] == seconds / 60);
+            }
+        }
+    }
+
+    @Test
+    public void testAllUnreached () {
+        int[] times = new int[100];
+        Arrays.fill(times, FastRaptorWorker.UNREACHED);
+        int[] result = new int[PERCENTILE_INDEXES.length];
+        assertTrue(TravelTimeReducer.extractPercentilesFromHistogram(times, PERCENTILE_INDEXES, new int[121], result));
+        for (int minutes : result) assertTrue(minutes == FastRaptorWorker.UNREACHED);
+    }
+
+    /** Times beyond the end of the histogram must be reported so the caller can fall back on sorting. */
+    @Test
+    public void testTimeOutsideHistogram () {
+        int[] times = new int[100];
+        Arrays.fill(times, 600);
+        times[17] = 121 * 60;
+        int[] histogram = new int[121];
+        assertFalse(TravelTimeReducer.extractPercentilesFromHistogram(times, PERCENTILE_INDEXES, histogram,
+                new int[PERCENTILE_INDEXES.length]));
+        // The histogram must be left clear for the next target even when falling back on sorting.
+        assertArrayEquals(new int[121], histogram);
+    }
+
+}
@@ -0,0 +1,150 @@
+package com.conveyal.r5.analyst.cluster;
+
+import com.google.common.io.ByteStreams;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Test that results received in any order, possibly more than once, are assembled into the expected access grids.
+ */
+public class GridResultAssemblerTest {
+
+    /** An assembler that keeps the compressed access grids instead of uploading them to S3. */
+    private static class TestAssembler extends GridResultAssembler {
+
+        final Map<String, byte[]> uploads = new HashMap<>();
+
+        TestAssembler (AnalysisTask request) {
+            super(request, "test-bucket");
+        }
+
+        @Override
+        protected void upload (String key, File file) throws IOException {
+            uploads.put(key, Files.readAllBytes(file.toPath()));
+        }
+    }
+
+    @Test
+    public void testSingleChannel () throws Exception {
+        RegionalTask task = makeTask(30, 20);
+        task.grid = "jobs/grid";
+        task.cutoffsMinutes = new int[] { 60 };
+
+        TestAssembler assembler = new TestAssembler(task);
+        deliver(assembler, task, 1, 1, 1, 0);
+        assertEquals(Collections.singleton("job.access"), assembler.uploads.keySet());
+        assertArrayEquals(expectedAccessGrid(task, 0, 0, 0), gunzip(assembler.uploads.get("job.access")));
+    }
+
+    /**
+     * Several grids, percentiles and cutoffs, with enough origins that the start of each access grid is compressed
+     * before the last result arrives.
+     */
+    @Test
+    public void testSeveralChannels () throws Exception {
+        RegionalTask task = makeTask(150, 120);
+        task.grids = Arrays.asList("jobs/grid0", "jobs/grid1");
+        task.percentiles = new double[] { 25, 50, 75 };
+        task.cutoffsMinutes = new int[] { 30, 45, 60, 90 };
+
+        TestAssembler assembler = new TestAssembler(task);
+        deliver(assembler, task, 2, 3, 4, 17_000);
+        assertEquals(2 * 3 * 4, assembler.uploads.size());
+        for (int g = 0; g < 2; g++) {
+            for (int p = 0; p < 3; p++) {
+                for (int c = 0; c < 4; c++) {
+                    String key = String.format("job_G%d_P%d_C%d.access", g, p, c);
+                    assertArrayEquals(expectedAccessGrid(task, g, p, c), gunzip(assembler.uploads.get(key)));
+                }
+            }
+        }
+    }
+
+    private static RegionalTask makeTask (int width, int height) {
+        RegionalTask task = new RegionalTask();
+        task.jobId = "job";
+        task.zoom = 9;
+        task.west = 1000;
+        task.north = 2000;
+        task.width = width;
+        task.height = height;
+        return task;
+    }
+
+    /**
+     * Deliver a result for every origin: the first nInOrder in order, and the rest shuffled. Every seventh origin is
+     * delivered a second time, sometimes before its first delivery is expected and sometimes after the last origin.
+     * If duplicates were counted, the assembler would finish before all the values were written.
+     */
+    private static void deliver (GridResultAssembler assembler, RegionalTask task, int nGrids, int nPercentiles,
+                                 int nCutoffs, int nInOrder) {
+        int nOrigins = task.width * task.height;
+        List<Integer> rest = new ArrayList<>();
+        for (int origin = nInOrder; origin < nOrigins; origin++) rest.add(origin);
+        for (int origin = 0; origin < nOrigins; origin += 7) rest.add(origin);
+        Collections.shuffle(rest, new Random(42));
+
+        for (int origin = 0; origin < nInOrder; origin++) {
+            assembler.handleMessage(makeResult(origin, nGrids, nPercentiles, nCutoffs));
+        }
+        for (int origin : rest) assembler.handleMessage(makeResult(origin, nGrids, nPercentiles, nCutoffs));
+    }
+
+    private static RegionalWorkResult makeResult (int origin, int nGrids, int nPercentiles, int nCutoffs) {
+        RegionalWorkResult result = new RegionalWorkResult("job", origin, nGrids, nPercentiles, nCutoffs);
+        for (int g = 0; g < nGrids; g++) {
+            for (int p = 0; p < nPercentiles; p++) {
+                for (int c = 0; c < nCutoffs; c++) {
+                    result.setAcccessibilityValue(g, p, c, value(origin, g, p, c));
+                }
+            }
+        }
+        return result;
+    }
+
+    /** A value that is different for every origin and channel. */
+    private static int value (int origin, int gridIndex, int percentileIndex, int cutoffIndex) {
+        return origin * 1000 + gridIndex * 100 + percentileIndex * 10 + cutoffIndex;
+    }
+
+    private static byte[] expectedAccessGrid (RegionalTask task, int gridIndex, int percentileIndex, int cutoffIndex) {
+        int nOrigins = task.width * task.height;
+        ByteBuffer buffer = ByteBuffer.allocate(9 * Integer.BYTES + nOrigins * Integer.BYTES)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        buffer.put("ACCESSGR".getBytes(StandardCharsets.US_ASCII));
+        buffer.putInt(0); // Version
+        buffer.putInt(task.zoom);
+        buffer.putInt(task.west);
+        buffer.putInt(task.north);
+        buffer.putInt(task.width);
+        buffer.putInt(task.height);
+        buffer.putInt(1); // Values per origin
+        for (int origin = 0; origin < nOrigins; origin++) {
+            buffer.putInt(value(origin, gridIndex, percentileIndex, cutoffIndex));
+        }
+        return buffer.array();
+    }
+
+    private static byte[] gunzip (byte[] compressed) throws IOException {
+        return ByteStreams.toByteArray(new GZIPInputStream(new ByteArrayInputStream(compressed)));
+    }
+
+}
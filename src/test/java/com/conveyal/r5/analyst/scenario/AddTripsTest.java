@@ -7,8 +7,8 @@ import com.conveyal.r5.streets.VertexStore;
 import com.conveyal.r5.transit.TransportNetwork;
 import com.conveyal.r5.transit.TripPattern;
 import com.conveyal.r5.transit.TripSchedule;
+import com.conveyal.r5.util.CompressedSparseRows;
 import gnu.trove.list.TIntList;
-import gnu.trove.map.TIntIntMap;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -23,7 +23,6 @@ import java.util.stream.Collectors;
 import static com.conveyal.r5.analyst.scenario.FakeGraph.buildNetwork;
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
-import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
@@ -304,9 +303,9 @@ public class AddTripsTest {
         assertTrue(r.getReachedVertices().size() > 5);
 
         // Make sure a distance table exists for this stop.
-        TIntIntMap distanceTable = mod.transitLayer.stopToVertexDistanceTables.get(pattern.stops[1]);
-        assertNotNull(distanceTable);
-        assertFalse(distanceTable.isEmpty());
+        CompressedSparseRows distanceTables = mod.transitLayer.stopToVertexDistanceTables;
+        assertTrue(distanceTables.hasRow(pattern.stops[1]));
+        assertTrue(distanceTables.rowSize(pattern.stops[1]) > 0);
 
         // Make sure this stop has transfers.
         TIntList transfers = mod.transitLayer.transfersForStop.get(pattern.stops[1]);
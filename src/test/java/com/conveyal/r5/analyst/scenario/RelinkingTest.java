@@ -1,16 +1,25 @@
 package com.conveyal.r5.analyst.scenario;
 
 import com.conveyal.gtfs.model.Route;
+import com.conveyal.r5.analyst.Grid;
+import com.conveyal.r5.analyst.WebMercatorGridPointSet;
+import com.conveyal.r5.profile.StreetMode;
+import com.conveyal.r5.streets.LinkedPointSet;
 import com.conveyal.r5.transit.TransportNetwork;
+import com.conveyal.r5.util.CompressedSparseRows;
 import gnu.trove.map.TIntIntMap;
+import gnu.trove.map.hash.TIntIntHashMap;
 import gnu.trove.set.TIntSet;
 import gnu.trove.set.hash.TIntHashSet;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 
 import static com.conveyal.r5.analyst.scenario.FakeGraph.buildNetwork;
+import static com.conveyal.r5.analyst.scenario.FakeGraph.set;
 import static org.junit.Assert.*;
 
 /**
@@ -99,27 +108,84 @@ public class RelinkingTest {
 
         // Check that stops s3 and s4 are included in the distance table
         // for stop 6 (the middle stop of the three new ones at indexes 5, 6, 7)
-        TIntIntMap distanceTable = mod.transitLayer.stopToVertexDistanceTables.get(6);
-        assertNotNull(distanceTable);
+        CompressedSparseRows distanceTables = mod.transitLayer.stopToVertexDistanceTables;
+        assertTrue(distanceTables.hasRow(6));
         int s4streetVertexIndex = mod.transitLayer.streetVertexForStop.get(s4StopIndex);
-        assertTrue(distanceTable.containsKey(s4streetVertexIndex));
+        assertTrue(distanceTables.containsKey(6, s4streetVertexIndex));
         int s3StopIndex = mod.transitLayer.indexForStopId.get("SINGLE_LINE:s3");
         int s3streetVertexIndex = mod.transitLayer.streetVertexForStop.get(s3StopIndex);
-        assertTrue(distanceTable.containsKey(s3streetVertexIndex));
+        assertTrue(distanceTables.containsKey(6, s3streetVertexIndex));
 
         // Check that stop 6 (the middle stop of the three new ones at indexes 5, 6, 7)
         // is included in the distance table for stops s3 and s4
         int newStopStreetVertex = mod.transitLayer.streetVertexForStop.get(6);
         assertTrue(newStopStreetVertex > 2000);
-        distanceTable = mod.transitLayer.stopToVertexDistanceTables.get(s3StopIndex);
-        assertNotNull(distanceTable);
-        assertTrue(distanceTable.containsKey(newStopStreetVertex));
-        distanceTable = mod.transitLayer.stopToVertexDistanceTables.get(s4StopIndex);
-        assertNotNull(distanceTable);
-        assertTrue(distanceTable.containsKey(newStopStreetVertex));
+        assertTrue(distanceTables.hasRow(s3StopIndex));
+        assertTrue(distanceTables.containsKey(s3StopIndex, newStopStreetVertex));
+        assertTrue(distanceTables.hasRow(s4StopIndex));
+        assertTrue(distanceTables.containsKey(s4StopIndex, newStopStreetVertex));
 
-        // TODO check that PointSets are properly relinked to the new street layer.
+        assertStopToPointTablesMatchRebuild(mod);
+    }
+
+    /** Insert a newly created stop into the existing route, which splits a street near the existing stops. */
+    @Test
+    public void testRerouteWithNewStop () {
+        Reroute reroute = new Reroute();
+        reroute.stops = Arrays.asList(new StopSpec(-83.007, 39.967));
+        reroute.fromStop = "SINGLE_LINE:s2";
+        reroute.toStop = "SINGLE_LINE:s3";
+        reroute.hopTimes = new int[] { 30, 40 };
+        reroute.dwellTimes = new int[] { 10, 15, 20 };
+        reroute.routes = set("SINGLE_LINE:route");
+
+        Scenario scenario = new Scenario();
+        scenario.modifications = Arrays.asList(reroute);
+
+        TransportNetwork mod = scenario.applyToTransportNetwork(network);
+        assertEquals(6, mod.transitLayer.getStopCount());
+
+        assertStopToPointTablesMatchRebuild(mod);
+    }
+
+    /**
+     * Link a grid of points to the base network and then to the given scenario network, which copies the base
+     * linkage, relinks the points on split streets and updates the stop-to-point tables for those points only. Check
+     * that the updated tables are the same as tables built from scratch for the scenario linkage. This relies on
+     * splitting a street not changing the distance from any stop to the existing street vertices.
+     */
+    private void assertStopToPointTablesMatchRebuild (TransportNetwork mod) {
+        // A grid of roughly 15 meter cells around the new stops, so that many points are relinked.
+        int zoom = 13;
+        int west = Grid.lonToPixel(-83.05, zoom);
+        int north = Grid.latToPixel(39.98, zoom);
+        int width = Grid.lonToPixel(-82.93, zoom) - west;
+        int height = Grid.latToPixel(39.95, zoom) - north;
+        WebMercatorGridPointSet grid = new WebMercatorGridPointSet(zoom, west, north, width, height);
+
+        LinkedPointSet baseLinkage = new LinkedPointSet(grid, network.streetLayer, StreetMode.WALK, null);
+        LinkedPointSet linkage = new LinkedPointSet(grid, mod.streetLayer, StreetMode.WALK, baseLinkage);
+        assertFalse("No points were relinked", Arrays.equals(baseLinkage.edges, linkage.edges));
+
+        List<int[]> updatedTables = new ArrayList<>(linkage.stopToPointDistanceTables);
+        linkage.makeStopToPointDistanceTables(null);
+        List<int[]> rebuiltTables = linkage.stopToPointDistanceTables;
+
+        assertEquals(mod.transitLayer.getStopCount(), updatedTables.size());
+        assertEquals(rebuiltTables.size(), updatedTables.size());
+        for (int stop = 0; stop < rebuiltTables.size(); stop++) {
+            // The order of the points within a table is not significant.
+            assertEquals("Distances to points from stop " + stop, distancesByPoint(rebuiltTables.get(stop)),
+                    distancesByPoint(updatedTables.get(stop)));
+        }
+    }
 
+    /** @return the given packed table of (point, distance) pairs as a map, which is empty if the table is null. */
+    private static TIntIntMap distancesByPoint (int[] table) {
+        TIntIntMap distances = new TIntIntHashMap();
+        if (table == null) return distances;
+        for (int i = 0; i < table.length; i += 2) distances.put(table[i], table[i + 1]);
+        return distances;
     }
 
 }
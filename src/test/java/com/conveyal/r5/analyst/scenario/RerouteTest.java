@@ -4,8 +4,8 @@ import com.conveyal.r5.streets.VertexStore;
 import com.conveyal.r5.transit.TransportNetwork;
 import com.conveyal.r5.transit.TripPattern;
 import com.conveyal.r5.transit.TripSchedule;
+import com.conveyal.r5.util.CompressedSparseRows;
 import gnu.trove.list.TIntList;
-import gnu.trove.map.TIntIntMap;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -228,10 +228,10 @@ public class RerouteTest {
         assertEquals(39.967, v.getLat(), 1e-6);
 
         // Was a distance table built?
-        TIntIntMap distanceTable = mod.transitLayer.stopToVertexDistanceTables.get(sidx);
-        assertNotNull(distanceTable);
+        CompressedSparseRows distanceTables = mod.transitLayer.stopToVertexDistanceTables;
+        assertTrue(distanceTables.hasRow(sidx));
         // jagged array, should reach more than 10 vertices
-        assertTrue(distanceTable.size() > 20);
+        assertTrue(distanceTables.rowSize(sidx) > 20);
 
         // Does it have transfers?
         TIntList transfers = mod.transitLayer.transfersForStop.get(sidx);
@@ -0,0 +1,108 @@
+package com.conveyal.r5.streets;
+
+import com.conveyal.r5.analyst.scenario.FakeGraph;
+import com.conveyal.r5.profile.StreetMode;
+import com.conveyal.r5.streets.StreetRouter.State.RoutingVariable;
+import com.conveyal.r5.transit.TransportNetwork;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test that the landmark bounds never overestimate, by checking that searches toward a destination find the same
+ * optimal times and distances with and without the landmark tables.
+ */
+public class LandmarksTest {
+
+    private static final double ORIGIN_LAT = 39.962;
+    private static final double ORIGIN_LON = -83.0007;
+
+    private static final RoutingVariable[] QUANTITIES = {
+            RoutingVariable.DURATION_SECONDS, RoutingVariable.DISTANCE_MILLIMETERS
+    };
+
+    @Test
+    public void testLandmarkBoundsAreAdmissible () {
+        TransportNetwork network = FakeGraph.buildNetwork(FakeGraph.TransitNetwork.SINGLE_LINE);
+        StreetLayer streetLayer = network.streetLayer;
+
+        // Vary the car speeds, so that the time bounds for cars don't simply follow the distance bounds.
+        Random random = new Random(42);
+        EdgeStore.Edge edge = streetLayer.edgeStore.getCursor();
+        for (int e = 0; e < streetLayer.edgeStore.nEdges(); e++) {
+            edge.seek(e);
+            edge.setSpeed((short) (300 + random.nextInt(3000)));
+        }
+        streetLayer.buildLandmarks(EnumSet.of(StreetMode.WALK, StreetMode.BICYCLE, StreetMode.CAR), 4);
+        Map<StreetMode, Landmarks> landmarks = streetLayer.landmarksForMode;
+        assertTrue(landmarks.get(StreetMode.CAR).hasTravelTimes());
+
+        for (StreetMode streetMode : landmarks.keySet()) {
+            assertTrue(landmarks.get(streetMode).landmarkVertices.length > 0);
+            for (int vertex : destinationVertices(streetLayer, streetMode)) {
+                VertexStore.Vertex v = streetLayer.vertexStore.getCursor(vertex);
+                // A point just off the vertex, so the search also ends on a split street.
+                double lat = v.getLat() + 0.0001;
+                double lon = v.getLon();
+                for (RoutingVariable quantity : QUANTITIES) {
+                    streetLayer.landmarksForMode = null;
+                    int expectedAtVertex = routeToVertex(streetLayer, streetMode, quantity, vertex);
+                    int expectedAtPoint = routeToPoint(streetLayer, streetMode, quantity, lat, lon);
+                    streetLayer.landmarksForMode = landmarks;
+                    assertEquals(expectedAtVertex, routeToVertex(streetLayer, streetMode, quantity, vertex));
+                    assertEquals(expectedAtPoint, routeToPoint(streetLayer, streetMode, quantity, lat, lon));
+                }
+            }
+        }
+    }
+
+    /** @return about a dozen vertices spread through those reachable from the origin in the given mode. */
+    private static int[] destinationVertices (StreetLayer streetLayer, StreetMode streetMode) {
+        StreetRouter router = makeRouter(streetLayer, streetMode, RoutingVariable.DURATION_SECONDS);
+        router.route();
+        int[] reached = router.getReachedVertices().keys();
+        assertTrue(reached.length > 12);
+        Arrays.sort(reached);
+        int[] vertices = new int[12];
+        for (int i = 0; i < vertices.length; i++) vertices[i] = reached[i * reached.length / vertices.length];
+        return vertices;
+    }
+
+    private static int routeToVertex (StreetLayer streetLayer, StreetMode streetMode, RoutingVariable quantity,
+                                      int vertex) {
+        StreetRouter router = makeRouter(streetLayer, streetMode, quantity);
+        router.toVertex = vertex;
+        router.route();
+        StreetRouter.State state = router.getStateAtVertex(vertex);
+        assertNotNull(state);
+        return state.getRoutingVariable(quantity);
+    }
+
+    private static int routeToPoint (StreetLayer streetLayer, StreetMode streetMode, RoutingVariable quantity,
+                                     double lat, double lon) {
+        StreetRouter router = makeRouter(streetLayer, streetMode, quantity);
+        assertTrue(router.setDestination(lat, lon));
+        router.route();
+        StreetRouter.State state = router.getState(router.getDestinationSplit());
+        assertNotNull(state);
+        return state.getRoutingVariable(quantity);
+    }
+
+    private static StreetRouter makeRouter (StreetLayer streetLayer, StreetMode streetMode, RoutingVariable quantity) {
+        StreetRouter router = new StreetRouter(streetLayer);
+        router.streetMode = streetMode;
+        router.quantityToMinimize = quantity;
+        if (quantity == RoutingVariable.DISTANCE_MILLIMETERS) router.distanceLimitMeters = 50_000;
+        else router.timeLimitSeconds = 60 * 60;
+        assertTrue(router.setOrigin(ORIGIN_LAT, ORIGIN_LON));
+        return router;
+    }
+
+}
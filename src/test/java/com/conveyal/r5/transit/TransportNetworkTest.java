@@ -0,0 +1,132 @@
+package com.conveyal.r5.transit;
+
+import com.conveyal.gtfs.model.Route;
+import com.conveyal.r5.analyst.scenario.AddTrips;
+import com.conveyal.r5.analyst.scenario.FakeGraph;
+import com.conveyal.r5.analyst.scenario.Scenario;
+import com.conveyal.r5.analyst.scenario.StopSpec;
+import com.conveyal.r5.streets.EdgeStore;
+import com.conveyal.r5.streets.StreetRouter;
+import com.conveyal.r5.streets.VertexStore;
+import gnu.trove.map.TIntIntMap;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test that a network written to a file and read back, with its street layer mapped from columns in the file, is the
+ * same as the network that was written.
+ */
+public class TransportNetworkTest {
+
+    @Test
+    public void testWriteAndRead () throws Exception {
+        TransportNetwork network = FakeGraph.buildNetwork(FakeGraph.TransitNetwork.SINGLE_LINE);
+        File file = File.createTempFile("network", ".dat");
+        file.deleteOnExit();
+        network.write(file);
+        TransportNetwork read = TransportNetwork.read(file);
+
+        assertSameEdges(network.streetLayer.edgeStore, read.streetLayer.edgeStore);
+        assertSameVertices(network.streetLayer.vertexStore, read.streetLayer.vertexStore);
+        assertEquals(network.transitLayer.getStopCount(), read.transitLayer.getStopCount());
+        assertSameRoutes(network, read);
+
+        // Writing again replaces the file rather than rewriting it in place, so the network that was read from it
+        // is still usable afterward.
+        network.write(file);
+        assertSameEdges(network.streetLayer.edgeStore, read.streetLayer.edgeStore);
+
+        // Scenarios extend the mapped lists of the network that was read rather than modifying them.
+        TransportNetwork modified = addTripsScenario().applyToTransportNetwork(network);
+        TransportNetwork modifiedRead = addTripsScenario().applyToTransportNetwork(read);
+        assertTrue(modifiedRead.streetLayer.edgeStore.nEdges() > read.streetLayer.edgeStore.nEdges());
+        assertSameEdges(modified.streetLayer.edgeStore, modifiedRead.streetLayer.edgeStore);
+        assertSameVertices(modified.streetLayer.vertexStore, modifiedRead.streetLayer.vertexStore);
+        assertSameRoutes(modified, modifiedRead);
+        assertSameEdges(network.streetLayer.edgeStore, read.streetLayer.edgeStore);
+    }
+
+    /** Add a bidirectional pattern with three new stops, which splits streets and so adds edges and vertices. */
+    private static Scenario addTripsScenario () {
+        AddTrips at = new AddTrips();
+        at.bidirectional = true;
+        at.stops = Arrays.asList(
+                new StopSpec(-83.0345, 39.962),
+                new StopSpec(-83.0014, 39.962),
+                new StopSpec(-82.9495, 39.962)
+        );
+        at.mode = Route.BUS;
+
+        AddTrips.PatternTimetable entry = new AddTrips.PatternTimetable();
+        entry.headwaySecs = 900;
+        entry.monday = entry.tuesday = entry.wednesday = entry.thursday = entry.friday = true;
+        entry.saturday = entry.sunday = false;
+        entry.hopTimes = new int[] { 120, 140 };
+        entry.dwellTimes = new int[] { 0, 30, 0 };
+        entry.startTime = 7 * 3600;
+        entry.endTime = 10 * 3600;
+        at.frequencies = Arrays.asList(entry);
+
+        Scenario scenario = new Scenario();
+        scenario.modifications = Arrays.asList(at);
+        return scenario;
+    }
+
+    private static void assertSameEdges (EdgeStore expected, EdgeStore actual) {
+        assertEquals(expected.nEdges(), actual.nEdges());
+        for (int e = 0; e < expected.nEdges(); e++) {
+            assertEquals(expected.flags.get(e), actual.flags.get(e));
+            assertEquals(expected.speeds.get(e), actual.speeds.get(e));
+        }
+        // The remaining lists have one entry per pair of edges.
+        for (int p = 0; p < expected.nEdges() / 2; p++) {
+            assertEquals(expected.fromVertices.get(p), actual.fromVertices.get(p));
+            assertEquals(expected.toVertices.get(p), actual.toVertices.get(p));
+            assertEquals(expected.lengths_mm.get(p), actual.lengths_mm.get(p));
+            assertEquals(expected.osmids.get(p), actual.osmids.get(p));
+            assertEquals(expected.inAngles.get(p), actual.inAngles.get(p));
+            assertEquals(expected.outAngles.get(p), actual.outAngles.get(p));
+            assertArrayEquals(geometry(expected.geometries, p), geometry(actual.geometries, p));
+        }
+    }
+
+    /** Null geometries are written as empty ones. */
+    private static int[] geometry (List<int[]> geometries, int index) {
+        int[] geometry = geometries.get(index);
+        return geometry == null ? new int[0] : geometry;
+    }
+
+    private static void assertSameVertices (VertexStore expected, VertexStore actual) {
+        assertEquals(expected.getVertexCount(), actual.getVertexCount());
+        for (int v = 0; v < expected.getVertexCount(); v++) {
+            assertEquals(expected.fixedLats.get(v), actual.fixedLats.get(v));
+            assertEquals(expected.fixedLons.get(v), actual.fixedLons.get(v));
+            assertEquals(expected.vertexFlags.get(v), actual.vertexFlags.get(v));
+        }
+    }
+
+    /** Route from the same origin on both networks and check that every vertex is reached at the same time. */
+    private static void assertSameRoutes (TransportNetwork expected, TransportNetwork actual) {
+        TIntIntMap expectedTimes = route(expected);
+        TIntIntMap actualTimes = route(actual);
+        assertTrue(expectedTimes.size() > 0);
+        assertEquals(expectedTimes, actualTimes);
+    }
+
+    private static TIntIntMap route (TransportNetwork network) {
+        StreetRouter router = new StreetRouter(network.streetLayer);
+        router.quantityToMinimize = StreetRouter.State.RoutingVariable.DURATION_SECONDS;
+        router.timeLimitSeconds = 20 * 60;
+        assertTrue(router.setOrigin(39.962, -83.0007));
+        router.route();
+        return router.getReachedVertices();
+    }
+
+}
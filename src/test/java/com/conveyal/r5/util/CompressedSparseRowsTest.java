@@ -0,0 +1,131 @@
+package com.conveyal.r5.util;
+
+import gnu.trove.map.TIntIntMap;
+import gnu.trove.map.hash.TIntIntHashMap;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CompressedSparseRowsTest {
+
+    @Test
+    public void testBuilder () {
+        TIntIntMap map = new TIntIntHashMap();
+        map.put(30, 3);
+        map.put(10, 1);
+        map.put(20, 2);
+        CompressedSparseRows table = new CompressedSparseRows.Builder()
+                .addRow(CompressedSparseRows.packSorted(map))
+                .addAbsentRow()
+                .addRow(new int[0])
+                .addRow(new int[] { 5, 50 })
+                .build();
+
+        assertEquals(4, table.nRows());
+        assertEquals(4, table.nEntries());
+        assertTrue(table.hasRow(0));
+        assertFalse(table.hasRow(1));
+        assertTrue(table.hasRow(2));
+        assertFalse(table.hasRow(4));
+        assertEquals(0, table.rowSize(1));
+        assertEquals(0, table.rowSize(2));
+
+        // Keys within a row must be iterated in increasing order.
+        int[] keys = new int[3];
+        for (int i = table.rowStart(0); i < table.rowEnd(0); i++) keys[i - table.rowStart(0)] = table.key(i);
+        assertArrayEquals(new int[] { 10, 20, 30 }, keys);
+
+        assertEquals(2, table.get(0, 20, -1));
+        assertEquals(-1, table.get(0, 5, -1));
+        assertEquals(50, table.get(3, 5, -1));
+        assertFalse(table.containsKey(1, 5));
+
+        // Copying rows from an existing table, including absent ones.
+        CompressedSparseRows copy = new CompressedSparseRows.Builder()
+                .addRow(table, 3)
+                .addRow(table, 1)
+                .addRow(table, 7)
+                .build();
+        assertEquals(50, copy.get(0, 5, -1));
+        assertFalse(copy.hasRow(1));
+        assertFalse(copy.hasRow(2));
+    }
+
+    /** A table built on a base table must share the rows it doesn't replace, and read the same as a full copy. */
+    @Test
+    public void testBaseRows () {
+        CompressedSparseRows base = new CompressedSparseRows.Builder()
+                .addRow(new int[] { 1, 10, 2, 20 })
+                .addAbsentRow()
+                .addRow(new int[] { 3, 30 })
+                .build();
+        CompressedSparseRows overlay = new CompressedSparseRows.Builder(base)
+                .addBaseRow(0)
+                .addRow(new int[] { 4, 40 })
+                .addBaseRow(2)
+                .addRow(new int[] { 5, 50, 6, 60 })
+                .build();
+
+        assertEquals(4, overlay.nRows());
+        assertEquals(6, overlay.nEntries());
+        assertEquals(3, overlay.nOwnEntries());
+        assertEquals(20, overlay.get(0, 2, -1));
+        assertEquals(40, overlay.get(1, 4, -1));
+        assertEquals(30, overlay.get(2, 3, -1));
+        assertEquals(60, overlay.get(3, 6, -1));
+        assertEquals(-1, overlay.get(3, 3, -1));
+        int[] keys = new int[2];
+        for (int i = overlay.rowStart(3); i < overlay.rowEnd(3); i++) keys[i - overlay.rowStart(3)] = overlay.key(i);
+        assertArrayEquals(new int[] { 5, 6 }, keys);
+
+        // Building on a table that itself has a base shares the original rows and copies the replaced ones.
+        CompressedSparseRows second = new CompressedSparseRows.Builder(overlay)
+                .addBaseRow(0)
+                .addBaseRow(1)
+                .addAbsentRow()
+                .addBaseRow(3)
+                .build();
+        assertEquals(5, second.nEntries());
+        assertEquals(3, second.nOwnEntries());
+        assertEquals(10, second.get(0, 1, -1));
+        assertEquals(40, second.get(1, 4, -1));
+        assertFalse(second.hasRow(2));
+        assertEquals(50, second.get(3, 5, -1));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnsortedRow () {
+        new CompressedSparseRows.Builder().addRow(new int[] { 2, 20, 1, 10 });
+    }
+
+    /** The transpose of packed stop-to-point tables must give the same distances, with rows sorted by stop. */
+    @Test
+    public void testTranspose () {
+        int[][] stopToPoint = new int[][] {
+                { 3, 300, 0, 100 },
+                null,
+                { 0, 102, 1, 112 },
+                {},
+        };
+        CompressedSparseRows pointToStop = CompressedSparseRows.transpose(Arrays.asList(stopToPoint), 5);
+        assertEquals(5, pointToStop.nRows());
+        assertEquals(4, pointToStop.nEntries());
+
+        assertEquals(2, pointToStop.rowSize(0));
+        assertEquals(0, pointToStop.key(pointToStop.rowStart(0)));
+        assertEquals(100, pointToStop.value(pointToStop.rowStart(0)));
+        assertEquals(2, pointToStop.key(pointToStop.rowStart(0) + 1));
+        assertEquals(102, pointToStop.value(pointToStop.rowStart(0) + 1));
+
+        assertEquals(112, pointToStop.get(1, 2, -1));
+        assertFalse(pointToStop.hasRow(2));
+        assertEquals(300, pointToStop.get(3, 0, -1));
+        assertFalse(pointToStop.hasRow(4));
+    }
+
+}